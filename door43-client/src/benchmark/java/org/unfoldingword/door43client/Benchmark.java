@@ -0,0 +1,136 @@
+package org.unfoldingword.door43client;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A minimal benchmark harness.
+ * Each task is warmed up then timed over a number of iterations and the results are written as json
+ * so they can be compared between releases.
+ *
+ * The results are written to the directory in the "benchmark.output" system property
+ * and tagged with the "benchmark.version" system property.
+ */
+class Benchmark {
+    private final String suite;
+    private final List<JSONObject> results = new ArrayList<>();
+
+    /**
+     *
+     * @param suite the name of the benchmark suite. This is used to name the results file.
+     */
+    public Benchmark(String suite) {
+        this.suite = suite;
+    }
+
+    /**
+     * Returns the scale factor of the synthetic data.
+     * This can be changed with the "benchmark.scale" system property.
+     * @return
+     */
+    public static int getScale() {
+        return Math.max(1, Integer.getInteger("benchmark.scale", 1));
+    }
+
+    /**
+     * Times a task
+     * @param name the name of the benchmark
+     * @param warmups the number of untimed runs
+     * @param iterations the number of timed runs
+     * @param task the work to measure
+     * @return the result
+     * @throws Exception
+     */
+    public JSONObject measure(String name, int warmups, int iterations, Task task) throws Exception {
+        for(int i = 0; i < warmups; i ++) {
+            task.run(i);
+        }
+        long[] times = new long[iterations];
+        for(int i = 0; i < iterations; i ++) {
+            long start = System.nanoTime();
+            task.run(warmups + i);
+            times[i] = System.nanoTime() - start;
+        }
+        return record(name, times);
+    }
+
+    /**
+     * Records the timings of a benchmark that was measured elsewhere
+     * @param name the name of the benchmark
+     * @param times the duration of each iteration in nanoseconds
+     * @return the result
+     * @throws JSONException
+     */
+    public JSONObject record(String name, long[] times) throws JSONException {
+        long[] sorted = Arrays.copyOf(times, times.length);
+        Arrays.sort(sorted);
+        long total = 0;
+        for(long t:sorted) total += t;
+
+        JSONObject result = new JSONObject();
+        result.put("name", name);
+        result.put("iterations", sorted.length);
+        result.put("mean_ns", sorted.length > 0 ? total / sorted.length : 0);
+        result.put("min_ns", sorted.length > 0 ? sorted[0] : 0);
+        result.put("p50_ns", percentile(sorted, 50));
+        result.put("p90_ns", percentile(sorted, 90));
+        result.put("max_ns", sorted.length > 0 ? sorted[sorted.length - 1] : 0);
+        results.add(result);
+        System.out.println(suite + "." + name + ": " + result.toString());
+        return result;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        if(sorted.length == 0) return 0;
+        int index = (int)Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Writes the results to the output directory
+     * @return the results file
+     * @throws IOException
+     * @throws JSONException
+     */
+    public File write() throws IOException, JSONException {
+        File dir = new File(System.getProperty("benchmark.output", "build/benchmarks"));
+        dir.mkdirs();
+        JSONObject report = new JSONObject();
+        report.put("suite", suite);
+        report.put("version", System.getProperty("benchmark.version", "unknown"));
+        report.put("scale", getScale());
+        report.put("timestamp", System.currentTimeMillis() / 1000);
+        report.put("java", System.getProperty("java.version"));
+        report.put("results", new JSONArray(results));
+
+        File file = new File(dir, suite + ".json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(report.toString(2));
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /**
+     * A unit of work to be measured
+     */
+    public interface Task {
+        /**
+         * @param iteration the zero based index of the run including warmups
+         * @throws Exception
+         */
+        void run(int iteration) throws Exception;
+    }
+}
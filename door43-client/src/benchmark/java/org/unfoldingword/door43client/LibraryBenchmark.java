@@ -0,0 +1,282 @@
+package org.unfoldingword.door43client;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.unfoldingword.door43client.models.Category;
+import org.unfoldingword.door43client.models.Question;
+import org.unfoldingword.door43client.models.Questionnaire;
+import org.unfoldingword.door43client.models.SourceLanguage;
+import org.unfoldingword.door43client.models.TargetLanguage;
+import org.unfoldingword.resourcecontainer.Project;
+import org.unfoldingword.resourcecontainer.Resource;
+import org.unfoldingword.resourcecontainer.ResourceContainer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmarks the queries and ingestion paths of the library.
+ *
+ * The index is built from the test fixtures which are scaled up synthetically.
+ * Run with "gradlew testDebugUnitTest -Pbenchmark --tests *Benchmark".
+ */
+@RunWith(RobolectricTestRunner.class)
+public class LibraryBenchmark {
+    private static final int WARMUPS = 3;
+    private static final int ITERATIONS = 20;
+    private static final int NUM_SOURCE_LANGUAGES = 5;
+    private static final int NUM_PROJECT_COPIES = 10;
+    private static final int NUM_RESOURCES = 3;
+
+    private static final Benchmark benchmark = new Benchmark("library");
+
+    private Library library;
+    private List<TargetLanguage> targetLanguages;
+
+    @AfterClass
+    public static void writeResults() throws Exception {
+        benchmark.write();
+    }
+
+    private void initialize() throws Exception {
+        Context context = RuntimeEnvironment.application;
+        ClassLoader classLoader = getClass().getClassLoader();
+        String schema = Util.loadResource(classLoader, "schema.sqlite");
+        context.deleteDatabase("index");
+        library = new Library(new SQLiteHelper(context, schema, "index"));
+
+        targetLanguages = new ArrayList<>();
+        JSONArray languages = new JSONArray(Util.loadResource(classLoader, "langnames.json"));
+        for(int i = 0; i < languages.length(); i ++) {
+            JSONObject l = languages.getJSONObject(i);
+            targetLanguages.add(new TargetLanguage(l.getString("lc"), l.getString("ln"),
+                    l.getString("ang"), l.getString("ld"), l.getString("lr"), l.optBoolean("gw", false)));
+        }
+    }
+
+    /**
+     * Builds the source content by copying the projects in the catalog fixture
+     */
+    private void buildSources() throws Exception {
+        JSONArray catalog = new JSONArray(Util.loadResource(getClass().getClassLoader(), "catalog.json"));
+        int scale = Benchmark.getScale();
+        library.beginTransaction();
+        try {
+            for(int l = 0; l < NUM_SOURCE_LANGUAGES * scale; l ++) {
+                long sourceLanguageId = library.addSourceLanguage(new SourceLanguage("en" + l, "English " + l, "ltr"));
+                for(int c = 0; c < NUM_PROJECT_COPIES * scale; c ++) {
+                    for(int p = 0; p < catalog.length(); p ++) {
+                        JSONObject pJson = catalog.getJSONObject(p);
+                        Project project = new Project(pJson.getString("slug") + c, "Project " + c, pJson.getInt("sort"));
+                        project.description = "A synthetic copy of " + pJson.getString("slug");
+                        List<Category> categories = new ArrayList<>();
+                        JSONArray meta = pJson.getJSONArray("meta");
+                        for(int m = 0; m < meta.length(); m ++) {
+                            categories.add(new Category(meta.getString(m), meta.getString(m)));
+                        }
+                        long projectId = library.addProject(project, categories, sourceLanguageId);
+                        for(int r = 0; r < NUM_RESOURCES; r ++) {
+                            library.addResource(buildResource("res" + r), projectId);
+                        }
+                    }
+                }
+            }
+            library.endTransaction(true);
+        } catch (Exception e) {
+            library.endTransaction(false);
+            throw e;
+        }
+    }
+
+    private static Resource buildResource(String slug) {
+        Resource resource = new Resource(slug, "Unlocked Literal Bible", "book", "all", "3", "4");
+        resource.addFormat(new Resource.Format(ResourceContainer.version, ResourceContainer.baseMimeType + "+book", 0, "some url", false));
+        return resource;
+    }
+
+    @Test
+    public void queries() throws Exception {
+        initialize();
+        Library.BatchWriter writer;
+        library.beginTransaction();
+        writer = library.getBatchWriter();
+        for(TargetLanguage language:targetLanguages) {
+            writer.addTargetLanguage(language);
+        }
+        library.endTransaction(true);
+        buildSources();
+
+        final int numProjects = NUM_PROJECT_COPIES * Benchmark.getScale();
+        final int numLanguages = NUM_SOURCE_LANGUAGES * Benchmark.getScale();
+
+        assertFalse(library.findTranslations(null, null, null, null, null, 0, -1).isEmpty());
+        benchmark.measure("findTranslations.all", WARMUPS, ITERATIONS, new Benchmark.Task() {
+            @Override
+            public void run(int iteration) throws Exception {
+                library.findTranslations(null, null, null, null, null, 0, -1);
+            }
+        });
+        benchmark.measure("findTranslations.project", WARMUPS, ITERATIONS, new Benchmark.Task() {
+            @Override
+            public void run(int iteration) throws Exception {
+                library.findTranslations(null, "gen" + (iteration % numProjects), null, "book", null, 0, -1);
+            }
+        });
+
+        assertFalse(library.getProjectCategories(0, "en0", "all").isEmpty());
+        benchmark.measure("getProjectCategories", WARMUPS, ITERATIONS, new Benchmark.Task() {
+            @Override
+            public void run(int iteration) throws Exception {
+                library.getProjectCategories(0, "en" + (iteration % numLanguages), "all");
+            }
+        });
+
+        final String[] queries = {"a", "en", "eng", "english", "ndebele", "zzz"};
+        benchmark.measure("findTargetLanguage", WARMUPS, ITERATIONS, new Benchmark.Task() {
+            @Override
+            public void run(int iteration) throws Exception {
+                library.findTargetLanguage(queries[iteration % queries.length]);
+            }
+        });
+        benchmark.measure("findTargetLanguage.rebuild", 1, 5, new Benchmark.Task() {
+            @Override
+            public void run(int iteration) throws Exception {
+                // changing a language invalidates the search index
+                library.addTargetLanguage(targetLanguages.get(iteration));
+                library.findTargetLanguage("en");
+            }
+        });
+
+        assertEquals(NUM_RESOURCES, library.getResources("en0", "obs0").size());
+        benchmark.measure("getResources", WARMUPS, ITERATIONS, new Benchmark.Task() {
+            @Override
+            public void run(int iteration) throws Exception {
+                library.getResources("en" + (iteration % numLanguages), "obs" + (iteration % numProjects));
+            }
+        });
+
+        library.closeDatabase();
+    }
+
+    @Test
+    public void ingestion() throws Exception {
+        initialize();
+        final List<TargetLanguage> sample = targetLanguages.subList(0, Math.min(500, targetLanguages.size()));
+
+        benchmark.measure("addTargetLanguage", 1, 5, new Benchmark.Task() {
+            @Override
+            public void run(int iteration) throws Exception {
+                library.beginTransaction();
+                for(TargetLanguage language:sample) {
+                    library.addTargetLanguage(language);
+                }
+                library.endTransaction(true);
+            }
+        });
+        benchmark.measure("batchWriter.addTargetLanguage", 1, 5, new Benchmark.Task() {
+            @Override
+            public void run(int iteration) throws Exception {
+                library.beginTransaction();
+                Library.BatchWriter writer = library.getBatchWriter();
+                for(TargetLanguage language:sample) {
+                    writer.addTargetLanguage(language);
+                }
+                library.endTransaction(true);
+            }
+        });
+        benchmark.measure("batchWriter.addTargetLanguage.full", 0, 1, new Benchmark.Task() {
+            @Override
+            public void run(int iteration) throws Exception {
+                library.beginTransaction();
+                Library.BatchWriter writer = library.getBatchWriter();
+                for(TargetLanguage language:targetLanguages) {
+                    writer.addTargetLanguage(language);
+                }
+                library.endTransaction(true);
+            }
+        });
+
+        final JSONObject qJson = new JSONObject(Util.loadResource(getClass().getClassLoader(), "questionnaires.json"))
+                .getJSONArray("languages").getJSONObject(0);
+        benchmark.measure("addQuestionnaire", 1, 5, new Benchmark.Task() {
+            @Override
+            public void run(int iteration) throws Exception {
+                Map<String, Long> dataFields = new HashMap<>();
+                JSONObject dataFieldJson = qJson.getJSONObject("language_data");
+                Iterator<String> keys = dataFieldJson.keys();
+                while(keys.hasNext()) {
+                    String key = keys.next();
+                    dataFields.put(key, dataFieldJson.getLong(key));
+                }
+                library.beginTransaction();
+                long questionnaireId = library.addQuestionnaire(new Questionnaire(qJson.getString("slug"),
+                        qJson.getString("name"), qJson.getString("dir"), iteration, dataFields));
+                JSONArray questions = qJson.getJSONArray("questions");
+                for(int i = 0; i < questions.length(); i ++) {
+                    JSONObject q = questions.getJSONObject(i);
+                    library.addQuestion(new Question(q.getString("text"), q.getString("help"),
+                            q.getBoolean("required"), Question.InputType.get(q.getString("input_type")),
+                            q.getInt("sort"), q.isNull("depends_on") ? -1 : q.getLong("depends_on"),
+                            q.getLong("id")), questionnaireId);
+                }
+                library.endTransaction(true);
+            }
+        });
+
+        library.beginTransaction();
+        final long sourceLanguageId = library.addSourceLanguage(new SourceLanguage("en", "English", "ltr"));
+        library.endTransaction(true);
+        final List<Category> categories = new ArrayList<>();
+        categories.add(new Category("bible-ot", "Old Testament"));
+        benchmark.measure("addProject", 1, 5, new Benchmark.Task() {
+            @Override
+            public void run(int iteration) throws Exception {
+                library.beginTransaction();
+                for(int i = 0; i < 50; i ++) {
+                    Project project = new Project("proj" + i, "Project " + i, i);
+                    library.addProject(project, categories, sourceLanguageId);
+                }
+                library.endTransaction(true);
+            }
+        });
+
+        library.beginTransaction();
+        final long projectId = library.addProject(new Project("gen", "Genesis", 1), categories, sourceLanguageId);
+        library.endTransaction(true);
+        benchmark.measure("addResource", 1, 5, new Benchmark.Task() {
+            @Override
+            public void run(int iteration) throws Exception {
+                library.beginTransaction();
+                for(int i = 0; i < 50; i ++) {
+                    library.addResource(buildResource("res" + i), projectId);
+                }
+                library.endTransaction(true);
+            }
+        });
+        benchmark.measure("batchWriter.addResource", 1, 5, new Benchmark.Task() {
+            @Override
+            public void run(int iteration) throws Exception {
+                library.beginTransaction();
+                Library.BatchWriter writer = library.getBatchWriter();
+                for(int i = 0; i < 50; i ++) {
+                    writer.addResource(buildResource("res" + i), projectId);
+                }
+                library.endTransaction(true);
+            }
+        });
+
+        library.closeDatabase();
+    }
+}
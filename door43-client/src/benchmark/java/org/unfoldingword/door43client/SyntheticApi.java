@@ -0,0 +1,143 @@
+package org.unfoldingword.door43client;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Generates the catalogs of a legacy Door43 api of a given size.
+ * The catalogs are keyed by their path on the server.
+ */
+class SyntheticApi {
+    public static final String PRIMARY_CATALOG = "/ts/txt/2/catalog.json";
+    private static final String[] TA_VOLUMES = {"audio_2", "checking_1", "checking_2", "gateway_3", "intro_1", "process_1", "translate_1", "translate_2"};
+    private static final int CHUNKS_PER_PROJECT = 100;
+
+    private final String host;
+    private final Map<String, String> catalogs = new LinkedHashMap<>();
+
+    /**
+     *
+     * @param host the host the catalogs will be served from
+     * @param numProjects the number of projects in the primary catalog. The first project is obs.
+     * @param numLanguages the number of source languages of each project. The first language is en.
+     * @param numResources the number of resources in each source language
+     * @throws JSONException
+     */
+    public SyntheticApi(String host, int numProjects, int numLanguages, int numResources) throws JSONException {
+        this.host = host;
+
+        JSONArray projects = new JSONArray();
+        for(int p = 0; p < numProjects; p ++) {
+            String projectSlug = p == 0 ? "obs" : "book" + p;
+            String langCatalog = "/ts/txt/2/" + projectSlug + "/languages.json";
+            JSONObject pJson = new JSONObject();
+            pJson.put("date_modified", "20160901");
+            pJson.put("lang_catalog", host + langCatalog);
+            pJson.put("meta", p == 0 ? new JSONArray() : new JSONArray().put("bible-ot"));
+            pJson.put("slug", projectSlug);
+            pJson.put("sort", String.valueOf(p));
+            projects.put(pJson);
+
+            JSONArray languages = new JSONArray();
+            for(int l = 0; l < numLanguages; l ++) {
+                // TRICKY: the chunks are indexed against the english versification
+                String languageSlug = l == 0 ? "en" : "lang" + l;
+                String resCatalog = "/ts/txt/2/" + projectSlug + "/" + languageSlug + "/resources.json";
+                JSONObject lJson = new JSONObject();
+                lJson.put("language", new JSONObject()
+                        .put("date_modified", "20160901")
+                        .put("direction", "ltr")
+                        .put("name", "Language " + l)
+                        .put("slug", languageSlug));
+                lJson.put("project", new JSONObject()
+                        .put("desc", "A synthetic project")
+                        .put("meta", p == 0 ? new JSONArray() : new JSONArray().put("Bible: OT"))
+                        .put("name", "Project " + p)
+                        .put("sort", String.valueOf(p)));
+                lJson.put("res_catalog", host + resCatalog);
+                languages.put(lJson);
+
+                catalogs.put(resCatalog, buildResources(projectSlug, languageSlug, numResources).toString());
+            }
+            catalogs.put(langCatalog, languages.toString());
+
+            if(p > 0) {
+                catalogs.put("/bible/txt/1/" + projectSlug + "/chunks.json", buildChunks().toString());
+            }
+        }
+        catalogs.put(PRIMARY_CATALOG, projects.toString());
+
+        for(String volume:TA_VOLUMES) {
+            String[] parts = volume.split("_");
+            JSONObject meta = new JSONObject()
+                    .put("manual", parts[0])
+                    .put("volume", parts[1])
+                    .put("mod", 20160901)
+                    .put("status", new JSONObject()
+                            .put("checking_level", "3")
+                            .put("comments", "")
+                            .put("publish_date", "20160901")
+                            .put("license", "CC BY-SA 4.0")
+                            .put("version", "1"));
+            catalogs.put("/ta/txt/1/en/" + volume + ".json", new JSONObject().put("meta", meta).toString());
+        }
+    }
+
+    private JSONArray buildResources(String projectSlug, String languageSlug, int numResources) throws JSONException {
+        String base = host + "/ts/txt/2/" + projectSlug + "/" + languageSlug;
+        JSONArray resources = new JSONArray();
+        for(int r = 0; r < numResources; r ++) {
+            String slug = r == 0 ? "ulb" : "res" + r;
+            resources.put(new JSONObject()
+                    .put("checking_questions", base + "/questions.json")
+                    .put("date_modified", "20160901")
+                    .put("name", "Resource " + r)
+                    .put("notes", base + "/notes.json")
+                    .put("slug", slug)
+                    .put("source", base + "/" + slug + "/source.json")
+                    .put("status", new JSONObject()
+                            .put("checking_entity", "Wycliffe Associates")
+                            .put("checking_level", "3")
+                            .put("comments", "")
+                            .put("contributors", "Wycliffe Associates")
+                            .put("publish_date", "20160830")
+                            .put("source_text", languageSlug)
+                            .put("source_text_version", "6")
+                            .put("version", "6"))
+                    .put("terms", host + "/ts/txt/2/bible/" + languageSlug + "/terms.json")
+                    .put("tw_cat", base + "/tw_cat.json"));
+        }
+        return resources;
+    }
+
+    private static JSONArray buildChunks() throws JSONException {
+        JSONArray chunks = new JSONArray();
+        for(int i = 0; i < CHUNKS_PER_PROJECT; i ++) {
+            chunks.put(new JSONObject()
+                    .put("chp", String.format("%02d", i / 10 + 1))
+                    .put("firstvs", String.format("%02d", (i % 10) * 3 + 1)));
+        }
+        return chunks;
+    }
+
+    /**
+     * Adds a catalog to the api
+     * @param path the path on the server
+     * @param body
+     */
+    public void put(String path, String body) {
+        catalogs.put(path, body);
+    }
+
+    /**
+     * Returns the catalogs keyed by path
+     * @return
+     */
+    public Map<String, String> getCatalogs() {
+        return catalogs;
+    }
+}
@@ -0,0 +1,262 @@
+package org.unfoldingword.door43client;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.Assert.*;
+
+/**
+ * Benchmarks a full and a no-op update of the index against a synthetic api served by WireMock.
+ *
+ * The size of the api and the network conditions can be changed with system properties:
+ * benchmark.projects, benchmark.languages, benchmark.resources,
+ * benchmark.latency (milliseconds per request) and benchmark.bandwidth (bytes per second, 0 for unlimited).
+ *
+ * Each phase reports the wall time, http requests, bytes transferred, rows written and peak heap.
+ * The latency of the ui reads is measured while a full update is running and again once it has finished.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UpdateBenchmark {
+    private static final Benchmark benchmark = new Benchmark("update");
+    private static final int READ_WARMUPS = 5;
+
+    @Rule
+    public TemporaryFolder resourceDir = new TemporaryFolder();
+
+    private final int numProjects = Integer.getInteger("benchmark.projects", 10 * Benchmark.getScale());
+    private final int numLanguages = Integer.getInteger("benchmark.languages", 5 * Benchmark.getScale());
+    private final int numResources = Integer.getInteger("benchmark.resources", 3);
+    private final int latency = Integer.getInteger("benchmark.latency", 20);
+    private final int bandwidth = Integer.getInteger("benchmark.bandwidth", 0);
+
+    private WireMockServer server;
+    private API client;
+    private String host;
+    private final Map<String, String> etags = new HashMap<>();
+    private final Map<String, Integer> sizes = new HashMap<>();
+
+    @AfterClass
+    public static void writeResults() throws Exception {
+        benchmark.write();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new WireMockServer(options().dynamicPort());
+        server.start();
+        host = "http://localhost:" + server.port();
+
+        SyntheticApi api = new SyntheticApi(host, numProjects, numLanguages, numResources);
+        ClassLoader classLoader = getClass().getClassLoader();
+        api.put("/exports/langnames.json", Util.loadResource(classLoader, "langnames.json"));
+        api.put("/api/questionnaire/", Util.loadResource(classLoader, "questionnaires.json"));
+        api.put("/api/templanguages/", Util.loadResource(classLoader, "temp_langnames.json"));
+        api.put("/api/templanguages/assignment/changed/", Util.loadResource(classLoader, "approved_temp_langnames.json"));
+        for(Map.Entry<String, String> catalog:api.getCatalogs().entrySet()) {
+            serve(catalog.getKey(), catalog.getValue());
+        }
+
+        String schema = Util.loadResource(classLoader, "schema.sqlite");
+        client = new API(RuntimeEnvironment.application, schema, new File(resourceDir.getRoot(), "index.sqlite"), resourceDir.getRoot());
+        client.setGlobalCatalogServer(host);
+        client.setLegacyServer(host);
+    }
+
+    @After
+    public void tearDown() {
+        client.tearDown();
+        server.stop();
+    }
+
+    /**
+     * Serves a catalog that may be conditionally requested
+     * @param path
+     * @param body
+     */
+    private void serve(String path, String body) throws Exception {
+        String etag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+        int bytes = body.getBytes("UTF-8").length;
+        etags.put(path, etag);
+        sizes.put(path, bytes);
+
+        // TRICKY: the bandwidth limit is simulated by delaying the response by the time the body would take to transfer
+        int transferDelay = bandwidth > 0 ? (int)(bytes * 1000L / bandwidth) : 0;
+        server.stubFor(get(urlEqualTo(path))
+                .atPriority(1)
+                .withHeader("If-None-Match", equalTo(etag))
+                .willReturn(aResponse()
+                        .withStatus(304)
+                        .withHeader("ETag", etag)
+                        .withFixedDelay(latency)));
+        server.stubFor(get(urlEqualTo(path))
+                .atPriority(5)
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withHeader("ETag", etag)
+                        .withBody(body)
+                        .withFixedDelay(latency + transferDelay)));
+    }
+
+    /**
+     * Runs the complete update
+     */
+    private void update() throws Exception {
+        client.updateSources(host + SyntheticApi.PRIMARY_CATALOG, null);
+        client.updateChunks(null);
+        client.updateCatalogs(null);
+    }
+
+    /**
+     * Runs an update and records it's metrics
+     * @param name
+     * @return
+     * @throws Exception
+     */
+    private JSONObject measure(String name) throws Exception {
+        Library library = (Library)client.index();
+        server.resetRequests();
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        System.gc();
+        for(MemoryPoolMXBean pool:pools) {
+            pool.resetPeakUsage();
+        }
+        long rowsBefore = library.getRowsWritten();
+        long queriesBefore = library.getQueryCount();
+
+        long start = System.nanoTime();
+        update();
+        long duration = System.nanoTime() - start;
+
+        long peakHeap = 0;
+        for(MemoryPoolMXBean pool:pools) {
+            if(pool.getType() == MemoryType.HEAP) peakHeap += pool.getPeakUsage().getUsed();
+        }
+        List<LoggedRequest> requests = server.findAll(getRequestedFor(urlMatching(".*")));
+        long bytes = 0;
+        int notModified = 0;
+        for(LoggedRequest request:requests) {
+            String path = request.getUrl();
+            if(etags.containsKey(path) && etags.get(path).equals(request.getHeader("If-None-Match"))) {
+                notModified ++;
+            } else if(sizes.containsKey(path)) {
+                bytes += sizes.get(path);
+            }
+        }
+
+        JSONObject result = benchmark.record(name, new long[]{duration});
+        result.put("projects", numProjects);
+        result.put("languages", numLanguages);
+        result.put("resources", numResources);
+        result.put("latency_ms", latency);
+        result.put("bandwidth_bps", bandwidth);
+        result.put("http_requests", requests.size());
+        result.put("http_not_modified", notModified);
+        result.put("bytes_transferred", bytes);
+        result.put("rows_written", library.getRowsWritten() - rowsBefore);
+        result.put("queries", library.getQueryCount() - queriesBefore);
+        result.put("peak_heap_bytes", peakHeap);
+        return result;
+    }
+
+    @Test
+    public void fullAndNoOpUpdate() throws Exception {
+        JSONObject full = measure("update.full");
+        assertEquals(0, server.findAllUnmatchedRequests().size());
+        assertTrue(full.getLong("rows_written") > 0);
+        assertFalse(client.index().getResources("en", "obs").isEmpty());
+
+        JSONObject noop = measure("update.noop");
+        assertTrue(noop.getInt("http_requests") < full.getInt("http_requests"));
+        assertEquals(0, noop.getLong("bytes_transferred"));
+    }
+
+    @Test
+    public void readLatencyDuringFullUpdate() throws Exception {
+        final Library library = (Library)client.index();
+        // TRICKY: cached models would hide the time spent waiting for the database
+        library.setCacheSize(0);
+
+        final Exception[] error = {null};
+        Thread updater = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    update();
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        }, "door43-update");
+        updater.start();
+        List<Long> times = new ArrayList<>();
+        while(updater.isAlive()) {
+            long start = System.nanoTime();
+            read(library, times.size());
+            times.add(System.nanoTime() - start);
+        }
+        updater.join();
+        if(error[0] != null) throw error[0];
+
+        long[] during = new long[times.size()];
+        for(int i = 0; i < during.length; i ++) {
+            during[i] = times.get(i);
+        }
+        assertTrue(during.length > 0);
+        benchmark.record("read.during_update", during).put("projects", numProjects).put("languages", numLanguages);
+
+        // the same reads once the update has finished
+        benchmark.measure("read.idle", READ_WARMUPS, Math.max(READ_WARMUPS, during.length), new Benchmark.Task() {
+            @Override
+            public void run(int iteration) throws Exception {
+                read(library, iteration);
+            }
+        });
+    }
+
+    /**
+     * Performs one of the reads the ui makes while browsing the index
+     * @param library
+     * @param iteration
+     */
+    private static void read(Library library, int iteration) {
+        switch (iteration % 5) {
+            case 0:
+                library.getSourceLanguages();
+                break;
+            case 1:
+                library.getProjectCategories(0, "en", "all");
+                break;
+            case 2:
+                library.getProjects("en", true);
+                break;
+            case 3:
+                library.findTargetLanguage("en");
+                break;
+            default:
+                library.getResources("en", "obs");
+        }
+    }
+}
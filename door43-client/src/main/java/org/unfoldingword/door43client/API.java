@@ -18,16 +18,20 @@ import org.unfoldingword.resourcecontainer.ResourceContainer;
 import org.unfoldingword.resourcecontainer.errors.InvalidRCException;
 import org.unfoldingword.resourcecontainer.errors.MissingRCException;
 import org.unfoldingword.resourcecontainer.errors.RCException;
-import org.unfoldingword.tools.http.GetRequest;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.URL;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
  * Created by joel on 8/30/16.
@@ -54,9 +58,16 @@ class API {
     }
 
     private final File resourceDir;
+    private final File cacheDir;
     private final Library library;
+    private final WordsAssignmentsCache wordsAssignments;
+    private final ContainerStaging staging;
     private String globalCatalogHost = null;
+    private String legacyServerHost = null;
     private OnLogListener logListener = defaultLogListener;
+    private int updateConcurrency = CatalogFetcher.DEFAULT_WORKERS;
+    private Metrics metrics = null;
+    private Index meteredIndex = null;
 
     /**
      * Initializes the new api client
@@ -67,6 +78,7 @@ class API {
      */
     public API(Context context, String schema, File databasePath, File resourceDir) throws IOException {
         this.resourceDir = resourceDir;
+        this.cacheDir = context.getCacheDir();
         String[] nameParts = databasePath.getName().split("\\.");
         String dbExt = nameParts[nameParts.length - 1];
         DatabaseContext databaseContext = new DatabaseContext(context, databasePath.getParentFile(), dbExt);
@@ -77,6 +89,23 @@ class API {
             }
         }
         this.library = new Library(sqLiteHelper);
+        this.wordsAssignments = new WordsAssignmentsCache(new File(cacheDir, "tw_assignments"));
+        this.staging = new ContainerStaging(resourceDir);
+        recoverContainers();
+    }
+
+    /**
+     * Finishes or discards the containers that were being written when the process last stopped
+     */
+    private void recoverContainers() {
+        for(String containerSlug:staging.recover(logListener)) {
+            // TRICKY: an import may have been committed before it was indexed
+            try {
+                indexImportedContainer(ResourceContainer.load(new File(resourceDir, containerSlug)));
+            } catch (Exception e) {
+                logListener.onError("Failed to index the recovered container " + containerSlug, e);
+            }
+        }
     }
 
     /**
@@ -84,6 +113,7 @@ class API {
      * e.g. closing the db, etc.
      */
     public void tearDown() {
+        wordsAssignments.shutdown();
         if(this.sqLiteHelper != null) {
             this.sqLiteHelper.close();
             this.sqLiteHelper = null;
@@ -102,6 +132,14 @@ class API {
         }
     }
 
+    /**
+     * Returns the listener that receives log events
+     * @return
+     */
+    OnLogListener getLogger() {
+        return logListener;
+    }
+
     /**
      * Sets the host to use when injecting the global catalogs.
      * This is only valid until we migrate to the use api.
@@ -114,12 +152,82 @@ class API {
         this.globalCatalogHost = host;
     }
 
+    /**
+     * Sets the host of the legacy api used when indexing the tA and chunk catalogs.
+     * This is only valid until we migrate to the use api.
+     *
+     * This is also only currently used for tests
+     * @param host
+     */
+    @Deprecated
+    public void setLegacyServer(String host) {
+        this.legacyServerHost = host;
+    }
+
+    /**
+     * Sets how many catalogs may be downloaded at once while updating the sources.
+     * The downloaded catalogs are still indexed one at a time.
+     *
+     * @param workers the number of concurrent downloads
+     */
+    public void setUpdateConcurrency(int workers) {
+        this.updateConcurrency = Math.max(1, workers);
+    }
+
+    /**
+     * Sets how many models looked up by slug will be cached in memory
+     * @param maxEntries the number of models to cache. Use 0 to disable the cache.
+     */
+    public void setIndexCacheSize(int maxEntries) {
+        library.setCacheSize(maxEntries);
+    }
+
+    /**
+     * Sets the languages that are used in order when a project is not available in the requested language
+     * @param languageSlugs the source language slugs
+     * @throws Exception
+     */
+    public void setFallbackLanguages(String... languageSlugs) throws Exception {
+        library.setFallbackLanguages(languageSlugs);
+    }
+
+    /**
+     * Returns the usage statistics of the index cache
+     * @return
+     */
+    public IndexCacheStats getIndexCacheStats() {
+        return library.getCacheStats();
+    }
+
+    /**
+     * Sets the metrics that will receive the timings and counters of the index and api.
+     * Index calls are only timed when made through {@link #index()}.
+     *
+     * @param metrics the metrics or null to stop recording
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        this.meteredIndex = metrics == null ? null : MeteredIndex.wrap(library, metrics);
+        library.setMetrics(metrics);
+    }
+
+    /**
+     * Reports the duration of an api operation to the metrics
+     * @param operation the name of the operation
+     * @param start when the operation started
+     */
+    private void recordOperation(String operation, long start) {
+        Metrics m = metrics;
+        if(m != null) m.onOperation("API." + operation, System.nanoTime() - start);
+    }
+
     /**
      * Returns the read only index
      * @return
      */
     public Index index() {
-        return library;
+        Index index = meteredIndex;
+        return index != null ? index : library;
     }
 
     /**
@@ -129,18 +237,42 @@ class API {
      * @param listener an optional progress listener. This should receive progress id, total, completed
      */
     public void updateSources(String url, final OnProgressListener listener) throws Exception {
+        updateSources(url, false, listener);
+    }
+
+    /**
+     * Indexes the source content
+     *
+     * An incremental update compares the date_modified stamps in the catalogs against the indexed content
+     * and skips downloading and indexing anything that has not changed.
+     *
+     * @param url the entry resource api catalog
+     * @param incremental indicates only changed content should be indexed
+     * @param listener an optional progress listener. This should receive progress id, total, completed
+     * @return a summary of the changes
+     */
+    public UpdateReport updateSources(String url, boolean incremental, final OnProgressListener listener) throws Exception {
+        long start = System.nanoTime();
+        CatalogFetcher fetcher = new CatalogFetcher(updateConcurrency, library.getHttpValidators(), cacheDir, metrics);
+        ProgressReporter progress = new ProgressReporter(listener, library);
+        fetcher.setProgress(progress);
+        UpdateReport report = new UpdateReport();
         library.beginTransaction();
         try {
-            GetRequest getPrimaryCatalog = new GetRequest(new URL(url));
-            String data = getPrimaryCatalog.read();
-            if(getPrimaryCatalog.getResponseCode() != 200) throw new Exception(getPrimaryCatalog.getResponseMessage());
+            SourceStamps stamps = incremental ? SourceStamps.load(library) : null;
+            CatalogFetcher.Response primaryCatalog = fetcher.spool(url);
+            progress.report("catalog", ProgressEvent.Phase.FETCH, 1, 1);
             // process legacy catalog data
-            LegacyTools.processCatalog(library, data, listener);
+            LegacyTools.processCatalog(library, legacyServerHost, primaryCatalog, fetcher, stamps, report, progress);
         } catch(Exception e) {
             library.endTransaction(false);
             throw e;
+        } finally {
+            fetcher.shutdown();
         }
         library.endTransaction(true);
+        recordOperation("updateSources", start);
+        return report;
     }
 
     /**
@@ -149,14 +281,21 @@ class API {
      * @throws Exception
      */
     public void updateChunks(OnProgressListener listener) throws Exception {
+        long start = System.nanoTime();
+        CatalogFetcher fetcher = new CatalogFetcher(updateConcurrency, library.getHttpValidators(), cacheDir, metrics);
+        ProgressReporter progress = new ProgressReporter(listener, library);
+        fetcher.setProgress(progress);
         library.beginTransaction();
         try {
-            LegacyTools.processChunks(library, listener);
+            LegacyTools.processChunks(library, fetcher, progress);
         } catch (Exception e) {
             library.endTransaction(false);
             throw e;
+        } finally {
+            fetcher.shutdown();
         }
         library.endTransaction(true);
+        recordOperation("updateChunks", start);
     }
 
     /**
@@ -165,12 +304,16 @@ class API {
      * @throws Exception
      */
     public void updateCatalogs(OnProgressListener listener) throws Exception {
+        long start = System.nanoTime();
         // inject missing global catalogs
         LegacyTools.injectGlobalCatalogs(library, globalCatalogHost);
         List<Catalog> catalogs = library.getCatalogs();
+        ProgressReporter progress = new ProgressReporter(listener, library);
         for(Catalog c:catalogs) {
-            updateCatalog(c, listener);
+            updateCatalog(c, progress);
+            if(progress.isCanceled()) break;
         }
+        recordOperation("updateCatalogs", start);
     }
 
     /**
@@ -182,7 +325,7 @@ class API {
     public void updateCatalog(String slug) throws Exception{
         LegacyTools.injectGlobalCatalogs(library, globalCatalogHost);
         Catalog c = library.getCatalog(slug);
-        updateCatalog(c, null);
+        updateCatalog(c, new ProgressReporter(null, library));
     }
 
     /**
@@ -191,69 +334,165 @@ class API {
      * @param catalog the catalog being updated
      * @param listener an optional progress listener. This should receive progress id, total, completed
      */
-    private void updateCatalog(Catalog catalog, OnProgressListener listener) throws Exception {
+    private void updateCatalog(Catalog catalog, ProgressReporter listener) throws Exception {
         if(catalog == null) throw new Exception("Unknown catalog");
-        GetRequest request = new GetRequest(new URL(catalog.url));
-        String data = request.read();
-        if(request.getResponseCode() != 200) throw new Exception(request.getResponseMessage());
-        library.beginTransaction();
+        Map<String, HttpValidator> validators = new HashMap<>();
+        HttpValidator validator = library.getHttpValidator(catalog.url);
+        if(validator != null) validators.put(catalog.url, validator);
+        long start = System.nanoTime();
+        CatalogFetcher fetcher = new CatalogFetcher(1, validators, cacheDir, metrics);
+        fetcher.setProgress(listener);
         try {
-            switch (catalog.slug) {
-                case "langnames":
-                    library.clearTargetLanguages();
-                    indexTargetLanguageCatalog(data, listener);
-                    break;
-                case "new-language-questions":
-                    library.clearNewLanguageQuestions();
-                    indexNewLanguageQuestionsCatalog(data, listener);
-                    break;
-                case "temp-langnames":
-                    library.clearTempLanguages();
-                    indexTempLanguagesCatalog(data, listener);
-                    break;
-                case "approved-temp-langnames":
-                    library.clearApprovedTempLanguages();
-                    indexApprovedTempLanguagesCatalog(data, listener);
-                    break;
-                default:
-                    throw new Exception("Parsing this catalog has not been implemented");
+            CatalogFetcher.Response response = fetcher.spool(catalog.url);
+            listener.report(catalog.slug, ProgressEvent.Phase.FETCH, 1, 1);
+            updateCatalog(catalog, response, listener);
+        } finally {
+            fetcher.shutdown();
+        }
+        recordOperation("updateCatalog." + catalog.slug, start);
+    }
+
+    /**
+     * Indexes a downloaded global catalog
+     *
+     * TRICKY: catalogs that replace entire tables are loaded into staging tables
+     * and swapped in once complete so readers never see a partially loaded catalog.
+     *
+     * @param catalog the catalog being updated
+     * @param response the downloaded catalog
+     * @param listener an optional progress listener
+     * @throws Exception
+     */
+    private void updateCatalog(Catalog catalog, CatalogFetcher.Response response, ProgressReporter listener) throws Exception {
+        String[] stagingTables = response.isModified() ? getStagingTables(catalog.slug) : null;
+        try {
+            boolean complete = true;
+            if(stagingTables != null) {
+                library.beginStaging(stagingTables);
+                library.beginTransaction();
+                try {
+                    complete = indexCatalog(catalog, response, listener);
+                } catch (Exception e) {
+                    library.endTransaction(false);
+                    throw e;
+                }
+                library.endTransaction(true);
             }
-        } catch (Exception e) {
-            library.endTransaction(false);
-            throw e;
+
+            library.beginTransaction();
+            try {
+                if(response.isModified()) {
+                    if(stagingTables == null) {
+                        complete = indexCatalog(catalog, response, listener);
+                    } else if(complete) {
+                        library.commitStaging();
+                    }
+                    if(complete && catalog.slug.equals("temp-langnames")) {
+                        // TRICKY: the approvals are linked to the temp languages so they must be indexed again as well
+                        Catalog approved = library.getCatalog("approved-temp-langnames");
+                        if(approved != null) library.removeHttpValidator(approved.url);
+                    }
+                }
+                if(complete) {
+                    library.setHttpValidator(response.validator);
+                    int modifiedAt = response.validator.getLastModifiedSeconds();
+                    if(modifiedAt == 0) modifiedAt = (int)(System.currentTimeMillis() / 1000);
+                    if(response.isModified()) library.addCatalog(new Catalog(catalog.slug, catalog.url, modifiedAt));
+                }
+            } catch (Exception e) {
+                library.endTransaction(false);
+                throw e;
+            }
+            library.endTransaction(true);
+        } finally {
+            library.discardStaging();
+        }
+    }
+
+    /**
+     * Returns the tables that are entirely replaced by a global catalog
+     * @param catalogSlug
+     * @return the tables with parents before children or null if the catalog is applied in place
+     */
+    private static String[] getStagingTables(String catalogSlug) {
+        switch (catalogSlug) {
+            case "langnames":
+                return new String[]{"target_language"};
+            case "new-language-questions":
+                return new String[]{"questionnaire", "question", "questionnaire_data_field"};
+            case "temp-langnames":
+                return new String[]{"temp_target_language"};
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Parses a global catalog and indexes it
+     * @param catalog
+     * @param response
+     * @param listener
+     * @return false if the operation was canceled
+     * @throws Exception
+     */
+    private boolean indexCatalog(Catalog catalog, CatalogFetcher.Response response, ProgressReporter listener) throws Exception {
+        switch (catalog.slug) {
+            case "langnames":
+                return indexTargetLanguageCatalog(response, listener);
+            case "new-language-questions":
+                return indexNewLanguageQuestionsCatalog(response, listener);
+            case "temp-langnames":
+                return indexTempLanguagesCatalog(response, listener);
+            case "approved-temp-langnames":
+                library.clearApprovedTempLanguages();
+                return indexApprovedTempLanguagesCatalog(response, listener);
+            default:
+                throw new Exception("Parsing this catalog has not been implemented");
         }
-        library.endTransaction(true);
     }
 
     /**
      * parses the target language catalog and indexes it
      * @param data
      * @param listener
+     * @return false if the operation was canceled
      */
-    private void indexTargetLanguageCatalog(String data, OnProgressListener listener) throws Exception {
-        JSONArray languages = new JSONArray(data);
-        for(int i = 0; i < languages.length(); i ++) {
-            JSONObject l = languages.getJSONObject(i);
-            boolean isGateway = l.has("gl") ? l.getBoolean("gl") : false;
-            TargetLanguage language = new TargetLanguage(l.getString("lc"), l.getString("ln"),
-                    l.getString("ang"), l.getString("ld"), l.getString("lr"), isGateway);
-            if(!library.addTargetLanguage(language)) {
-                logListener.onWarning("Failed to add the target language: " + language.slug);
-            }
-            if(listener != null) {
-                if(!listener.onProgress("langnames", languages.length(), i + 1)) break;
+    private boolean indexTargetLanguageCatalog(CatalogFetcher.Response response, ProgressReporter listener) throws Exception {
+        Library.BatchWriter batch = library.getBatchWriter();
+        // TRICKY: the total is estimated from the bytes read so the catalog does not have to be counted first
+        long length = response.length();
+        CountingInputStream in = response.openStream();
+        JsonArrayReader languages = new JsonArrayReader(new InputStreamReader(in, "UTF-8"));
+        long complete = 0;
+        try {
+            while(languages.hasNext()) {
+                JSONObject l = languages.next();
+                boolean isGateway = l.has("gl") ? l.getBoolean("gl") : false;
+                TargetLanguage language = new TargetLanguage(l.getString("lc"), l.getString("ln"),
+                        l.getString("ang"), l.getString("ld"), l.getString("lr"), isGateway);
+                if(!batch.addTargetLanguage(language)) {
+                    logListener.onWarning("Failed to add the target language: " + language.slug);
+                }
+                complete ++;
+                if(!listener.report("langnames", ProgressEvent.Phase.PARSE, length, Math.min(in.getCount(), length))) return false;
+                if(!listener.onProgress("langnames", in.estimateTotal(complete, length), complete)) return false;
+                library.yieldSafely();
             }
-            library.yieldSafely();
+        } finally {
+            languages.close();
         }
+        return listener.report("langnames", ProgressEvent.Phase.PARSE, length, length)
+                && listener.onProgress("langnames", complete, complete);
     }
 
     /**
      * Parses the new language questions catalog and indexes it
      * @param data
      * @param listener
+     * @return false if the operation was canceled
      */
-    private void indexNewLanguageQuestionsCatalog(String data, OnProgressListener listener) throws Exception {
-        JSONObject obj = new JSONObject(data);
+    private boolean indexNewLanguageQuestionsCatalog(CatalogFetcher.Response response, ProgressReporter listener) throws Exception {
+        JSONObject obj = new JSONObject(response.readBody());
         JSONArray languages = obj.getJSONArray("languages");
         for(int i = 0; i < languages.length(); i ++) {
             JSONObject qJson = languages.getJSONObject(i);
@@ -286,48 +525,62 @@ class API {
                 library.addQuestion(question, questionnaireId);
 
                 // broadcast itemized progress if there is only one questionnaire
-                if(languages.length() == 1 && listener != null) {
-                    if(!listener.onProgress("new-language-questions", qJson.getJSONArray("questions").length(), j + 1)) break;
+                if(languages.length() == 1) {
+                    if(!listener.onProgress("new-language-questions", qJson.getJSONArray("questions").length(), j + 1)) return false;
                 }
                 library.yieldSafely();
             }
             // broadcast overall progress if there are multiple questionnaires.
-            if(languages.length() > 1 && listener != null) {
-                if(!listener.onProgress("new-language-questions", qJson.getJSONArray("questions").length(), i + 1)) break;
+            if(languages.length() > 1) {
+                if(!listener.onProgress("new-language-questions", qJson.getJSONArray("questions").length(), i + 1)) return false;
             }
             library.yieldSafely();
         }
+        return true;
     }
 
     /**
      * Parses the temporary language codes catalog and indexes it
      * @param data
      * @param listener
+     * @return false if the operation was canceled
      */
-    private void indexTempLanguagesCatalog(String data, OnProgressListener listener) throws Exception {
-        JSONArray languages = new JSONArray(data);
-        for(int i = 0; i < languages.length(); i ++) {
-            JSONObject l = languages.getJSONObject(i);
-            boolean isGateway = l.has("gl") ? l.getBoolean("gl") : false;
-            TargetLanguage language = new TargetLanguage(l.getString("lc"), l.getString("ln"),
-                    l.getString("ang"), l.getString("ld"), l.getString("lr"), isGateway);
-            if(!library.addTempTargetLanguage(language)) {
-                logListener.onWarning("Failed to add the temp target language: " + language.slug);
-            }
-            if(listener != null) {
-                if(!listener.onProgress("temp-langnames", languages.length(), i + 1)) break;
+    private boolean indexTempLanguagesCatalog(CatalogFetcher.Response response, ProgressReporter listener) throws Exception {
+        Library.BatchWriter batch = library.getBatchWriter();
+        // TRICKY: the total is estimated from the bytes read so the catalog does not have to be counted first
+        long length = response.length();
+        CountingInputStream in = response.openStream();
+        JsonArrayReader languages = new JsonArrayReader(new InputStreamReader(in, "UTF-8"));
+        long complete = 0;
+        try {
+            while(languages.hasNext()) {
+                JSONObject l = languages.next();
+                boolean isGateway = l.has("gl") ? l.getBoolean("gl") : false;
+                TargetLanguage language = new TargetLanguage(l.getString("lc"), l.getString("ln"),
+                        l.getString("ang"), l.getString("ld"), l.getString("lr"), isGateway);
+                if(!batch.addTempTargetLanguage(language)) {
+                    logListener.onWarning("Failed to add the temp target language: " + language.slug);
+                }
+                complete ++;
+                if(!listener.report("temp-langnames", ProgressEvent.Phase.PARSE, length, Math.min(in.getCount(), length))) return false;
+                if(!listener.onProgress("temp-langnames", in.estimateTotal(complete, length), complete)) return false;
+                library.yieldSafely();
             }
-            library.yieldSafely();
+        } finally {
+            languages.close();
         }
+        return listener.report("temp-langnames", ProgressEvent.Phase.PARSE, length, length)
+                && listener.onProgress("temp-langnames", complete, complete);
     }
 
     /**
      * Parses the approved temporary language codes catalog and indexes it
      * @param data
      * @param listener
+     * @return false if the operation was canceled
      */
-    private void indexApprovedTempLanguagesCatalog(String data, OnProgressListener listener) throws Exception {
-        JSONArray languages = new JSONArray(data);
+    private boolean indexApprovedTempLanguagesCatalog(CatalogFetcher.Response response, ProgressReporter listener) throws Exception {
+        JSONArray languages = new JSONArray(response.readBody());
         for(int i = 0; i < languages.length(); i ++) {
             JSONObject l = languages.getJSONObject(i);
             Iterator<String> keys = l.keys();
@@ -337,11 +590,10 @@ class API {
                     logListener.onWarning("Failed to approve the temp target language: " + key + " as " + l.getString(key));
                 }
             }
-            if(listener != null) {
-                if(!listener.onProgress("approved-temp-langnames", languages.length(), i + 1)) break;
-            }
+            if(!listener.onProgress("approved-temp-langnames", languages.length(), i + 1)) return false;
             library.yieldSafely();
         }
+        return true;
     }
 
     /**
@@ -358,19 +610,23 @@ class API {
      * @return The new resource container
      */
     public ResourceContainer downloadResourceContainer(String sourceLanguageSlug, String projectSlug, String resourceSlug) throws Exception {
+        long start = System.nanoTime();
+        Resource r = library.getResource(sourceLanguageSlug, projectSlug, resourceSlug);
+        if(r == null) throw new Exception("Unknown resource");
+        // TRICKY: the tW assignments are downloaded while the resource is downloading
+        Future<JSONObject> assignments = fetchWordsAssignments(r, projectSlug);
         File path = downloadFutureCompatibleResourceContainer(sourceLanguageSlug, projectSlug, resourceSlug);
 
         // migrate to resource container
-        Resource r = library.getResource(sourceLanguageSlug, projectSlug, resourceSlug);
-        if(r == null) {
+        ResourceContainer container;
+        try {
+            container = convertLegacyResource(sourceLanguageSlug, projectSlug, resourceSlug, path, assignments);
+        } finally {
+            // clean downloaded file
             FileUtil.deleteQuietly(path);
-            throw new Exception("Unknown resource");
         }
-        String data = FileUtil.readFileToString(path);
-
-        // clean downloaded file
-        FileUtil.deleteQuietly(path);
-        return convertLegacyResource(sourceLanguageSlug, projectSlug, resourceSlug, data);
+        recordOperation("downloadResourceContainer", start);
+        return container;
     }
 
     /**
@@ -378,6 +634,9 @@ class API {
      * This expects a correctly formatted resource container
      * and will download it directly to the disk
      *
+     * If the download is interrupted the partial file is kept and the next attempt will resume where it left off.
+     * The existing container is only replaced once the download is complete.
+     *
      * once the api can deliver proper resource containers this method
      * should be renamed to downloadContainer and the current downloadResourceContainer method removed.
      *
@@ -395,26 +654,37 @@ class API {
         File containerDir = new File(resourceDir, containerSlug);
         File destFile = new File(resourceDir, containerSlug + "." + ResourceContainer.fileExtension);
 
-        FileUtil.deleteQuietly(destFile);
-        FileUtil.deleteQuietly(containerDir);
-
         destFile.getParentFile().mkdirs();
         if(containerFormat.url == null || containerFormat.url.isEmpty()) throw new Exception("Missing resource format url");
-        GetRequest request = new GetRequest(new URL(containerFormat.url));
+
+        // TRICKY: a failed download is kept next to the archive so it can be resumed on the next attempt.
+        // The open container is out of date once the archive is replaced so it is replaced in the same stage.
+        ContainerStaging.Stage stage = staging.begin(destFile.getName(), false, containerDir.getName());
         try {
-            request.download(destFile);
-        } catch(Exception e) {
-            FileUtil.deleteQuietly(destFile);
-            throw e;
-        }
-        if(request.getResponseCode() != 200) {
-            FileUtil.deleteQuietly(destFile);
-            throw new Exception(request.getResponseMessage());
+            ResumableDownload download = new ResumableDownload(containerFormat.url, stage.getPath(), destFile);
+            download.setMetrics(metrics);
+            download.run();
+            stage.commit();
+        } finally {
+            stage.finish();
         }
 
         return destFile;
     }
 
+    /**
+     * Begins loading the tW assignments of a legacy resource
+     * @param resource
+     * @param projectSlug
+     * @return the assignments or null if the resource does not have any
+     */
+    private Future<JSONObject> fetchWordsAssignments(Resource resource, String projectSlug) {
+        Object url = resource._legacyData.get(LEGACY_WORDS_ASSIGNMENTS_URL);
+        if(url == null || url.equals("")) return null;
+        Resource.Format format = getResourceContainerFormat(resource.formats);
+        return wordsAssignments.get((String)url, projectSlug, format == null ? 0 : format.modifiedAt);
+    }
+
     /**
      * Returns the first resource container format found in the list.
      * E.g. the array may contain binary formats such as pdf, mp3, etc. This basically filters those.
@@ -446,8 +716,78 @@ class API {
     @Deprecated
     public ResourceContainer convertLegacyResource(String sourceLanguageSlug, String projectSlug, String resourceSlug, String data) throws Exception {
         String containerSlug = ContainerTools.makeSlug(sourceLanguageSlug, projectSlug, resourceSlug);
-        File containerDir = new File(resourceDir, containerSlug);
+        Resource resource = library.getResource(sourceLanguageSlug, projectSlug, resourceSlug);
+        if(resource == null) throw new Exception("Missing resource");
+        JSONObject properties = getLegacyResourceProperties(sourceLanguageSlug, projectSlug, resourceSlug,
+                fetchWordsAssignments(resource, projectSlug));
+        return convertLegacyResource(containerSlug, data, properties);
+    }
 
+    /**
+     * Converts a downloaded legacy resource catalog into a resource container.
+     *
+     * Books are converted while the catalog is read so it is never held in memory.
+     * The other resources are read into a string for the container tools.
+     *
+     * @param sourceLanguageSlug
+     * @param projectSlug
+     * @param resourceSlug
+     * @param dataFile the legacy data that will be converted
+     * @param wordsAssignments the tW assignments of the resource. This may be null.
+     * @return
+     */
+    private ResourceContainer convertLegacyResource(String sourceLanguageSlug, String projectSlug, String resourceSlug, File dataFile, Future<JSONObject> wordsAssignments) throws Exception {
+        String containerSlug = ContainerTools.makeSlug(sourceLanguageSlug, projectSlug, resourceSlug);
+        JSONObject properties = getLegacyResourceProperties(sourceLanguageSlug, projectSlug, resourceSlug, wordsAssignments);
+        if(!LegacyBookConverter.isBook(properties)) {
+            return convertLegacyResource(containerSlug, FileUtil.readFileToString(dataFile, "UTF-8"), properties);
+        }
+
+        ContainerStaging.Stage stage = staging.begin(containerSlug, false);
+        Reader data = new BufferedReader(new InputStreamReader(new FileInputStream(dataFile), "UTF-8"));
+        try {
+            LegacyBookConverter.convert(data, stage.getPath(), properties);
+            stage.commit();
+        } finally {
+            data.close();
+            stage.finish();
+        }
+        return ResourceContainer.load(stage.getTarget());
+    }
+
+    /**
+     * Converts the legacy data into a staged container and then replaces the existing container with it
+     * @param containerSlug
+     * @param data the legacy data that will be converted
+     * @param properties the container properties
+     * @return the new container
+     * @throws Exception
+     */
+    private ResourceContainer convertLegacyResource(String containerSlug, String data, JSONObject properties) throws Exception {
+        ContainerStaging.Stage stage = staging.begin(containerSlug, false);
+        try {
+            if(LegacyBookConverter.isBook(properties)) {
+                LegacyBookConverter.convert(new StringReader(data), stage.getPath(), properties);
+            } else {
+                ContainerTools.convertResource(data, stage.getPath(), properties);
+            }
+            stage.commit();
+        } finally {
+            stage.finish();
+        }
+        return ResourceContainer.load(stage.getTarget());
+    }
+
+    /**
+     * Builds the container properties of a legacy resource
+     * @param sourceLanguageSlug
+     * @param projectSlug
+     * @param resourceSlug
+     * @param wordsAssignments the tW assignments of the resource. This may be null.
+     * @return
+     * @throws Exception
+     */
+    private JSONObject getLegacyResourceProperties(String sourceLanguageSlug, String projectSlug, String resourceSlug, Future<JSONObject> wordsAssignments) throws Exception {
         SourceLanguage language = library.getSourceLanguage(sourceLanguageSlug);
         if(language == null) throw new Exception("Missing language");
         JSONObject lJson = language.toJSON();
@@ -475,43 +815,15 @@ class API {
         properties.put("modified_at", format.modifiedAt);
 
         // grab the tW assignments
-        if(resource._legacyData.containsKey(LEGACY_WORDS_ASSIGNMENTS_URL)
-                && resource._legacyData.get(LEGACY_WORDS_ASSIGNMENTS_URL) != null
-                && !resource._legacyData.get(LEGACY_WORDS_ASSIGNMENTS_URL).equals("")) {
-            GetRequest request = new GetRequest(new URL((String)resource._legacyData.get(LEGACY_WORDS_ASSIGNMENTS_URL)));
-            String wordsData = null;
+        if(wordsAssignments != null) {
             try {
-                wordsData = request.read();
+                properties.put("tw_assignments", CatalogFetcher.await(wordsAssignments));
             } catch (Exception e) {
-                e.printStackTrace();
-            }
-            if(wordsData != null && request.getResponseCode() < 300) {
-                try {
-                    JSONObject words = new JSONObject(wordsData);
-                    JSONObject assignmentsJson = new JSONObject();
-                    for(int c = 0; c < words.getJSONArray("chapters").length(); c ++) {
-                        JSONObject chapter = words.getJSONArray("chapters").getJSONObject(c);
-                        JSONObject chapterAssignment = new JSONObject();
-                        for(int f = 0; f < chapter.getJSONArray("frames").length(); f ++) {
-                            JSONObject frame = chapter.getJSONArray("frames").getJSONObject(f);
-                            JSONArray frameAssignment = new JSONArray();
-                            for(int w = 0; w < frame.getJSONArray("items").length(); w ++) {
-                                JSONObject word = frame.getJSONArray("items").getJSONObject(w);
-                                String twProjSlug = projectSlug.equals("obs") ? "bible-obs" : "bible";
-                                frameAssignment.put("//" + twProjSlug + "/tw/" + word.getString("id"));
-                            }
-                            chapterAssignment.put(LegacyTools.normalizeSlug(frame.getString("id")), frameAssignment);
-                        }
-                        assignmentsJson.put(LegacyTools.normalizeSlug(chapter.getString("id")), chapterAssignment);
-                    }
-                    properties.put("tw_assignments", assignmentsJson);
-                } catch (Exception e) {
-                    logListener.onWarning(e.getMessage());
-                }
+                logListener.onWarning(e.getMessage());
             }
         }
 
-        return ContainerTools.convertResource(data, containerDir, properties);
+        return properties;
     }
 
     /**
@@ -525,8 +837,23 @@ class API {
      * @return the imported resource container
      */
     public ResourceContainer importResourceContainer(File directory) throws Exception {
+        return importResourceContainer(directory, TransferMode.COPY);
+    }
+
+    /**
+     * Transfers a valid resource container into the resource directory and adds an entry to the index.
+     * If the container already exists in the system it will be overwritten.
+     * Invalid containers will cause this method to return an error.
+     * The container *must* be open (uncompressed).
+     * Containers imported in this manner will have a flag set to indicate it was manually imported.
+     *
+     * @param directory the path to the resource container directory that will be imported
+     * @param mode how the container files are transferred into the resource directory
+     * @return the imported resource container
+     */
+    public ResourceContainer importResourceContainer(File directory, TransferMode mode) throws Exception {
+        long start = System.nanoTime();
         ResourceContainer rc = ResourceContainer.load(directory);
-        File destination = new File(resourceDir, rc.slug);
 
         // validate project
         // TRICKY: we currently only support importing known projects. Only the language and resource can vary.
@@ -535,13 +862,53 @@ class API {
 
         if(!rc.info.has("project")) throw new InvalidRCException("Missing field: project");
 
-        // delete the old container
-        deleteResourceContainer(rc.slug);
+        // TRICKY: the old container is only replaced once the new one is complete and indexed.
+        // The closed container is out of date so it is replaced in the same stage.
+        ContainerStaging.Stage stage = staging.begin(rc.slug, true, rc.slug + "." + ResourceContainer.fileExtension);
+        try {
+            FileUtil.transferDirectory(directory, stage.getPath(), mode);
+            stage.commit();
+        } catch (IOException e) {
+            if(mode == TransferMode.MOVE) restoreMovedContainer(stage.getPath(), directory);
+            stage.finish();
+            throw e;
+        }
+        // add entry to the index
+        try {
+            indexImportedContainer(rc);
+        } catch (Exception e) {
+            // TRICKY: a moved container must be given back before the stage restores the previous one
+            if(mode == TransferMode.MOVE) restoreMovedContainer(stage.getTarget(), directory);
+            stage.rollback();
+            throw e;
+        }
+        stage.finish();
 
-        // copy new container
-        FileUtil.copyDirectory(directory, destination, null);
+        ResourceContainer container = openResourceContainer(rc.language.slug, rc.project.slug, rc.resource.slug);
+        recordOperation("importResourceContainer", start);
+        return container;
+    }
 
-        // add entry to the index
+    /**
+     * Moves a container back to where it was imported from after the import failed
+     * @param container the current location of the container
+     * @param directory the directory the container was moved from
+     */
+    private void restoreMovedContainer(File container, File directory) {
+        if(!container.exists() || directory.exists()) return;
+        try {
+            FileUtil.transferDirectory(container, directory, TransferMode.MOVE);
+        } catch (IOException e) {
+            logListener.onError("Failed to restore the imported container to " + directory, e);
+        }
+    }
+
+    /**
+     * Adds an imported resource container to the index
+     * @param rc the imported container
+     * @throws Exception
+     */
+    private void indexImportedContainer(ResourceContainer rc) throws Exception {
         Exception indexError = null;
         library.beginTransaction();
         try {
@@ -573,8 +940,6 @@ class API {
         }
         library.endTransaction(indexError == null);
         if(indexError != null) throw indexError;
-
-        return openResourceContainer(rc.language.slug, rc.project.slug, rc.resource.slug);
     }
 
     /**
@@ -585,6 +950,19 @@ class API {
      * @param resourceSlug
      */
     public void exportResourceContainer(File destFile, String languageSlug, String projectSlug, String resourceSlug) throws Exception {
+        exportResourceContainer(destFile, languageSlug, projectSlug, resourceSlug, TransferMode.COPY);
+    }
+
+    /**
+     * Exports the closed resource container
+     * @param destFile the destination file
+     * @param languageSlug
+     * @param projectSlug
+     * @param resourceSlug
+     * @param mode how the archive is transferred. Moving the archive is not supported since it belongs to the index.
+     */
+    public void exportResourceContainer(File destFile, String languageSlug, String projectSlug, String resourceSlug, TransferMode mode) throws Exception {
+        if(mode == TransferMode.MOVE) throw new IllegalArgumentException("Resource containers cannot be moved out of the index");
         String slug = ContainerTools.makeSlug(languageSlug, projectSlug, resourceSlug);
         File srcDir = new File(resourceDir, slug);
         File srcFile = new File(srcDir + "." + ResourceContainer.fileExtension);
@@ -593,7 +971,7 @@ class API {
         if(!srcFile.exists() && srcDir.isDirectory()) ResourceContainer.close(srcDir);
         if(!srcFile.exists()) throw new MissingRCException("The resource container could not be found at " + srcFile);
 
-        FileUtil.copyFile(srcFile, destFile);
+        FileUtil.transferFile(srcFile, destFile, mode);
     }
 
     /**
@@ -694,7 +1072,8 @@ class API {
     }
 
     /**
-     * Deletes a resource container from the disk
+     * Deletes a resource container from the disk.
+     * If the container was imported it will no longer be listed as imported.
      * @param containerSlug
      */
     public void deleteResourceContainer(String containerSlug) {
@@ -706,5 +1085,11 @@ class API {
         if(archive.exists() && archive.isFile()) {
             FileUtil.deleteQuietly(archive);
         }
+        try {
+            String[] slugs = ContainerTools.explodeSlug(containerSlug);
+            library.removeImportedFormats(slugs[0], slugs[1], slugs[2]);
+        } catch (Exception e) {
+            logListener.onError("Failed to remove the index of the deleted container " + containerSlug, e);
+        }
     }
 }
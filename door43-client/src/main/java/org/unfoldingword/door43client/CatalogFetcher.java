@@ -0,0 +1,348 @@
+package org.unfoldingword.door43client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads catalog documents on a bounded pool of worker threads.
+ *
+ * TRICKY: workers only perform network i/o and must never touch the {@link Library}.
+ * All writes are applied by the thread that owns the update transaction,
+ * otherwise the workers would block on the database lock held by that transaction.
+ * For the same reason the cache validators are loaded up front by the writer.
+ */
+class CatalogFetcher {
+    public static final int DEFAULT_WORKERS = 4;
+    /**
+     * The time in milliseconds to wait for a connection to the server
+     */
+    public static final int CONNECT_TIMEOUT = 15000;
+    /**
+     * The time in milliseconds to wait for the server to send more data.
+     * Without this a stalled response blocks the worker forever.
+     */
+    public static final int READ_TIMEOUT = 30000;
+
+    private final ExecutorService executor;
+    private final int workers;
+    private final Map<String, HttpValidator> validators;
+    private final File tempDir;
+    private final Metrics metrics;
+    private volatile ProgressReporter progress = null;
+
+    /**
+     * Creates a new fetcher that performs conditional requests
+     * @param workers the maximum number of concurrent downloads
+     * @param validators the validators of previously indexed responses keyed by url
+     * @param cacheDir the directory where large catalogs will be spooled. If null catalogs are kept in memory.
+     */
+    public CatalogFetcher(int workers, Map<String, HttpValidator> validators, File cacheDir) {
+        this(workers, validators, cacheDir, null);
+    }
+
+    /**
+     * Creates a new fetcher that performs conditional requests
+     * @param workers the maximum number of concurrent downloads
+     * @param validators the validators of previously indexed responses keyed by url
+     * @param cacheDir the directory where large catalogs will be spooled. If null catalogs are kept in memory.
+     * @param metrics receives the requests. This may be null.
+     */
+    public CatalogFetcher(int workers, Map<String, HttpValidator> validators, File cacheDir, Metrics metrics) {
+        if(workers < 1) workers = 1;
+        this.metrics = metrics;
+        this.workers = workers;
+        this.validators = validators;
+        this.tempDir = cacheDir == null ? null : new File(cacheDir, "catalogs-" + UUID.randomUUID().toString());
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "door43-catalog-fetch-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Sets the reporter that will receive the number of bytes downloaded
+     * @param progress
+     */
+    public void setProgress(ProgressReporter progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Queues a url to be downloaded
+     * @param url the url to download
+     * @return the pending response
+     */
+    public Future<Response> fetch(final String url) {
+        return submit(new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return download(url);
+            }
+        });
+    }
+
+    /**
+     * Returns the maximum number of concurrent downloads
+     * @return
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Queues some work on the fetch pool.
+     * This is useful for chaining parsing and follow up downloads onto a fetch.
+     *
+     * @param task the work to perform. This must not access the library.
+     * @param <T>
+     * @return the pending result
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Waits for a pending fetch to complete.
+     * Errors thrown by the worker are re-thrown on the calling thread.
+     *
+     * @param future the pending fetch
+     * @param <T>
+     * @return the result of the fetch
+     * @throws Exception
+     */
+    public static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof Exception) throw (Exception)cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the workers and abandons any pending fetches.
+     * This should always be called once the fetcher is no longer needed.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        if(tempDir != null) FileUtil.deleteQuietly(tempDir);
+    }
+
+    /**
+     * Performs a blocking download of the url on the calling thread.
+     * Work running on the pool should use this rather than waiting on another fetch
+     * so the workers cannot end up waiting on each other.
+     *
+     * If the url has been indexed before a conditional request is made.
+     * Responses that are not modified or have the same content as before will not include a body.
+     *
+     * @param url the url to download
+     * @return the response
+     * @throws Exception
+     */
+    public Response download(String url) throws Exception {
+        return request(url, false);
+    }
+
+    /**
+     * Performs a blocking download of the url to a temporary file on the calling thread.
+     * Use this for catalogs that are too large to hold in memory and read them with {@link Response#openReader()}.
+     *
+     * @param url the url to download
+     * @return the response
+     * @throws Exception
+     */
+    public Response spool(String url) throws Exception {
+        return request(url, tempDir != null);
+    }
+
+    private Response request(String url, boolean toFile) throws Exception {
+        long start = System.nanoTime();
+        int code = -1;
+        long bytes = 0;
+        HttpValidator cached = validators.get(url);
+        HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        try {
+            if(cached != null) {
+                if(cached.etag != null) conn.setRequestProperty("If-None-Match", cached.etag);
+                if(cached.lastModified != null) conn.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+            code = conn.getResponseCode();
+            if(code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                return new Response(null, null, cached);
+            }
+            if(code != HttpURLConnection.HTTP_OK) throw new Exception(conn.getResponseMessage());
+            ProgressReporter progress = this.progress;
+            if(progress != null) progress.addContentLength(conn.getContentLength());
+
+            File file = null;
+            OutputStream out;
+            if(toFile) {
+                FileUtil.forceMkdir(tempDir);
+                file = File.createTempFile("catalog", ".json", tempDir);
+                out = new FileOutputStream(file);
+            } else {
+                out = new ByteArrayOutputStream();
+            }
+            String hash;
+            try {
+                hash = transfer(conn.getInputStream(), out, progress);
+            } catch (Exception e) {
+                FileUtil.closeQuietly(out);
+                FileUtil.deleteQuietly(file);
+                throw e;
+            }
+            out.close();
+            bytes = toFile ? file.length() : ((ByteArrayOutputStream)out).size();
+
+            HttpValidator validator = new HttpValidator(url, conn.getHeaderField("ETag"),
+                    conn.getHeaderField("Last-Modified"), hash);
+            // TRICKY: some servers do not support conditional requests so we compare the content as well
+            if(cached != null && validator.contentHash.equals(cached.contentHash)) {
+                FileUtil.deleteQuietly(file);
+                return new Response(null, null, validator);
+            }
+            if(toFile) {
+                return new Response(null, file, validator);
+            } else {
+                return new Response(((ByteArrayOutputStream)out).toString("UTF-8"), null, validator);
+            }
+        } finally {
+            conn.disconnect();
+            if(metrics != null) metrics.onHttpRequest(url, code, bytes, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Copies the stream while hashing the content
+     * @param in
+     * @param out
+     * @param progress receives the number of bytes copied. This may be null.
+     * @return the hex encoded hash of the content
+     * @throws Exception
+     */
+    private static String transfer(InputStream in, OutputStream out, ProgressReporter progress) throws Exception {
+        MessageDigest digest = HttpValidator.newDigest();
+        byte[] buffer = new byte[8192];
+        try {
+            int n;
+            while((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+                if(progress != null) progress.addBytes(n);
+            }
+        } finally {
+            in.close();
+        }
+        return HttpValidator.toHex(digest.digest());
+    }
+
+    /**
+     * A downloaded catalog
+     */
+    public static class Response {
+        /**
+         * The response body. This will be null if the catalog has not changed or was spooled to a file.
+         */
+        public final String body;
+        /**
+         * The file containing the response body if it was spooled to the disk.
+         */
+        public final File file;
+        /**
+         * The validator to store once the response has been indexed
+         */
+        public final HttpValidator validator;
+
+        private Response(String body, File file, HttpValidator validator) {
+            this.body = body;
+            this.file = file;
+            this.validator = validator;
+        }
+
+        /**
+         * Checks if the catalog has changed since it was last indexed
+         * @return
+         */
+        public boolean isModified() {
+            return body != null || file != null;
+        }
+
+        /**
+         * Opens a reader on the response body
+         * @return
+         * @throws IOException
+         */
+        public Reader openReader() throws IOException {
+            if(file != null) return new InputStreamReader(new FileInputStream(file), "UTF-8");
+            return new StringReader(body);
+        }
+
+        /**
+         * Opens the response body as a stream that counts the bytes read from it.
+         * Compare the count to {@link #length()} to report the progress of reading the body.
+         * @return
+         * @throws IOException
+         */
+        public CountingInputStream openStream() throws IOException {
+            if(file != null) return new CountingInputStream(new FileInputStream(file));
+            return new CountingInputStream(new ByteArrayInputStream(body.getBytes("UTF-8")));
+        }
+
+        /**
+         * Returns the size of the response body in bytes
+         * @return
+         * @throws IOException
+         */
+        public long length() throws IOException {
+            if(file != null) return file.length();
+            return body.getBytes("UTF-8").length;
+        }
+
+        /**
+         * Reads the entire response body into memory
+         * @return
+         * @throws IOException
+         */
+        public String readBody() throws IOException {
+            if(file != null) return FileUtil.readFileToString(file);
+            return body;
+        }
+
+        /**
+         * Removes the spooled response body from the disk
+         */
+        public void release() {
+            if(file != null) FileUtil.deleteQuietly(file);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package org.unfoldingword.door43client;
+
+import org.unfoldingword.door43client.models.Category;
+import org.unfoldingword.door43client.models.CategoryEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory tree of the categories along with the projects in each category.
+ * This is an immutable snapshot. When the categories, projects or resources change a new tree should be built.
+ *
+ * The projects in a category are grouped by slug across all of the source languages
+ * and remember the translate modes of their resources so they can be filtered without going back to the database.
+ * Each category also keeps the projects of all it's sub-categories
+ * so categories can be filtered by what they contain at any depth.
+ */
+class CategoryTree {
+    private final Map<Long, Node> nodes;
+    private final Map<Long, List<Node>> children;
+    private final Map<Long, List<ProjectGroup>> projects;
+    private final Map<String, Long> projectCategories;
+
+    private CategoryTree(Builder builder) {
+        this.nodes = builder.nodes;
+        this.projectCategories = builder.projectCategories;
+
+        this.children = new HashMap<>();
+        for(Node node:nodes.values()) {
+            List<Node> siblings = children.get(node.parentId);
+            if(siblings == null) {
+                siblings = new ArrayList<>();
+                children.put(node.parentId, siblings);
+            }
+            siblings.add(node);
+        }
+        for(List<Node> siblings:children.values()) {
+            Collections.sort(siblings, new Comparator<Node>() {
+                @Override
+                public int compare(Node lhs, Node rhs) {
+                    return lhs.slug.compareTo(rhs.slug);
+                }
+            });
+        }
+
+        this.projects = new HashMap<>();
+        for(Map.Entry<Long, Map<String, ProjectGroup>> entry:builder.groups.entrySet()) {
+            List<ProjectGroup> groups = new ArrayList<>(entry.getValue().values());
+            Collections.sort(groups, new Comparator<ProjectGroup>() {
+                @Override
+                public int compare(ProjectGroup lhs, ProjectGroup rhs) {
+                    if(lhs.sort != rhs.sort) return lhs.sort < rhs.sort ? -1 : 1;
+                    return lhs.slug.compareTo(rhs.slug);
+                }
+            });
+            projects.put(entry.getKey(), groups);
+
+            // index the projects under every ancestor of their category
+            Node node = nodes.get(entry.getKey());
+            for(int depth = 0; node != null && depth < nodes.size(); depth ++) {
+                node.descendants.addAll(groups);
+                node = nodes.get(node.parentId);
+            }
+        }
+    }
+
+    /**
+     * Returns the categories and projects directly within a category.
+     * Names are given in the requested language if possible, otherwise in English or any other available language.
+     *
+     * @param parentCategoryId the category to list or 0 for the top level
+     * @param languageSlug the preferred language of the names
+     * @param translateMode only include projects with resources in this translate mode or that have been imported
+     *                      and the categories containing such projects.
+     *                      This is a sql like pattern. Leave empty to include everything.
+     * @return the categories followed by the projects
+     */
+    public List<CategoryEntry> getEntries(long parentCategoryId, String languageSlug, String translateMode) {
+        String[] preferredSlug = {languageSlug, "en", "%"};
+        Pattern mode = translateMode == null || translateMode.isEmpty() ? null : likePattern(translateMode);
+        List<CategoryEntry> entries = new ArrayList<>();
+
+        // categories
+        List<Node> categories = children.get(parentCategoryId);
+        if(categories != null && mode != null) {
+            // only categories with matching projects somewhere beneath them, ordered by their last project
+            final Map<Node, Integer> sorts = new HashMap<>();
+            List<Node> matching = new ArrayList<>();
+            for(Node node:categories) {
+                for(ProjectGroup group:node.descendants) {
+                    if(!group.matches(mode)) continue;
+                    Integer sort = sorts.get(node);
+                    if(sort == null) matching.add(node);
+                    if(sort == null || group.sort > sort) sorts.put(node, group.sort);
+                }
+            }
+            Collections.sort(matching, new Comparator<Node>() {
+                @Override
+                public int compare(Node lhs, Node rhs) {
+                    return sorts.get(lhs).compareTo(sorts.get(rhs));
+                }
+            });
+            categories = matching;
+        }
+        if(categories != null) {
+            for(Node node:categories) {
+                Map.Entry<String, String> name = findName(node.names, preferredSlug);
+                if(name != null) {
+                    entries.add(new CategoryEntry(CategoryEntry.Type.CATEGORY, node.id, node.slug, name.getValue(), name.getKey(), parentCategoryId));
+                }
+            }
+        }
+
+        // projects
+        List<ProjectGroup> groups = projects.get(parentCategoryId);
+        if(groups != null) {
+            for(ProjectGroup group:groups) {
+                if(mode != null && !group.matches(mode)) continue;
+                Map.Entry<String, String> name = findName(group.names, preferredSlug);
+                if(name != null) {
+                    entries.add(new CategoryEntry(CategoryEntry.Type.PROJECT, group.id, group.slug, name.getValue(), name.getKey(), parentCategoryId));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the categories of a project from the top level down.
+     * The path stops at the first category without a name in the language.
+     *
+     * @param languageSlug the language of the project and category names
+     * @param projectSlug
+     * @return the categories or an empty list if the project is not categorized
+     */
+    public List<Category> getPath(String languageSlug, String projectSlug) {
+        List<Category> path = new ArrayList<>();
+        Long categoryId = projectCategories.get(key(languageSlug, projectSlug));
+        Node node = categoryId == null ? null : nodes.get(categoryId);
+        // TRICKY: the depth is limited in case the parents form a cycle
+        while(node != null && path.size() < nodes.size()) {
+            String name = node.names.get(languageSlug);
+            if(name == null) break;
+            path.add(0, new Category(node.slug, name));
+            node = nodes.get(node.parentId);
+        }
+        return path;
+    }
+
+    /**
+     * Returns the first name found in the preferred languages
+     * @param names the names by language
+     * @param preferredSlug the language slugs as sql like patterns
+     * @return the language slug and name or null
+     */
+    private static Map.Entry<String, String> findName(TreeMap<String, String> names, String[] preferredSlug) {
+        for(String slug:preferredSlug) {
+            Pattern pattern = likePattern(slug);
+            for(Map.Entry<String, String> entry:names.entrySet()) {
+                if(pattern.matcher(entry.getKey()).matches()) return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Converts a sql like pattern to a regular expression
+     * @param like
+     * @return
+     */
+    static Pattern likePattern(String like) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for(int i = 0; i < like.length(); i ++) {
+            char c = like.charAt(i);
+            if(c == '%' || c == '_') {
+                if(i > start) regex.append(Pattern.quote(like.substring(start, i)));
+                regex.append(c == '%' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if(start < like.length()) regex.append(Pattern.quote(like.substring(start)));
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    }
+
+    private static String key(String languageSlug, String projectSlug) {
+        return languageSlug + "\n" + projectSlug;
+    }
+
+    /**
+     * A category
+     */
+    private static class Node {
+        final long id;
+        final String slug;
+        final long parentId;
+        final TreeMap<String, String> names = new TreeMap<>();
+        final List<ProjectGroup> descendants = new ArrayList<>();
+
+        Node(long id, String slug, long parentId) {
+            this.id = id;
+            this.slug = slug;
+            this.parentId = parentId;
+        }
+    }
+
+    /**
+     * The projects with the same slug in a category
+     */
+    private static class ProjectGroup {
+        final long id;
+        final String slug;
+        final int sort;
+        final TreeMap<String, String> names = new TreeMap<>();
+        final Set<String> translateModes = new HashSet<>();
+        boolean imported = false;
+
+        ProjectGroup(long id, String slug, int sort) {
+            this.id = id;
+            this.slug = slug;
+            this.sort = sort;
+        }
+
+        /**
+         * Checks if any of the resources are in the translate mode or have been imported
+         * @param translateMode
+         * @return
+         */
+        boolean matches(Pattern translateMode) {
+            if(imported) return true;
+            for(String mode:translateModes) {
+                if(translateMode.matcher(mode).matches()) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Collects the rows of the index into a new tree
+     */
+    static class Builder {
+        private final Map<Long, Node> nodes = new HashMap<>();
+        private final Map<Long, Map<String, ProjectGroup>> groups = new HashMap<>();
+        private final Map<Long, ProjectGroup> projectGroups = new HashMap<>();
+        private final Map<String, Long> projectCategories = new HashMap<>();
+
+        public Builder addCategory(long id, String slug, long parentId) {
+            nodes.put(id, new Node(id, slug, parentId));
+            return this;
+        }
+
+        /**
+         * Names must be added after their category
+         */
+        public Builder addCategoryName(long categoryId, String languageSlug, String name) {
+            Node node = nodes.get(categoryId);
+            if(node != null) node.names.put(languageSlug, name);
+            return this;
+        }
+
+        /**
+         * Projects should be added in order of their id.
+         * The first project of each slug determines the id and sort of the group.
+         */
+        public Builder addProject(long id, String slug, String name, int sort, long categoryId, String languageSlug) {
+            Map<String, ProjectGroup> categoryGroups = groups.get(categoryId);
+            if(categoryGroups == null) {
+                categoryGroups = new HashMap<>();
+                groups.put(categoryId, categoryGroups);
+            }
+            ProjectGroup group = categoryGroups.get(slug);
+            if(group == null) {
+                group = new ProjectGroup(id, slug, sort);
+                categoryGroups.put(slug, group);
+            }
+            group.names.put(languageSlug, name);
+            projectGroups.put(id, group);
+            projectCategories.put(key(languageSlug, slug), categoryId);
+            return this;
+        }
+
+        /**
+         * Resources must be added after their project
+         */
+        public Builder addResource(long projectId, String translateMode, boolean imported) {
+            ProjectGroup group = projectGroups.get(projectId);
+            if(group != null) {
+                if(translateMode != null) group.translateModes.add(translateMode);
+                group.imported = group.imported || imported;
+            }
+            return this;
+        }
+
+        public CategoryTree build() {
+            return new CategoryTree(this);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package org.unfoldingword.door43client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Stages the resource containers that are written to the resource directory
+ * so an existing container is never removed before it's replacement is complete.
+ *
+ * A container is first written to a staging location. Once complete the files are synced to the disk
+ * and a commit marker is written. Only then is the old container moved aside and the new one moved into place.
+ * If the process dies part way through, {@link #recover(OnLogListener)} will discard stages that were not committed
+ * and finish the ones that were.
+ *
+ * Each stage is a directory in the staging area containing:
+ * the staged container, a COMMIT marker once committed, and the previous container once it is swapped out.
+ * A stage may also replace other files in the resource directory (e.g. the open copy of a container archive).
+ * These are moved aside along with the previous container.
+ */
+class ContainerStaging {
+    public static final String DIR_NAME = ".staging";
+    private static final String COMMIT_FILE = "COMMIT";
+    private static final String PREVIOUS_FILE = "previous";
+    private static final String REPLACED_PREFIX = "replaced-";
+    private static final String INDEX_FLAG = "index";
+
+    private final File resourceDir;
+    private final File stagingDir;
+
+    /**
+     *
+     * @param resourceDir the directory where resource containers are stored
+     */
+    public ContainerStaging(File resourceDir) {
+        this.resourceDir = resourceDir;
+        this.stagingDir = new File(resourceDir, DIR_NAME);
+    }
+
+    /**
+     * Begins staging a container
+     * @param name the name of the container file or directory in the resource directory
+     * @param indexed true if the container must be added to the index when it is recovered
+     * @param replaced the names of other files in the resource directory that are removed when the container is swapped in
+     * @return the new stage
+     * @throws IOException
+     */
+    public Stage begin(String name, boolean indexed, String... replaced) throws IOException {
+        File dir = new File(stagingDir, name + "-" + UUID.randomUUID().toString());
+        FileUtil.forceMkdir(dir);
+        return new Stage(dir, name, indexed, replaced);
+    }
+
+    /**
+     * Cleans up after a crash.
+     * Stages that were not committed are deleted and committed stages are moved into place.
+     *
+     * @param log receives the stages that could not be moved into place
+     * @return the names of the recovered containers that must be added to the index
+     */
+    public List<String> recover(OnLogListener log) {
+        List<String> reindex = new ArrayList<>();
+        File[] dirs = stagingDir.listFiles();
+        if(dirs == null) return reindex;
+        for(File dir:dirs) {
+            File commitFile = new File(dir, COMMIT_FILE);
+            if(commitFile.isFile()) {
+                try {
+                    String[] marker = FileUtil.readFileToString(commitFile, "UTF-8").split("\n");
+                    String[] replaced = marker.length > 2 ? Arrays.copyOfRange(marker, 2, marker.length) : new String[0];
+                    Stage stage = new Stage(dir, marker[0], marker.length > 1 && marker[1].equals(INDEX_FLAG), replaced);
+                    stage.swap();
+                    if(stage.indexed) reindex.add(stage.name);
+                } catch (IOException e) {
+                    log.onError("Failed to recover the staged container " + dir.getName(), e);
+                }
+            }
+            FileUtil.deleteQuietly(dir);
+        }
+        return reindex;
+    }
+
+    /**
+     * A container that is being written
+     */
+    class Stage {
+        private final File dir;
+        private final String name;
+        private final boolean indexed;
+        private final File path;
+        private final File previous;
+        private final File target;
+        private final String[] replaced;
+
+        private Stage(File dir, String name, boolean indexed, String[] replaced) {
+            this.dir = dir;
+            this.name = name;
+            this.indexed = indexed;
+            this.path = new File(dir, name);
+            this.previous = new File(dir, PREVIOUS_FILE);
+            this.target = new File(resourceDir, name);
+            this.replaced = replaced;
+        }
+
+        /**
+         * Returns where the container should be written
+         * @return
+         */
+        public File getPath() {
+            return path;
+        }
+
+        /**
+         * Returns where the container will be once it is committed
+         * @return
+         */
+        public File getTarget() {
+            return target;
+        }
+
+        /**
+         * Replaces the existing container with the staged one
+         * @throws IOException
+         */
+        public void commit() throws IOException {
+            commit(Integer.MAX_VALUE);
+        }
+
+        /**
+         * Performs the first steps of the commit.
+         * This allows a crash part way through a commit to be simulated.
+         *
+         * @param steps the number of steps to perform
+         * @throws IOException
+         */
+        void commit(int steps) throws IOException {
+            if(!path.exists()) throw new IOException("Nothing was staged at " + path);
+            if(steps < 1) return;
+            sync(path);
+
+            if(steps < 2) return;
+            File commitFile = new File(dir, COMMIT_FILE);
+            StringBuilder marker = new StringBuilder(name + "\n" + (indexed ? INDEX_FLAG : ""));
+            for(String r:replaced) {
+                marker.append("\n").append(r);
+            }
+            FileOutputStream out = new FileOutputStream(commitFile);
+            try {
+                out.write(marker.toString().getBytes("UTF-8"));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            if(steps < 3) return;
+            if(target.exists() && !target.renameTo(previous)) throw new IOException("Failed to move " + target + " aside");
+
+            if(steps < 4) return;
+            try {
+                swap();
+            } catch (IOException e) {
+                restore();
+                throw e;
+            }
+        }
+
+        /**
+         * Restores the previous container after a commit.
+         * Use this if the index could not be updated.
+         */
+        public void rollback() {
+            FileUtil.deleteQuietly(target);
+            restore();
+            FileUtil.deleteQuietly(dir);
+        }
+
+        /**
+         * Moves the previous container and the replaced files back into place if they are missing
+         */
+        private void restore() {
+            if(!target.exists() && previous.exists()) previous.renameTo(target);
+            for(String r:replaced) {
+                File file = new File(resourceDir, r);
+                File aside = new File(dir, REPLACED_PREFIX + r);
+                if(!file.exists() && aside.exists()) aside.renameTo(file);
+            }
+        }
+
+        /**
+         * Removes the stage along with the previous container.
+         * This should be called once the container is committed and indexed or when staging fails.
+         */
+        public void finish() {
+            FileUtil.deleteQuietly(dir);
+        }
+
+        /**
+         * Moves the staged container into place.
+         * This may be repeated after a crash.
+         * @throws IOException
+         */
+        private void swap() throws IOException {
+            // TRICKY: the replaced files are removed even if the container was already swapped in before a crash
+            for(String r:replaced) {
+                File file = new File(resourceDir, r);
+                File aside = new File(dir, REPLACED_PREFIX + r);
+                if(!file.exists()) continue;
+                if(aside.exists()) {
+                    // the file was recreated after it was moved aside
+                    FileUtil.deleteQuietly(file);
+                } else if(!file.renameTo(aside)) {
+                    throw new IOException("Failed to move " + file + " aside");
+                }
+            }
+            if(!path.exists()) return;
+            if(target.exists()) {
+                if(previous.exists()) {
+                    // the target was recreated after it was moved aside
+                    FileUtil.deleteQuietly(target);
+                } else if(!target.renameTo(previous)) {
+                    throw new IOException("Failed to move " + target + " aside");
+                }
+            }
+            if(!path.renameTo(target)) throw new IOException("Failed to move " + path + " to " + target);
+        }
+    }
+
+    /**
+     * Flushes a file or the files in a directory to the disk
+     * @param file
+     * @throws IOException
+     */
+    static void sync(File file) throws IOException {
+        if(file.isDirectory()) {
+            File[] files = file.listFiles();
+            if(files == null) throw new IOException("Failed to list contents of " + file);
+            for(File f:files) {
+                sync(f);
+            }
+        } else {
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.unfoldingword.door43client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from a stream.
+ * This lets the progress of reading a large catalog be reported without reading it twice.
+ * The number of items in the catalog can be estimated from the bytes they were read from.
+ */
+class CountingInputStream extends FilterInputStream {
+    private long count = 0;
+    private long mark = 0;
+
+    /**
+     *
+     * @param in the stream to count
+     */
+    public CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Returns the number of bytes that have been read or skipped
+     * @return
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Estimates the number of items in the stream from the items that have been read so far.
+     * The estimate is always more than the items that have been read since the stream may not have been read to the end.
+     * @param items the number of items that have been read
+     * @param length the length of the stream in bytes
+     * @return
+     */
+    public long estimateTotal(long items, long length) {
+        if(count <= 0) return items + 1;
+        return Math.max(items + 1, items * length / count);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if(b != -1) count ++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read = super.read(buffer, offset, length);
+        if(read > 0) count += read;
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count += skipped;
+        return skipped;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        super.mark(readLimit);
+        mark = count;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        super.reset();
+        count = mark;
+    }
+}
@@ -21,6 +21,7 @@ import java.io.InputStreamReader;
 public class Door43Client {
 
     private final API api;
+    private final DownloadManager downloadManager;
     private static String schema = null;
     /**
      * The (mostly) read only index
@@ -35,6 +36,18 @@ public class Door43Client {
      * @throws IOException
      */
     public Door43Client(Context context, File databasePath, File resourceDir) throws IOException {
+        this(context, databasePath, resourceDir, null);
+    }
+
+    /**
+     * Initializes a new Door43 client that reports it's timings and counters
+     * @param context the application context
+     * @param databasePath the name of the database where information will be indexed
+     * @param resourceDir the directory where resource containers will be stored
+     * @param metrics receives the timings of every index and api operation along with the sql, transaction and http counters. This may be null.
+     * @throws IOException
+     */
+    public Door43Client(Context context, File databasePath, File resourceDir, Metrics metrics) throws IOException {
         // load schema
         if(this.schema == null) {
             InputStream is = context.getAssets().open("schema.sqlite");
@@ -48,7 +61,9 @@ public class Door43Client {
         }
 
         this.api = new API(context, this.schema, databasePath, resourceDir);
+        this.api.setMetrics(metrics);
         this.index = api.index();
+        this.downloadManager = new DownloadManager(api, new File(resourceDir, "downloads.json"));
     }
 
     /**
@@ -59,6 +74,49 @@ public class Door43Client {
         api.setLogger(listener);
     }
 
+    /**
+     * Sets how many catalogs may be downloaded at once while updating the sources.
+     * The default is 4.
+     * @param workers the number of concurrent downloads
+     */
+    public void setUpdateConcurrency(int workers) {
+        api.setUpdateConcurrency(workers);
+    }
+
+    /**
+     * Enables an in-memory cache of the source languages, projects, resources, categories and translations
+     * that are looked up by slug. The cache is disabled by default.
+     *
+     * Cached models are shared so they must not be modified.
+     *
+     * @param maxEntries the number of models to cache. Use 0 to disable the cache.
+     */
+    public void setIndexCacheSize(int maxEntries) {
+        api.setIndexCacheSize(maxEntries);
+    }
+
+    /**
+     * Sets the languages that are used in order when a project is not available in the requested language.
+     * This is used by {@link Index#getProject(String, String, boolean)} and {@link Index#getProjects(String, boolean)}.
+     * Projects that are not available in any of these languages fall back to the first language they were added in.
+     *
+     * The choice is stored in the index. The default is "en".
+     *
+     * @param languageSlugs the source language slugs. Leave empty to restore the default.
+     * @throws Exception
+     */
+    public void setFallbackLanguages(String... languageSlugs) throws Exception {
+        api.setFallbackLanguages(languageSlugs);
+    }
+
+    /**
+     * Returns the usage statistics of the index cache
+     * @return
+     */
+    public IndexCacheStats getIndexCacheStats() {
+        return api.getIndexCacheStats();
+    }
+
     /**
      * Returns the read only index
      * @return the index
@@ -92,6 +150,18 @@ public class Door43Client {
         api.updateSources(url, listener);
     }
 
+    /**
+     * Indexes the source content
+     *
+     * @param url the entry resource api catalog
+     * @param incremental if true only content that has changed since the last update will be downloaded and indexed
+     * @param listener an optional progress listener. This should receive progress id, total, completed
+     * @return a summary of the changes
+     */
+    public UpdateReport updateSources(String url, boolean incremental, OnProgressListener listener) throws Exception {
+        return api.updateSources(url, incremental, listener);
+    }
+
     /**
      * Indexes the supplementary catalogs
      * @param listener
@@ -122,6 +192,15 @@ public class Door43Client {
         return api.downloadResourceContainer(sourceLanguageSlug, projectSlug, resourceSlug);
     }
 
+    /**
+     * Returns the manager used to download many resource containers in the background.
+     * The queue is kept between sessions so call {@link DownloadManager#start()} to resume any unfinished downloads.
+     * @return
+     */
+    public DownloadManager getDownloadManager() {
+        return downloadManager;
+    }
+
     /**
      * Opens a resource container archive so it's contents can be read.
      * @param languageSlug
@@ -153,6 +232,17 @@ public class Door43Client {
         return api.importResourceContainer(directory);
     }
 
+    /**
+     * Imports an external resource container into the client and indexes it for use.
+     * @param directory the directory of the resource container to be imported
+     * @param mode how the container is transferred. Moving or linking avoids copying large containers.
+     * @return the imported resource container
+     * @throws Exception
+     */
+    public ResourceContainer importResourceContainer(File directory, TransferMode mode) throws Exception {
+        return api.importResourceContainer(directory, mode);
+    }
+
     /**
      * Exports the closed resource container
      * @param destFile the destination file
@@ -164,6 +254,18 @@ public class Door43Client {
         api.exportResourceContainer(destFile, languageSlug, projectSlug, resourceSlug);
     }
 
+    /**
+     * Exports the closed resource container
+     * @param destFile the destination file
+     * @param languageSlug
+     * @param projectSlug
+     * @param resourceSlug
+     * @param mode how the container is transferred. Only {@link TransferMode#COPY} and {@link TransferMode#LINK} are supported.
+     */
+    public void exportResourceContainer(File destFile, String languageSlug, String projectSlug, String resourceSlug, TransferMode mode) throws Exception {
+        api.exportResourceContainer(destFile, languageSlug, projectSlug, resourceSlug, mode);
+    }
+
     /**
      * Checks if a resource container has been downloaded
      * @param languageSlug
@@ -217,6 +319,7 @@ public class Door43Client {
      * Closes the api
      */
     public void tearDown() {
+        downloadManager.stop();
         api.tearDown();
     }
 }
@@ -0,0 +1,425 @@
+package org.unfoldingword.door43client;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.unfoldingword.resourcecontainer.ContainerTools;
+import org.unfoldingword.resourcecontainer.ResourceContainer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Downloads many resource containers at once.
+ *
+ * Containers are downloaded by a fixed number of workers in order of priority.
+ * The queue is saved to disk whenever it changes so downloads that were queued or in progress
+ * when the process stopped are restored the next time the manager is created.
+ * Interrupted downloads resume where they left off.
+ *
+ * Queueing a container that is already queued or downloading has no effect
+ * other than raising the priority of a queued container.
+ * Containers that failed to download are kept until they are queued again or removed.
+ */
+public class DownloadManager {
+    public static final int DEFAULT_WORKERS = 4;
+    /**
+     * The time in milliseconds {@link #stop()} waits for the workers to finish
+     */
+    public static final long STOP_TIMEOUT = 5000;
+
+    private final API api;
+    private final File queueFile;
+    private final PriorityQueue<Item> queue = new PriorityQueue<>();
+    private final Map<String, Item> items = new HashMap<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile OnDownloadListener listener = null;
+    private int workers = DEFAULT_WORKERS;
+    private boolean running = false;
+    private int generation = 0;
+    private long sequence = 0;
+    private int downloading = 0;
+    private int total = 0;
+    private int completed = 0;
+    private int failed = 0;
+
+    /**
+     *
+     * @param api the api used to download the containers
+     * @param queueFile the file where the queue is stored
+     */
+    DownloadManager(API api, File queueFile) {
+        this.api = api;
+        this.queueFile = queueFile;
+        restore();
+    }
+
+    /**
+     * Sets the listener that will receive the results of the downloads
+     * @param listener
+     */
+    public void setListener(OnDownloadListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets how many containers may be downloaded at once.
+     * This takes effect the next time the manager is started.
+     * @param workers
+     */
+    public synchronized void setWorkers(int workers) {
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * Queues a resource container for download
+     * @param sourceLanguageSlug
+     * @param projectSlug
+     * @param resourceSlug
+     * @param priority containers with a higher priority are downloaded first
+     * @return false if the container was already queued or downloading
+     */
+    public synchronized boolean enqueue(String sourceLanguageSlug, String projectSlug, String resourceSlug, int priority) {
+        String containerSlug = ContainerTools.makeSlug(sourceLanguageSlug, projectSlug, resourceSlug);
+        Item existing = items.get(containerSlug);
+        if(existing != null && existing.failed) {
+            // try again
+            existing.failed = false;
+            existing.priority = priority;
+            queue.add(existing);
+            total ++;
+            save();
+            notifyAll();
+            return true;
+        }
+        if(existing != null) {
+            if(!existing.downloading && priority > existing.priority) {
+                queue.remove(existing);
+                existing.priority = priority;
+                queue.add(existing);
+                save();
+            }
+            return false;
+        }
+        Item item = new Item(sourceLanguageSlug, projectSlug, resourceSlug, priority, sequence ++);
+        items.put(containerSlug, item);
+        queue.add(item);
+        total ++;
+        save();
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Removes a container from the queue or from the failed containers.
+     * Containers that are already downloading cannot be removed.
+     *
+     * @param containerSlug
+     * @return true if the container was removed
+     */
+    public synchronized boolean remove(String containerSlug) {
+        Item item = items.get(containerSlug);
+        if(item == null || item.downloading) return false;
+        items.remove(containerSlug);
+        if(!item.failed) {
+            queue.remove(item);
+            total --;
+        }
+        save();
+        return true;
+    }
+
+    /**
+     * Returns the slugs of the containers that are queued or downloading
+     * @return
+     */
+    public synchronized List<String> getQueue() {
+        List<String> slugs = new ArrayList<>();
+        for(Item item:getSortedItems()) {
+            if(!item.failed) slugs.add(item.getContainerSlug());
+        }
+        return slugs;
+    }
+
+    /**
+     * Returns the slugs of the containers that failed to download.
+     * Queue them again to retry.
+     * @return
+     */
+    public synchronized List<String> getFailed() {
+        List<String> slugs = new ArrayList<>();
+        for(Item item:getSortedItems()) {
+            if(item.failed) slugs.add(item.getContainerSlug());
+        }
+        return slugs;
+    }
+
+    /**
+     * Returns all of the containers in the order they will be downloaded
+     * @return
+     */
+    private List<Item> getSortedItems() {
+        List<Item> sorted = new ArrayList<>(items.values());
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Checks if there is nothing left to download
+     * @return
+     */
+    public synchronized boolean isIdle() {
+        return queue.isEmpty() && downloading == 0;
+    }
+
+    /**
+     * Waits until there is nothing left to download
+     * @param timeout the maximum time to wait in milliseconds
+     * @return true if the queue is empty
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitIdle(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while(!isIdle()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Starts downloading the queue
+     */
+    public synchronized void start() {
+        if(running) return;
+        running = true;
+        // TRICKY: workers from before a restart may still be finishing a download
+        final int workerGeneration = ++ generation;
+        threads.clear();
+        for(int i = 0; i < workers; i ++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(workerGeneration);
+                }
+            }, "door43-download-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops downloading.
+     * The containers currently downloading are interrupted and kept in the queue with the rest of it,
+     * so they resume where they left off once the manager is started again.
+     * This waits at most {@link #STOP_TIMEOUT} milliseconds for the workers to finish.
+     */
+    public void stop() {
+        List<Thread> stopping;
+        synchronized (this) {
+            running = false;
+            notifyAll();
+            stopping = new ArrayList<>(threads);
+            threads.clear();
+        }
+        // TRICKY: a worker blocked on the network may not notice the interrupt until its request times out
+        for(Thread thread:stopping) {
+            thread.interrupt();
+        }
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+        for(Thread thread:stopping) {
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0) return;
+            try {
+                thread.join(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Downloads from the queue until the manager is stopped
+     * @param workerGeneration the start of the manager this worker belongs to
+     */
+    private void work(int workerGeneration) {
+        while(true) {
+            Item item;
+            synchronized (this) {
+                while(running && workerGeneration == generation && queue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if(!running || workerGeneration != generation) return;
+                item = queue.poll();
+                item.downloading = true;
+                downloading ++;
+            }
+
+            ResourceContainer container = null;
+            Exception error = null;
+            try {
+                container = api.downloadResourceContainer(item.sourceLanguageSlug, item.projectSlug, item.resourceSlug);
+            } catch (Exception e) {
+                error = e;
+            }
+
+            int progressTotal, progressCompleted, progressFailed;
+            synchronized (this) {
+                if(error != null && (!running || workerGeneration != generation)) {
+                    // TRICKY: the download was interrupted by stop() so it is kept in the queue to be resumed
+                    item.downloading = false;
+                    downloading --;
+                    queue.add(item);
+                    save();
+                    notifyAll();
+                    return;
+                }
+                if(error == null) {
+                    completed ++;
+                } else {
+                    failed ++;
+                }
+                progressTotal = total;
+                progressCompleted = completed;
+                progressFailed = failed;
+            }
+
+            try {
+                OnDownloadListener listener = this.listener;
+                if(listener != null) {
+                    if(error == null) {
+                        listener.onDownloaded(item.getContainerSlug(), container);
+                    } else {
+                        listener.onDownloadFailed(item.getContainerSlug(), error);
+                    }
+                    listener.onProgress(progressTotal, progressCompleted, progressFailed);
+                }
+            } catch (RuntimeException e) {
+                api.getLogger().onError("The download listener failed on " + item.getContainerSlug(), e);
+            } finally {
+                // TRICKY: the item is updated after the listener so waiting for the queue includes the callbacks
+                synchronized (this) {
+                    item.downloading = false;
+                    downloading --;
+                    if(error == null) {
+                        items.remove(item.getContainerSlug());
+                    } else {
+                        item.failed = true;
+                    }
+                    if(isIdle()) {
+                        total = 0;
+                        completed = 0;
+                        failed = 0;
+                    }
+                    save();
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the queue to the disk.
+     * Containers that are downloading are included so they are restarted if the process dies.
+     * Containers that failed are included with their failed state.
+     */
+    private void save() {
+        try {
+            JSONArray json = new JSONArray();
+            for(Item item:getSortedItems()) {
+                json.put(item.toJSON());
+            }
+            // TRICKY: write to a temp file first so a crash cannot leave a truncated queue behind
+            File tempFile = new File(queueFile.getPath() + ".tmp");
+            FileUtil.writeStringToFile(tempFile, json.toString());
+            if(!tempFile.renameTo(queueFile)) {
+                FileUtil.deleteQuietly(queueFile);
+                if(!tempFile.renameTo(queueFile)) throw new IOException("Could not write " + queueFile);
+            }
+        } catch (Exception e) {
+            api.getLogger().onError("Failed to save the download queue to " + queueFile, e);
+        }
+    }
+
+    /**
+     * Loads the queue from the disk
+     */
+    private void restore() {
+        if(!queueFile.exists()) return;
+        try {
+            JSONArray json = new JSONArray(FileUtil.readFileToString(queueFile));
+            for(int i = 0; i < json.length(); i ++) {
+                JSONObject iJson = json.getJSONObject(i);
+                if(iJson.optBoolean("failed", false)) {
+                    Item item = new Item(iJson.getString("language"), iJson.getString("project"),
+                            iJson.getString("resource"), iJson.optInt("priority", 0), sequence ++);
+                    item.failed = true;
+                    items.put(item.getContainerSlug(), item);
+                } else {
+                    enqueue(iJson.getString("language"), iJson.getString("project"),
+                            iJson.getString("resource"), iJson.optInt("priority", 0));
+                }
+            }
+        } catch (Exception e) {
+            api.getLogger().onError("Failed to restore the download queue from " + queueFile, e);
+        }
+    }
+
+    /**
+     * A queued container
+     */
+    private static class Item implements Comparable<Item> {
+        final String sourceLanguageSlug;
+        final String projectSlug;
+        final String resourceSlug;
+        final long sequence;
+        int priority;
+        boolean downloading = false;
+        boolean failed = false;
+
+        Item(String sourceLanguageSlug, String projectSlug, String resourceSlug, int priority, long sequence) {
+            this.sourceLanguageSlug = sourceLanguageSlug;
+            this.projectSlug = projectSlug;
+            this.resourceSlug = resourceSlug;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        String getContainerSlug() {
+            return ContainerTools.makeSlug(sourceLanguageSlug, projectSlug, resourceSlug);
+        }
+
+        JSONObject toJSON() throws Exception {
+            JSONObject json = new JSONObject();
+            json.put("language", sourceLanguageSlug);
+            json.put("project", projectSlug);
+            json.put("resource", resourceSlug);
+            json.put("priority", priority);
+            if(failed) json.put("failed", true);
+            return json;
+        }
+
+        /**
+         * Higher priorities come first, then the order they were queued in
+         * @param another
+         * @return
+         */
+        @Override
+        public int compareTo(Item another) {
+            if(priority != another.priority) return priority > another.priority ? -1 : 1;
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package org.unfoldingword.door43client;
 
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
@@ -56,6 +61,35 @@ class FileUtil {
         }
     }
 
+    /**
+     * Returns the exact contents of a file as a string.
+     * Unlike {@link #readFileToString(File)} the line endings are preserved and the file is read into
+     * a single buffer of it's size instead of a growing one. The bytes and the decoded string are both
+     * held in memory while decoding so this is not suited to large files.
+     *
+     * @param file
+     * @param charsetName the encoding of the file
+     * @return
+     * @throws IOException
+     */
+    public static String readFileToString(File file, String charsetName) throws IOException {
+        long length = file.length();
+        if(length > Integer.MAX_VALUE) throw new IOException("File \'" + file + "\' is too large to read into memory");
+        byte[] bytes = new byte[(int)length];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int n;
+            while(offset < bytes.length && (n = fis.read(bytes, offset, bytes.length - offset)) != -1) {
+                offset += n;
+            }
+            if(offset < bytes.length) throw new IOException("Unexpected end of file \'" + file + "\'");
+        } finally {
+            fis.close();
+        }
+        return new String(bytes, charsetName);
+    }
+
     /**
      * Writes a string to a file
      * @param file
@@ -290,6 +324,103 @@ class FileUtil {
         }
     }
 
+    /**
+     * Transfers a directory to a new location
+     * @param srcDir
+     * @param destDir the destination. This must not exist yet
+     * @param mode how the files are transferred
+     * @throws IOException
+     */
+    public static void transferDirectory(File srcDir, File destDir, TransferMode mode) throws IOException {
+        if(destDir.exists()) throw new IOException("Destination \'" + destDir + "\' already exists");
+        switch(mode) {
+            case MOVE:
+                if(srcDir.renameTo(destDir)) return;
+                // TRICKY: the source is only deleted once the copy is complete
+                try {
+                    copyDirectory(srcDir, destDir, null);
+                } catch (IOException e) {
+                    deleteQuietly(destDir);
+                    throw e;
+                }
+                deleteQuietly(srcDir);
+                break;
+            case LINK:
+                linkDirectory(srcDir, destDir);
+                break;
+            default:
+                copyDirectory(srcDir, destDir, null);
+        }
+    }
+
+    /**
+     * Transfers a file to a new location
+     * @param srcFile
+     * @param destFile the destination. An existing file will be replaced
+     * @param mode how the file is transferred
+     * @throws IOException
+     */
+    public static void transferFile(File srcFile, File destFile, TransferMode mode) throws IOException {
+        switch(mode) {
+            case MOVE:
+                if(srcFile.renameTo(destFile)) return;
+                copyFile(srcFile, destFile);
+                deleteQuietly(srcFile);
+                break;
+            case LINK:
+                File parentFile = destFile.getParentFile();
+                if(parentFile != null) parentFile.mkdirs();
+                // links cannot replace a file
+                deleteQuietly(destFile);
+                if(!link(srcFile, destFile)) copyFile(srcFile, destFile);
+                break;
+            default:
+                copyFile(srcFile, destFile);
+        }
+    }
+
+    private static void linkDirectory(File srcDir, File destDir) throws IOException {
+        File[] srcFiles = srcDir.listFiles();
+        if(srcFiles == null) throw new IOException("Failed to list contents of " + srcDir);
+        forceMkdir(destDir);
+        for(File srcFile:srcFiles) {
+            File dstFile = new File(destDir, srcFile.getName());
+            if(srcFile.isDirectory()) {
+                linkDirectory(srcFile, dstFile);
+            } else if(!link(srcFile, dstFile)) {
+                doCopyFile(srcFile, dstFile);
+            }
+        }
+        destDir.setLastModified(srcDir.lastModified());
+    }
+
+    /**
+     * Creates a hard link to a file
+     * @param srcFile the existing file
+     * @param linkFile the new link
+     * @return false if the link could not be created e.g. hard links are not supported
+     */
+    public static boolean link(File srcFile, File linkFile) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return false;
+        return HardLinks.link(srcFile, linkFile);
+    }
+
+    /**
+     * TRICKY: this is kept separate so older devices never have to load the Lollipop apis
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static class HardLinks {
+        static boolean link(File srcFile, File linkFile) {
+            try {
+                Os.link(srcFile.getAbsolutePath(), linkFile.getAbsolutePath());
+                return linkFile.exists();
+            } catch (ErrnoException e) {
+                // e.g. the files are on different file systems
+                return false;
+            }
+        }
+    }
+
     /**
      * Copies a file or directory
      * @param srcFile
@@ -0,0 +1,71 @@
+package org.unfoldingword.door43client;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The cache validators from the last successfully indexed response of a url.
+ * These are used to make conditional requests so unchanged catalogs are not downloaded again.
+ */
+class HttpValidator {
+    public final String url;
+    public final String etag;
+    public final String lastModified;
+    public final String contentHash;
+
+    /**
+     *
+     * @param url the url that was requested
+     * @param etag the ETag header of the response
+     * @param lastModified the Last-Modified header of the response
+     * @param contentHash a hash of the response body
+     */
+    public HttpValidator(String url, String etag, String lastModified, String contentHash) {
+        this.url = url;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Returns the Last-Modified header as a unix timestamp
+     * @return the time in seconds or 0 if the header is missing or invalid
+     */
+    public int getLastModifiedSeconds() {
+        if(lastModified == null || lastModified.isEmpty()) return 0;
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(lastModified);
+            return (int)(date.getTime() / 1000);
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns a new digest for hashing response content
+     * @return
+     */
+    public static MessageDigest newDigest() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("SHA-1");
+    }
+
+    /**
+     * Hex encodes a hash
+     * @param hash
+     * @return
+     */
+    public static String toHex(byte[] hash) {
+        StringBuilder sb = new StringBuilder();
+        for(byte b:hash) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -6,6 +6,7 @@ import org.unfoldingword.door43client.models.CategoryEntry;
 import org.unfoldingword.door43client.models.ChunkMarker;
 import org.unfoldingword.door43client.models.Question;
 import org.unfoldingword.door43client.models.Questionnaire;
+import org.unfoldingword.door43client.models.SearchHit;
 import org.unfoldingword.door43client.models.SourceLanguage;
 import org.unfoldingword.door43client.models.TargetLanguage;
 import org.unfoldingword.door43client.models.Translation;
@@ -51,6 +52,19 @@ public interface Index {
      */
     Map<String, Integer> listProjectsLastModified(String languageSlug);
 
+    /**
+     * Performs a full-text search of the project, resource, and category names along with the project descriptions.
+     * Every word in the query must be matched. Words are matched by prefix.
+     * Hits who's name starts with the query are listed first followed by those who's name contains the query.
+     *
+     * @param query the text to search for
+     * @param languageSlug the source language to search within. If null all source languages will be searched.
+     * @param offset the number of hits to skip
+     * @param limit the maximum number of hits to return
+     * @return
+     */
+    List<SearchHit> search(String query, String languageSlug, int offset, int limit);
+
     /**
      * Returns a translation that matches the resource container slug
      *
@@ -60,7 +74,8 @@ public interface Index {
     Translation getTranslation(String containerSlug);
 
     /**
-     * Returns a list of translations available for the project
+     * Returns a list of translations available for the project.
+     * The slugs are matched exactly, ignoring case. Wildcards are not supported.
      *
      * @param languageSlug the language these translations are available in. Leave null for all.
      * @param projectSlug the project for whom these translations are available. Leave null for all
@@ -114,7 +129,8 @@ public interface Index {
     TargetLanguage getTargetLanguage(String targetLangaugeSlug);
 
     /**
-     * Searches for a target language by name.
+     * Searches for a target language by slug, name, or anglicized name.
+     * Languages who's slug starts with the query are listed first followed by those who's name starts with the query.
      * @param namequery
      * @return
      */
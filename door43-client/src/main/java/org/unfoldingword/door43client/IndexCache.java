@@ -0,0 +1,149 @@
+package org.unfoldingword.door43client;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded least-recently-used cache of models read from the index.
+ * Entries are keyed by the type of model and the slugs used to look it up.
+ *
+ * The cache is disabled until it is given a size.
+ *
+ * TRICKY: a reader may load a model while a writer is changing it.
+ * Readers must take the generation before loading so values loaded across an invalidation are not kept.
+ */
+class IndexCache {
+    public static final String SOURCE_LANGUAGE = "source_language";
+    public static final String PROJECT = "project";
+    public static final String RESOURCE = "resource";
+    public static final String CATEGORY = "category";
+    public static final String TRANSLATION = "translation";
+
+    /**
+     * Returned by {@link #get(Key)} when there is no entry.
+     * Null is a valid value since lookups that find nothing are cached as well.
+     */
+    public static final Object MISS = new Object();
+
+    private int maxEntries = 0;
+    private long generation = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private final LinkedHashMap<Key, Object> entries = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    /**
+     * Sets the maximum number of entries in the cache
+     * @param maxEntries the number of entries. Use 0 to disable the cache.
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+        clear();
+    }
+
+    /**
+     * Returns the current generation of the cache.
+     * This changes every time entries are invalidated.
+     * @return
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Looks up a value
+     * @param key
+     * @return the value or {@link #MISS}
+     */
+    public synchronized Object get(Key key) {
+        if(maxEntries == 0) return MISS;
+        if(entries.containsKey(key)) {
+            hits ++;
+            return entries.get(key);
+        }
+        misses ++;
+        return MISS;
+    }
+
+    /**
+     * Stores a value
+     * @param key
+     * @param value
+     * @param generation the generation of the cache from before the value was loaded
+     */
+    public synchronized void put(Key key, Object value, long generation) {
+        if(maxEntries == 0 || generation != this.generation) return;
+        entries.put(key, value);
+    }
+
+    /**
+     * Removes the entries of a type who's slug at the position matches
+     * @param type the type of entry
+     * @param position the position of the slug within the key
+     * @param slug the slug to match
+     */
+    public synchronized void invalidate(String type, int position, String slug) {
+        generation ++;
+        Iterator<Key> keys = entries.keySet().iterator();
+        while(keys.hasNext()) {
+            Key key = keys.next();
+            if(key.type.equals(type) && position < key.slugs.length
+                    && slug != null && slug.equals(key.slugs[position])) {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all of the entries
+     */
+    public synchronized void clear() {
+        generation ++;
+        entries.clear();
+    }
+
+    /**
+     * Returns the usage statistics of the cache
+     * @return
+     */
+    public synchronized IndexCacheStats getStats() {
+        return new IndexCacheStats(hits, misses, entries.size(), maxEntries);
+    }
+
+    /**
+     * Identifies a cached model
+     */
+    public static class Key {
+        private final String type;
+        private final String[] slugs;
+
+        /**
+         *
+         * @param type the type of model
+         * @param slugs the slugs used to look up the model
+         */
+        public Key(String type, String... slugs) {
+            this.type = type;
+            this.slugs = slugs;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) return true;
+            if(!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return type.equals(key.type) && Arrays.equals(slugs, key.slugs);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + Arrays.hashCode(slugs);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.unfoldingword.door43client;
+
+/**
+ * A snapshot of the usage of the index cache
+ */
+public class IndexCacheStats {
+    public final long hits;
+    public final long misses;
+    public final int size;
+    public final int maxSize;
+
+    /**
+     *
+     * @param hits the number of lookups that were answered by the cache
+     * @param misses the number of lookups that had to read the index
+     * @param size the number of entries in the cache
+     * @param maxSize the maximum number of entries in the cache
+     */
+    public IndexCacheStats(long hits, long misses, int size, int maxSize) {
+        this.hits = hits;
+        this.misses = misses;
+        this.size = size;
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits + " misses=" + misses + " size=" + size + "/" + maxSize;
+    }
+}
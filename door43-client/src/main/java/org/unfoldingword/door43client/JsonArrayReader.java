@@ -0,0 +1,110 @@
+package org.unfoldingword.door43client;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the elements of a json array one at a time.
+ * This allows large catalogs to be indexed without holding the entire document in memory.
+ *
+ * TRICKY: the reader is lenient because some of the legacy catalogs do not quote their keys.
+ */
+class JsonArrayReader implements Closeable {
+    private final JsonReader reader;
+
+    /**
+     *
+     * @param reader the source of the json array
+     * @throws IOException
+     */
+    public JsonArrayReader(Reader reader) throws IOException {
+        this.reader = new JsonReader(reader);
+        this.reader.setLenient(true);
+        this.reader.beginArray();
+    }
+
+    /**
+     * Checks if there are more elements in the array
+     * @return
+     * @throws IOException
+     */
+    public boolean hasNext() throws IOException {
+        return reader.hasNext();
+    }
+
+    /**
+     * Reads the next element in the array
+     * @return the element
+     * @throws IOException
+     * @throws JSONException if the element is not an object
+     */
+    public JSONObject next() throws IOException, JSONException {
+        if(reader.peek() != JsonToken.BEGIN_OBJECT) throw new JSONException("Expected an object but found " + reader.peek());
+        return readObject(reader);
+    }
+
+    /**
+     * Skips the next element in the array
+     * @throws IOException
+     */
+    public void skip() throws IOException {
+        reader.skipValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+        JSONObject json = new JSONObject();
+        reader.beginObject();
+        while(reader.hasNext()) {
+            String key = reader.nextName();
+            json.put(key, readValue(reader));
+        }
+        reader.endObject();
+        return json;
+    }
+
+    private static JSONArray readArray(JsonReader reader) throws IOException, JSONException {
+        JSONArray json = new JSONArray();
+        reader.beginArray();
+        while(reader.hasNext()) {
+            json.put(readValue(reader));
+        }
+        reader.endArray();
+        return json;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        switch(reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case NUMBER:
+                String number = reader.nextString();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(number);
+                }
+            default:
+                return reader.nextString();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package org.unfoldingword.door43client;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.unfoldingword.resourcecontainer.ResourceContainer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Converts legacy books into resource containers as they are read.
+ *
+ * The container tools need the entire legacy catalog as a string which is too much for the larger books.
+ * This writes the same layout one chunk at a time: the package.json and LICENSE.md,
+ * a directory for each chapter with it's title, chunks and reference,
+ * and finally the toc.yml and the config.yml with the tW assignments.
+ */
+class LegacyBookConverter {
+    private static final String MIME_TYPE = "text/usx";
+    private static final String CHUNK_EXT = "usx";
+    private static final String PENDING_CHAPTER = ".chapter";
+    private static final Pattern PLAIN_YAML = Pattern.compile("[A-Za-z/][A-Za-z0-9/_\\-]*");
+    private static final Pattern RESERVED_YAML = Pattern.compile("(?i)y|n|yes|no|true|false|on|off|null");
+
+    /**
+     * Checks if a legacy resource can be converted as a book.
+     * Open Bible Stories and the helps have a different layout and are left to the container tools.
+     *
+     * @param properties the container properties
+     * @return
+     * @throws JSONException
+     */
+    public static boolean isBook(JSONObject properties) throws JSONException {
+        return properties.getJSONObject("resource").optString("type").equals("book")
+                && !properties.getJSONObject("project").optString("slug").equals("obs");
+    }
+
+    /**
+     * Converts a legacy book into a resource container
+     * @param data the legacy catalog
+     * @param directory the directory where the container will be written
+     * @param properties the container properties
+     * @throws Exception
+     */
+    public static void convert(Reader data, File directory, JSONObject properties) throws Exception {
+        JSONObject project = properties.getJSONObject("project");
+        JSONObject resource = properties.getJSONObject("resource");
+        File contentDir = new File(directory, "content");
+        FileUtil.forceMkdir(contentDir);
+
+        JSONObject packageData = new JSONObject();
+        packageData.put("package_version", ResourceContainer.version);
+        packageData.put("modified_at", properties.get("modified_at"));
+        packageData.put("content_mime_type", MIME_TYPE);
+        packageData.put("language", properties.getJSONObject("language"));
+        packageData.put("project", project);
+        packageData.put("resource", resource);
+        packageData.put("chunk_status", new JSONArray());
+        FileUtil.writeStringToFile(new File(directory, "package.json"), packageData.toString(2));
+
+        JSONObject status = resource.optJSONObject("status");
+        FileUtil.writeStringToFile(new File(directory, "LICENSE.md"), status == null ? "" : status.optString("license"));
+
+        // front matter
+        File frontDir = new File(contentDir, "front");
+        FileUtil.forceMkdir(frontDir);
+        FileUtil.writeStringToFile(new File(frontDir, "title." + CHUNK_EXT), project.getString("name"));
+        StringBuilder toc = new StringBuilder();
+        appendToc(toc, "front", Collections.singletonList("title"));
+
+        JsonReader json = new JsonReader(data);
+        json.beginObject();
+        while(json.hasNext()) {
+            if(!json.nextName().equals("chapters")) {
+                json.skipValue();
+                continue;
+            }
+            json.beginArray();
+            while(json.hasNext()) {
+                readChapter(json, contentDir, toc);
+            }
+            json.endArray();
+        }
+        json.endObject();
+
+        FileUtil.writeStringToFile(new File(contentDir, "toc.yml"), toc.toString());
+        FileUtil.writeStringToFile(new File(contentDir, "config.yml"), buildConfig(properties.optJSONObject("tw_assignments")));
+    }
+
+    /**
+     * Writes the title, chunks and reference of a chapter into it's own directory
+     * @param json
+     * @param contentDir
+     * @param toc receives the table of contents of the chapter
+     * @throws Exception
+     */
+    private static void readChapter(JsonReader json, File contentDir, StringBuilder toc) throws Exception {
+        // TRICKY: the chapter number may come after the frames so they are written to a temporary directory first
+        File chapterDir = new File(contentDir, PENDING_CHAPTER);
+        FileUtil.deleteQuietly(chapterDir);
+        FileUtil.forceMkdir(chapterDir);
+
+        String number = "";
+        String title = "";
+        String reference = "";
+        List<String> frames = new ArrayList<>();
+        json.beginObject();
+        while(json.hasNext()) {
+            String name = json.nextName();
+            if(name.equals("number")) {
+                number = nextString(json);
+            } else if(name.equals("title")) {
+                title = nextString(json);
+            } else if(name.equals("ref")) {
+                reference = nextString(json);
+            } else if(name.equals("frames")) {
+                json.beginArray();
+                while(json.hasNext()) {
+                    frames.add(readFrame(json, chapterDir));
+                }
+                json.endArray();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        if(number.isEmpty()) throw new JSONException("Missing chapter number");
+
+        List<String> chunks = new ArrayList<>();
+        if(!title.isEmpty()) {
+            FileUtil.writeStringToFile(new File(chapterDir, "title." + CHUNK_EXT), title);
+            chunks.add("title");
+        }
+        chunks.addAll(frames);
+        if(!reference.isEmpty()) {
+            FileUtil.writeStringToFile(new File(chapterDir, "reference." + CHUNK_EXT), reference);
+            chunks.add("reference");
+        }
+
+        String slug = LegacyTools.normalizeSlug(number);
+        File destination = new File(contentDir, slug);
+        if(destination.exists()) throw new JSONException("Duplicate chapter " + slug);
+        if(!chapterDir.renameTo(destination)) throw new IOException("Failed to move " + chapterDir + " to " + destination);
+        appendToc(toc, slug, chunks);
+    }
+
+    /**
+     * Writes the text of a frame to a chunk file.
+     * Only a single frame is held in memory at a time.
+     *
+     * @param json
+     * @param chapterDir
+     * @return the slug of the chunk
+     * @throws Exception
+     */
+    private static String readFrame(JsonReader json, File chapterDir) throws Exception {
+        String id = "";
+        String text = "";
+        json.beginObject();
+        while(json.hasNext()) {
+            String name = json.nextName();
+            if(name.equals("id")) {
+                id = nextString(json);
+            } else if(name.equals("text")) {
+                text = nextString(json);
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        if(id.isEmpty()) throw new JSONException("Missing frame id");
+
+        // frame ids are given as chapter-chunk
+        String slug = LegacyTools.normalizeSlug(id.substring(id.lastIndexOf('-') + 1).trim());
+        FileUtil.writeStringToFile(new File(chapterDir, slug + "." + CHUNK_EXT), text);
+        return slug;
+    }
+
+    /**
+     * Reads a string value that may be null
+     * @param json
+     * @return the value or an empty string
+     * @throws IOException
+     */
+    private static String nextString(JsonReader json) throws IOException {
+        if(json.peek() == JsonToken.NULL) {
+            json.nextNull();
+            return "";
+        }
+        return json.nextString();
+    }
+
+    /**
+     * Adds a chapter to the table of contents
+     * @param toc
+     * @param chapterSlug
+     * @param chunks the slugs of the chunks in the chapter
+     */
+    private static void appendToc(StringBuilder toc, String chapterSlug, List<String> chunks) {
+        toc.append("-\n  chapter: ").append(yamlString(chapterSlug)).append("\n  chunks:\n");
+        for(String chunk:chunks) {
+            toc.append("    - ").append(yamlString(chunk)).append("\n");
+        }
+    }
+
+    /**
+     * Builds the container configuration with the tW assignments
+     * @param assignments the words assigned to each chunk keyed by chapter and chunk. This may be null.
+     * @return
+     * @throws JSONException
+     */
+    private static String buildConfig(JSONObject assignments) throws JSONException {
+        if(assignments == null || assignments.length() == 0) return "content: {}\n";
+        StringBuilder config = new StringBuilder("content:\n");
+        for(String chapterSlug:sortedKeys(assignments)) {
+            JSONObject chapter = assignments.getJSONObject(chapterSlug);
+            config.append("  ").append(yamlString(chapterSlug)).append(":\n");
+            for(String chunkSlug:sortedKeys(chapter)) {
+                JSONArray words = chapter.getJSONArray(chunkSlug);
+                config.append("    ").append(yamlString(chunkSlug)).append(":\n      words:\n");
+                for(int i = 0; i < words.length(); i ++) {
+                    config.append("        - ").append(yamlString(words.getString(i))).append("\n");
+                }
+            }
+        }
+        return config.toString();
+    }
+
+    private static List<String> sortedKeys(JSONObject json) {
+        List<String> keys = new ArrayList<>();
+        Iterator<String> it = json.keys();
+        while(it.hasNext()) {
+            keys.add(it.next());
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Quotes a yaml scalar unless it would be read back as the same string.
+     * e.g. chapter 01 must be quoted so it is not read as a number
+     *
+     * @param value
+     * @return
+     */
+    static String yamlString(String value) {
+        if(PLAIN_YAML.matcher(value).matches() && !RESERVED_YAML.matcher(value).matches()) return value;
+        return "'" + value.replace("'", "''") + "'";
+    }
+}
@@ -12,15 +12,16 @@ import org.unfoldingword.resourcecontainer.ContainerTools;
 import org.unfoldingword.resourcecontainer.Project;
 import org.unfoldingword.resourcecontainer.Resource;
 import org.unfoldingword.resourcecontainer.ResourceContainer;
-import org.unfoldingword.tools.http.GetRequest;
 
 import java.io.IOException;
-import java.net.URL;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /**
  * Created by joel on 9/19/16.
@@ -36,27 +37,160 @@ class LegacyTools {
     public static void injectGlobalCatalogs(Library library, String host) throws Exception {
         host = host != null && !host.trim().isEmpty() ? host : "https://td.unfoldingword.org";
 
-        library.addCatalog(new Catalog("langnames", host + "/exports/langnames.json", 0));
+        injectCatalog(library, new Catalog("langnames", host + "/exports/langnames.json", 0));
         // TRICKY: the trailing / is required on these urls
-        library.addCatalog(new Catalog("new-language-questions", host + "/api/questionnaire/", 0));
-        library.addCatalog(new Catalog("temp-langnames", host + "/api/templanguages/", 0));
+        injectCatalog(library, new Catalog("new-language-questions", host + "/api/questionnaire/", 0));
+        injectCatalog(library, new Catalog("temp-langnames", host + "/api/templanguages/", 0));
         // TRICKY: this catalog should always be indexed after langnames and temp-langnames otherwise the linking will fail!
-        library.addCatalog(new Catalog("approved-temp-langnames", host + "/api/templanguages/assignment/changed/", 0));
+        injectCatalog(library, new Catalog("approved-temp-langnames", host + "/api/templanguages/assignment/changed/", 0));
     }
 
-    public static void processCatalog(Library library, String data, OnProgressListener listener) throws Exception {
-        JSONArray projects = new JSONArray(data);
-        for(int i = 0; i < projects.length(); i ++) {
-            JSONObject pJson = projects.getJSONObject(i);
-            if(listener != null) {
-                if(!listener.onProgress(pJson.getString("slug"), projects.length(), i + 1)) break;
+    /**
+     * Returns the host of the legacy api
+     * @param host the configured host or null
+     * @return
+     */
+    private static String legacyHost(String host) {
+        return host != null && !host.trim().isEmpty() ? host : "https://api.unfoldingword.org";
+    }
+
+    /**
+     * Adds a catalog unless it already exists.
+     * This keeps the recorded modification date of existing catalogs.
+     *
+     * @param library
+     * @param catalog
+     * @throws Exception
+     */
+    private static void injectCatalog(Library library, Catalog catalog) throws Exception {
+        Catalog existing = library.getCatalog(catalog.slug);
+        if(existing == null || !existing.url.equals(catalog.url)) {
+            library.addCatalog(catalog);
+        }
+    }
+
+    /**
+     * Indexes the legacy primary catalog.
+     * The language and resource catalogs are downloaded in parallel by the fetcher
+     * while they are applied to the library in order on the calling thread.
+     *
+     * TRICKY: the legacy api propagates modifications up to the parent catalogs.
+     * So when a catalog has not changed we can safely skip every catalog below it as well.
+     *
+     * @param library
+     * @param host the host of the legacy api used for the tA and chunk catalogs
+     * @param catalog the primary catalog
+     * @param fetcher downloads the nested catalogs
+     * @param stamps the indexed modification stamps. If null every project will be indexed again.
+     * @param report receives a summary of the changes
+     * @param listener
+     * @throws Exception
+     */
+    public static void processCatalog(Library library, String host, CatalogFetcher.Response catalog, CatalogFetcher fetcher, SourceStamps stamps, UpdateReport report, ProgressReporter listener) throws Exception {
+        boolean complete = true;
+        if(catalog.isModified()) {
+            try {
+                complete = processProjects(library, legacyHost(host), catalog, fetcher, stamps, report, listener);
+            } finally {
+                catalog.release();
             }
-            downloadSourceLanguages(library, pJson, null);
-            library.yieldSafely();
         }
 
         // tA
-        updateTA(library, listener);
+        updateTA(library, legacyHost(host), fetcher, listener);
+
+        // TRICKY: only remember the catalog once everything below it has been indexed
+        if(complete) library.setHttpValidator(catalog.validator);
+    }
+
+    /**
+     * Indexes the projects in the primary catalog.
+     * The projects are streamed from the catalog so only the pending projects are held in memory.
+     *
+     * @param library
+     * @param host the host of the legacy api
+     * @param catalog the primary catalog
+     * @param fetcher
+     * @param stamps
+     * @param report
+     * @param listener
+     * @return false if the operation was canceled
+     * @throws Exception
+     */
+    private static boolean processProjects(Library library, String host, CatalogFetcher.Response catalog, CatalogFetcher fetcher, SourceStamps stamps, UpdateReport report, ProgressReporter listener) throws Exception {
+        // TRICKY: the total is estimated from the bytes read so the catalog does not have to be counted first
+        long length = catalog.length();
+        CountingInputStream in = catalog.openStream();
+        // TRICKY: we only fetch a few projects ahead of the writer so memory stays bounded on large catalogs
+        int lookAhead = fetcher.getWorkers() * 2;
+        List<JSONObject> pendingProjects = new ArrayList<>();
+        List<Future<LanguageCatalog>> pending = new ArrayList<>();
+        JsonArrayReader projects = new JsonArrayReader(new InputStreamReader(in, "UTF-8"));
+        long numRead = 0;
+        try {
+            for(int i = 0; i < lookAhead && projects.hasNext(); i ++) {
+                JSONObject pJson = projects.next();
+                pendingProjects.add(pJson);
+                pending.add(fetchSourceLanguages(fetcher, pJson, stamps));
+                numRead ++;
+            }
+            for(long complete = 1; !pendingProjects.isEmpty(); complete ++) {
+                JSONObject pJson = pendingProjects.remove(0);
+                Future<LanguageCatalog> languages = pending.remove(0);
+                if(projects.hasNext()) {
+                    JSONObject next = projects.next();
+                    pendingProjects.add(next);
+                    pending.add(fetchSourceLanguages(fetcher, next, stamps));
+                    numRead ++;
+                }
+                long numProjects = projects.hasNext() ? in.estimateTotal(numRead, length) : numRead;
+                if(!listener.report("catalog", ProgressEvent.Phase.PARSE, length, Math.min(in.getCount(), length))
+                        || !listener.report(pJson.getString("slug"), ProgressEvent.Phase.FETCH, numProjects, complete - 1)) {
+                    languages.cancel(true);
+                    cancel(pending, 0);
+                    return false;
+                }
+                LanguageCatalog languageCatalog = CatalogFetcher.await(languages);
+                try {
+                    if(languageCatalog.response.isModified()) {
+                        downloadSourceLanguages(library, host, pJson, languageCatalog, stamps != null, report);
+                    } else {
+                        report.skip();
+                    }
+                } finally {
+                    languageCatalog.response.release();
+                }
+                library.setHttpValidator(languageCatalog.response.validator);
+                library.yieldSafely();
+                if(!listener.onProgress(pJson.getString("slug"), numProjects, complete)) {
+                    cancel(pending, 0);
+                    return false;
+                }
+            }
+        } finally {
+            projects.close();
+        }
+        return true;
+    }
+
+    /**
+     * Reads the legacy modification stamp from a catalog entry
+     * @param json
+     * @return the date or 0 if it is missing
+     */
+    private static int getDateModified(JSONObject json) {
+        return json.optInt("date_modified", 0);
+    }
+
+    /**
+     * Cancels the pending fetches starting at the given position
+     * @param pending
+     * @param start
+     */
+    private static void cancel(List<? extends Future<?>> pending, int start) {
+        for(int i = start; i < pending.size(); i ++) {
+            if(pending.get(i) != null) pending.get(i).cancel(true);
+        }
     }
 
     /**
@@ -79,6 +213,22 @@ class LegacyTools {
      */
     public static String normalizeSlug(String slug) throws Exception {
         if(slug == null || slug.isEmpty()) throw new Exception("slug cannot be an empty string");
+
+        // TRICKY: this is called for every chunk so plain digits are handled without regex or exceptions
+        int length = slug.length();
+        boolean digits = length < 10;
+        for(int i = 0; digits && i < length; i ++) {
+            char c = slug.charAt(i);
+            digits = c >= '0' && c <= '9';
+        }
+        if(digits) {
+            int start = 0;
+            while(start < length && slug.charAt(start) == '0') start ++;
+            if(length - start >= 2) return start == 0 ? slug : slug.substring(start);
+            if(length - start == 1) return "0" + slug.charAt(start);
+            return "00";
+        }
+
         if(!isInteger(slug)) return slug;
         slug = slug.replaceAll("^(0+)", "").trim();
         while(slug.length() < 2) {
@@ -93,6 +243,10 @@ class LegacyTools {
      * @return
      */
     protected static boolean isInteger(String s) {
+        // avoid the exception for words
+        if(s == null || s.isEmpty()) return false;
+        char first = s.charAt(0);
+        if(first != '-' && first != '+' && !Character.isDigit(first)) return false;
         try {
             Integer.parseInt(s);
         } catch(NumberFormatException e) {
@@ -106,41 +260,50 @@ class LegacyTools {
     /**
      * Downloads the tA projects
      * @param library
+     * @param host the host of the legacy api
      * @param listener
      * @throws Exception
      */
-    private static void updateTA(Library library, OnProgressListener listener) throws Exception {
+    private static void updateTA(Library library, String host, CatalogFetcher fetcher, ProgressReporter listener) throws Exception {
         String[] urls = new String[]{
-                "https://api.unfoldingword.org/ta/txt/1/en/audio_2.json",
-                "https://api.unfoldingword.org/ta/txt/1/en/checking_1.json",
-                "https://api.unfoldingword.org/ta/txt/1/en/checking_2.json",
-                "https://api.unfoldingword.org/ta/txt/1/en/gateway_3.json",
-                "https://api.unfoldingword.org/ta/txt/1/en/intro_1.json",
-                "https://api.unfoldingword.org/ta/txt/1/en/process_1.json",
-                "https://api.unfoldingword.org/ta/txt/1/en/translate_1.json",
-                "https://api.unfoldingword.org/ta/txt/1/en/translate_2.json"
+                host + "/ta/txt/1/en/audio_2.json",
+                host + "/ta/txt/1/en/checking_1.json",
+                host + "/ta/txt/1/en/checking_2.json",
+                host + "/ta/txt/1/en/gateway_3.json",
+                host + "/ta/txt/1/en/intro_1.json",
+                host + "/ta/txt/1/en/process_1.json",
+                host + "/ta/txt/1/en/translate_1.json",
+                host + "/ta/txt/1/en/translate_2.json"
         };
+        List<Future<CatalogFetcher.Response>> pending = new ArrayList<>();
+        for(String url:urls) {
+            pending.add(fetcher.fetch(url));
+        }
         for(int i = 0; i < urls.length; i ++) {
-            downloadTA(library, urls[i]);
-            if(listener != null) {
-                if(!listener.onProgress("ta", urls.length, i + 1)) break;
+            CatalogFetcher.Response response = CatalogFetcher.await(pending.get(i));
+            listener.report("ta", ProgressEvent.Phase.FETCH, urls.length, i + 1);
+            if(response.isModified()) {
+                downloadTA(library, urls[i], response.body);
+            }
+            library.setHttpValidator(response.validator);
+            if(!listener.onProgress("ta", urls.length, i + 1)) {
+                cancel(pending, i + 1);
+                break;
             }
             library.yieldSafely();
         }
     }
 
     /**
-     * Downloads the tA projects
+     * Indexes a downloaded tA project
      * Continues from updateTA()
      *
      * @param library
      * @param url
+     * @param data the downloaded tA catalog
      * @throws Exception
      */
-    private static void downloadTA(Library library, String url) throws Exception {
-        GetRequest get = new GetRequest(new URL(url));
-        String data = get.read();
-        if(get.getResponseCode() != 200) throw new Exception(get.getResponseMessage());
+    private static void downloadTA(Library library, String url, String data) throws Exception {
         JSONObject ta = new JSONObject(data);
 
         // add language (right now only english)
@@ -181,63 +344,119 @@ class LegacyTools {
     }
 
     /**
-     * This will download the source languages for a project.
+     * Queues the download of the source languages for a project.
+     * Once the language catalog arrives the resource catalogs for each language are queued as well.
+     *
+     * Unchanged language catalogs are skipped by their http validators
+     * and unchanged languages will not be downloaded when performing an incremental update.
+     *
+     * @param fetcher
+     * @param pJson the project json
+     * @param stamps the indexed modification stamps or null
+     * @return the pending language catalog
+     * @throws Exception
+     */
+    private static Future<LanguageCatalog> fetchSourceLanguages(final CatalogFetcher fetcher, JSONObject pJson, final SourceStamps stamps) throws Exception {
+        final String projectSlug = pJson.getString("slug");
+        final String url = pJson.getString("lang_catalog");
+        return fetcher.submit(new Callable<LanguageCatalog>() {
+            @Override
+            public LanguageCatalog call() throws Exception {
+                CatalogFetcher.Response response = fetcher.spool(url);
+                List<Future<CatalogFetcher.Response>> resources = new ArrayList<>();
+                if(!response.isModified()) {
+                    return new LanguageCatalog(response, resources);
+                }
+                JsonArrayReader languages = new JsonArrayReader(response.openReader());
+                try {
+                    while(languages.hasNext()) {
+                        JSONObject lJson = languages.next();
+                        JSONObject language = lJson.getJSONObject("language");
+                        if(stamps != null && stamps.isLanguageCurrent(language.getString("slug"), projectSlug, getDateModified(language))) {
+                            resources.add(null);
+                        } else {
+                            resources.add(fetcher.fetch(lJson.getString("res_catalog")));
+                        }
+                    }
+                } catch (Exception e) {
+                    response.release();
+                    throw e;
+                } finally {
+                    languages.close();
+                }
+                return new LanguageCatalog(response, resources);
+            }
+        });
+    }
+
+    /**
+     * This will index the source languages for a project.
      * Some of the project info is mixed with languages
      * so we are creating the projects and langauges here
      *
      * @param library
+     * @param host the host of the legacy api
      * @param pJson the project json
-     * @param listener
+     * @param catalog the downloaded language catalog
+     * @param incremental indicates unchanged resources should be skipped
+     * @param report
      * @throws Exception
      */
-    private static void downloadSourceLanguages(Library library, JSONObject pJson, OnProgressListener listener) throws Exception {
-        GetRequest request = new GetRequest(new URL(pJson.getString("lang_catalog")));
-        String response = request.read();
-        if(request.getResponseCode() != 200) throw new Exception(request.getResponseMessage());
-
+    private static void downloadSourceLanguages(Library library, String host, JSONObject pJson, LanguageCatalog catalog, boolean incremental, UpdateReport report) throws Exception {
         String chunksUrl = "";
         if(!pJson.getString("slug").toLowerCase().equals("obs")) {
-            chunksUrl = "https://api.unfoldingword.org/bible/txt/1/" + pJson.getString("slug") + "/chunks.json";
+            chunksUrl = host + "/bible/txt/1/" + pJson.getString("slug") + "/chunks.json";
         }
 
-        JSONArray languages = new JSONArray(response);
-        for(int i = 0; i < languages.length(); i ++) {
-            JSONObject lJson = languages.getJSONObject(i);
-
-            if(listener != null) {
-                if(!listener.onProgress(lJson.getJSONObject("language").getString("slug") + pJson.getString("slug"), languages.length(), i + 1)) break;
-            }
+        int numLanguages = catalog.resources.size();
+        JsonArrayReader languages = new JsonArrayReader(catalog.response.openReader());
+        try {
+            for(int i = 0; i < numLanguages && languages.hasNext(); i ++) {
+                JSONObject lJson = languages.next();
+                if(catalog.resources.get(i) == null) {
+                    report.skip();
+                    continue;
+                }
 
-            SourceLanguage sl = new SourceLanguage(lJson.getJSONObject("language").getString("slug"),
-                    lJson.getJSONObject("language").getString("name"),
-                    lJson.getJSONObject("language").getString("direction"));
-            long languageId = library.addSourceLanguage(sl);
-
-            // TODO: retrieve the correct versification name(s) from the source language
-            library.addVersification(new Versification("en-US", "American English"), languageId);
-
-            Project project = new Project(pJson.getString("slug"),
-                    lJson.getJSONObject("project").getString("name"),
-                    pJson.getInt("sort"));
-            project.description = lJson.getJSONObject("project").getString("desc");
-            project.chunksUrl = chunksUrl;
-            List<Category> categories = new ArrayList<>();
-            if(pJson.has("meta")) {
-                for(int j = 0; j < pJson.getJSONArray("meta").length(); j ++) {
-                    String slug = pJson.getJSONArray("meta").getString(j);
-                    categories.add(new Category(slug, lJson.getJSONObject("project").getJSONArray("meta").getString(j)));
+                SourceLanguage sl = new SourceLanguage(lJson.getJSONObject("language").getString("slug"),
+                        lJson.getJSONObject("language").getString("name"),
+                        lJson.getJSONObject("language").getString("direction"));
+                long languageId = library.addSourceLanguage(sl);
+
+                // TODO: retrieve the correct versification name(s) from the source language
+                library.addVersification(new Versification("en-US", "American English"), languageId);
+
+                Project project = new Project(pJson.getString("slug"),
+                        lJson.getJSONObject("project").getString("name"),
+                        pJson.getInt("sort"));
+                project.description = lJson.getJSONObject("project").getString("desc");
+                project.chunksUrl = chunksUrl;
+                List<Category> categories = new ArrayList<>();
+                if(pJson.has("meta")) {
+                    for(int j = 0; j < pJson.getJSONArray("meta").length(); j ++) {
+                        String slug = pJson.getJSONArray("meta").getString(j);
+                        categories.add(new Category(slug, lJson.getJSONObject("project").getJSONArray("meta").getString(j)));
+                    }
                 }
-            }
 
-            long projectId = library.addProject(project, categories, languageId);
+                long projectId = library.addProject(project, categories, languageId);
 
-            downloadResources(library, projectId, pJson, languageId, lJson);
-            library.yieldSafely();
+                CatalogFetcher.Response resources = CatalogFetcher.await(catalog.resources.get(i));
+                if(resources.isModified()) {
+                    downloadResources(library, projectId, pJson, languageId, lJson, resources.body, incremental, report);
+                } else {
+                    report.skip();
+                }
+                library.setHttpValidator(resources.validator);
+                library.yieldSafely();
+            }
+        } finally {
+            languages.close();
         }
     }
 
     /**
-     * Downloads resources for a project.
+     * Indexes the resources for a project.
      * This will split notes and questions into their own resource.
      * words are added as a new project.
      *
@@ -246,17 +465,28 @@ class LegacyTools {
      * @param pJson
      * @param languageId
      * @param lJson
+     * @param response the downloaded resource catalog
+     * @param incremental indicates unchanged resources should be skipped
+     * @param report
      * @throws Exception
      */
-    private static void downloadResources(Library library, long projectId, JSONObject pJson, long languageId, JSONObject lJson) throws Exception {
-        GetRequest request = new GetRequest(new URL(lJson.getString("res_catalog")));
-        String response = request.read();
-        if(request.getResponseCode() != 200) throw new Exception(request.getResponseMessage());
-
+    private static void downloadResources(Library library, long projectId, JSONObject pJson, long languageId, JSONObject lJson, String response, boolean incremental, UpdateReport report) throws Exception {
+        Map<String, Integer> indexed = library.listResourcesLastModified(lJson.getJSONObject("language").getString("slug"), pJson.getString("slug"));
+        Library.BatchWriter batch = library.getBatchWriter();
         JSONArray resources = new JSONArray(response);
         for(int i = 0; i < resources.length(); i ++) {
             JSONObject rJson = resources.getJSONObject(i);
 
+            Integer indexedDate = indexed.get(rJson.getString("slug"));
+            if(indexedDate == null) {
+                report.insert();
+            } else if(incremental && getDateModified(rJson) > 0 && getDateModified(rJson) <= indexedDate) {
+                report.skip();
+                continue;
+            } else {
+                report.update();
+            }
+
             String translateMode;
             switch(rJson.getString("slug").toLowerCase()) {
                 case "obs":
@@ -276,7 +506,7 @@ class LegacyTools {
             Resource.Format format = new Resource.Format(ResourceContainer.version, ContainerTools.typeToMime("book"), rJson.getInt("date_modified"), rJson.getString("source"), false);
             resource.addFormat(format);
 
-            long resourceId = library.addResource(resource, projectId);
+            long resourceId = batch.addResource(resource, projectId);
 
             // coerce notes to resource
             if(rJson.has("notes") && !rJson.getString("notes").isEmpty()) {
@@ -295,7 +525,7 @@ class LegacyTools {
                 Resource tnResource = (Resource) Resource.fromJSON(rJson);
                 Resource.Format tnFormat = new Resource.Format(ResourceContainer.version, ContainerTools.typeToMime("help"), rJson.getInt("date_modified"), rJson.getString("notes"), false);
                 tnResource.addFormat(tnFormat);
-                library.addResource(tnResource, projectId);
+                batch.addResource(tnResource, projectId);
             }
 
             // coerce questions to resource
@@ -316,7 +546,7 @@ class LegacyTools {
                 Resource tqResource = (Resource) Resource.fromJSON(rJson);
                 Resource.Format tqFormat = new Resource.Format(ResourceContainer.version, ContainerTools.typeToMime("help"), rJson.getInt("date_modified"), rJson.getString("checking_questions"), false);
                 tqResource.addFormat(tqFormat);
-                library.addResource(tqResource, projectId);
+                batch.addResource(tqResource, projectId);
             }
 
             // add words project (this is insert/update so it will only be added once)
@@ -344,30 +574,29 @@ class LegacyTools {
                 Resource twResource = (Resource) Resource.fromJSON(rJson);
                 Resource.Format twFormat = new Resource.Format(ResourceContainer.version, ContainerTools.typeToMime("dict"), rJson.getInt("date_modified"), rJson.getString("terms"), false);
                 twResource.addFormat(twFormat);
-                library.addResource(twResource, wordsProjectId);
+                batch.addResource(twResource, wordsProjectId);
             }
             library.yieldSafely();
         }
     }
 
     /**
-     * Downloads chunks for a project
+     * Indexes the chunks for a project
      * @param library
-     * @param chunksUrl
+     * @param data the downloaded chunks
      * @param projectSlug
      * @throws Exception
      */
-    private static void downloadChunks(Library library, String chunksUrl, String projectSlug) throws Exception {
+    private static void downloadChunks(Library library, String data, String projectSlug) throws Exception {
         // TODO: pull the correct versification slug from the data. For now there is only one versification
         Versification v = library.getVersification("en", "en-US");
         if(v != null) {
-            GetRequest request = new GetRequest(new URL(chunksUrl));
-            String data = request.read();
+            Library.BatchWriter batch = library.getBatchWriter();
             JSONArray chunks = new JSONArray(data);
             for(int i = 0; i < chunks.length(); i ++) {
                 JSONObject chunk = chunks.getJSONObject(i);
                 ChunkMarker cm = new ChunkMarker(chunk.getString("chp"), chunk.getString("firstvs"));
-                library.addChunkMarker(cm, projectSlug, v.rowId);
+                batch.addChunkMarker(cm, projectSlug, v.rowId);
                 library.yieldSafely();
             }
         } else {
@@ -427,7 +656,7 @@ class LegacyTools {
         return list;
     }
 
-    public static void processChunks(Library library, OnProgressListener listener) throws Exception {
+    public static void processChunks(Library library, CatalogFetcher fetcher, ProgressReporter listener) throws Exception {
         // TRICKY: currently all chunk markers are defined according to the english versification system
         Map<String, String> markers = new HashMap<>();
         for(SourceLanguage l:library.getSourceLanguages()) {
@@ -438,13 +667,40 @@ class LegacyTools {
             }
         }
 
-        int pos = 0;
-        for(String key:markers.keySet()) {
-            downloadChunks(library, markers.get(key), key);
-            pos ++;
-            if(listener != null) {
-                if(!listener.onProgress("chunk_markers", markers.size(), pos)) break;
+        List<String> projectSlugs = new ArrayList<>(markers.keySet());
+        List<Future<CatalogFetcher.Response>> pending = new ArrayList<>();
+        for(String key:projectSlugs) {
+            pending.add(fetcher.fetch(markers.get(key)));
+        }
+        for(int pos = 0; pos < projectSlugs.size(); pos ++) {
+            CatalogFetcher.Response response = CatalogFetcher.await(pending.get(pos));
+            listener.report("chunk_markers", ProgressEvent.Phase.FETCH, markers.size(), pos + 1);
+            if(response.isModified()) {
+                downloadChunks(library, response.body, projectSlugs.get(pos));
+            }
+            library.setHttpValidator(response.validator);
+            if(!listener.onProgress("chunk_markers", markers.size(), pos + 1)) {
+                cancel(pending, pos + 1);
+                break;
             }
         }
     }
+
+    /**
+     * A downloaded language catalog along with the pending resource catalogs for each language
+     */
+    private static class LanguageCatalog {
+        public final CatalogFetcher.Response response;
+        public final List<Future<CatalogFetcher.Response>> resources;
+
+        /**
+         *
+         * @param response the language catalog response
+         * @param resources the pending resource catalogs for each language
+         */
+        public LanguageCatalog(CatalogFetcher.Response response, List<Future<CatalogFetcher.Response>> resources) {
+            this.response = response;
+            this.resources = resources;
+        }
+    }
 }
@@ -2,8 +2,11 @@ package org.unfoldingword.door43client;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 import org.jetbrains.annotations.Nullable;
 import org.json.JSONException;
@@ -18,29 +21,86 @@ import org.unfoldingword.door43client.models.Translation;
 import org.unfoldingword.door43client.models.Versification;
 import org.unfoldingword.door43client.models.Catalog;
 import org.unfoldingword.door43client.models.Questionnaire;
+import org.unfoldingword.door43client.models.SearchHit;
 import org.unfoldingword.resourcecontainer.ContainerTools;
 import org.unfoldingword.resourcecontainer.Language;
 import org.unfoldingword.resourcecontainer.Project;
 import org.unfoldingword.resourcecontainer.Resource;
 import org.unfoldingword.resourcecontainer.ResourceContainer;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * Manages the indexed library content.
  */
 class Library implements Index {
+    static final String SEARCH_PROJECT = "project";
+    static final String SEARCH_RESOURCE = "resource";
+    static final String SEARCH_CATEGORY = "category";
+
+    /**
+     * The resource format columns to select when joining resource_format as fmt
+     */
+    private static final String FORMAT_COLUMNS = " fmt.package_version as format_package_version, fmt.mime_type as format_mime_type," +
+            " fmt.modified_at as format_modified_at, fmt.url as format_url, fmt.imported as format_imported";
+
+    /**
+     * Recounts the imported formats of the resource bound to ?1.
+     * The row is only written when the count changed.
+     */
+    private static final String UPDATE_NUM_IMPORTED = "update resource set num_imported=(" +
+            "select count(*) from resource_format where imported=1 and resource_id=?1" +
+            ") where id=?1 and num_imported!=(" +
+            "select count(*) from resource_format where imported=1 and resource_id=?1)";
+
+    /**
+     * The languages used when a project is not available in the requested language
+     */
+    private static final String[] DEFAULT_FALLBACK_LANGUAGES = {"en"};
+
+    /**
+     * Selects the project that should be used for the project slug f.slug in the language bound to the argument.
+     * This is the project in that language or else the fallback project.
+     */
+    private static final String FALLBACK_PROJECT = "select p.*, sl.slug as source_language_slug from project_fallback as f" +
+            " join project as p on p.id=coalesce((" +
+            "  select lp.id from project as lp" +
+            "  where lp.source_language_id=(select id from source_language where slug=?) and lp.slug=f.slug" +
+            " ), f.project_id)" +
+            " join source_language as sl on sl.id=p.source_language_id";
 
     private final SQLiteHelper sqliteHelper;
     private final SQLiteDatabase db;
+    private BatchWriter batchWriter = null;
+    private final Map<String, String> stagedTables = new LinkedHashMap<>();
+    private volatile TargetLanguageSearchIndex targetLanguageIndex = null;
+    private final AtomicInteger targetLanguageGeneration = new AtomicInteger();
+    private volatile CategoryTree categoryTree = null;
+    private final AtomicInteger categoryGeneration = new AtomicInteger();
+    private final AtomicLong queryCount = new AtomicLong();
+    private final IndexCache cache = new IndexCache();
+    private volatile Metrics metrics = null;
+    private volatile QueryObserver queryObserver = null;
+    private volatile String[] fallbackLanguages = DEFAULT_FALLBACK_LANGUAGES;
+    // TRICKY: transactions are bound to a single thread so only the thread holding the transaction touches these
+    private int transactionDepth = 0;
+    private boolean transactionMetered = false;
+    private long transactionStart = 0;
+    private long transactionChanges = 0;
+    private boolean transactionWritten = false;
+    private final AtomicLong rowsWritten = new AtomicLong();
 
     /**
      * Instantiates a new library
@@ -52,6 +112,7 @@ class Library implements Index {
         if(this.db.getVersion() == 0) throw new IOException("Invalid database version." +
                 "You probably manually generted the database and forgot to set the " +
                 "\"User Version\" to " + SQLiteHelper.DATABASE_VERSION);
+        this.fallbackLanguages = loadFallbackLanguages();
     }
 
     /**
@@ -66,6 +127,12 @@ class Library implements Index {
      */
     public void beginTransaction() {
         db.beginTransactionNonExclusive();
+        if(transactionDepth ++ == 0) {
+            transactionMetered = metrics != null;
+            transactionStart = System.nanoTime();
+            transactionChanges = countChanges();
+            rowsWritten.set(transactionChanges);
+        }
     }
 
     /**
@@ -76,16 +143,297 @@ class Library implements Index {
         if(success) {
             db.setTransactionSuccessful();
         }
+        // TRICKY: the bookkeeping must be finished before the transaction ends
+        // since another thread may begin a transaction as soon as the connection is released
+        boolean outermost = -- transactionDepth == 0;
+        boolean committed = outermost && transactionWritten;
+        Metrics m = outermost && transactionMetered ? metrics : null;
+        long changes = 0;
+        long held = 0;
+        if(outermost) {
+            transactionWritten = false;
+            long total = countChanges();
+            changes = total - transactionChanges;
+            held = System.nanoTime() - transactionStart;
+            rowsWritten.set(total);
+            closeBatchWriter();
+        }
         db.endTransaction();
+        if(m != null) m.onTransaction(held, changes, success);
+        if(!success || committed) {
+            // TRICKY: models may have been cached from changes that were just rolled back.
+            // Readers on other connections don't see the changes until they are committed
+            // so they may also have cached the old content after it was invalidated.
+            invalidateTargetLanguages();
+            invalidateCategories();
+            cache.clear();
+        }
+    }
+
+    /**
+     * Returns the batch writer for the current transaction.
+     * The writer is created on first use and released when the outermost transaction ends.
+     *
+     * @return
+     */
+    synchronized public BatchWriter getBatchWriter() {
+        if(!db.inTransaction()) throw new IllegalStateException("Batch writes must be performed within a transaction");
+        if(batchWriter == null) batchWriter = new BatchWriter();
+        return batchWriter;
+    }
+
+    synchronized private void closeBatchWriter() {
+        if(batchWriter != null) {
+            batchWriter.close();
+            batchWriter = null;
+        }
+    }
+
+    /**
+     * Creates empty staging copies of some tables so they can be re-loaded without disturbing readers.
+     * Until the staging is committed or discarded all writes made through the library to these tables
+     * are redirected to the copies, while reads continue to see the current content.
+     *
+     * TRICKY: the copies are temporary tables so they only exist on the writer's connection
+     * and are dropped automatically if the database is closed.
+     * Write to them within a transaction since queries outside of one may run on a read-only connection.
+     *
+     * @param tables the tables to stage. Parent tables must be listed before their children.
+     * @throws Exception
+     */
+    synchronized public void beginStaging(String... tables) throws Exception {
+        discardStaging();
+        for(String table:tables) {
+            Cursor cursor = rawQuery("select sql from sqlite_master where type='table' and name=?", new String[]{table});
+            String sql = null;
+            if(cursor.moveToFirst()) sql = cursor.getString(0);
+            cursor.close();
+            if(sql == null) {
+                discardStaging();
+                throw new Exception("Unknown table " + table);
+            }
+
+            // point the definition and any references between the staged tables at the copies
+            for(String t:tables) {
+                sql = sql.replaceAll("[`\"]?\\b" + t + "\\b[`\"]?", "`" + t + "_staging`");
+            }
+            sql = sql.replaceFirst("(?i)^\\s*CREATE\\s+TABLE", "CREATE TEMP TABLE");
+            countStatement(false);
+            db.execSQL("drop table if exists temp.`" + table + "_staging`");
+            countStatement(false);
+            db.execSQL(sql);
+            stagedTables.put(table, table + "_staging");
+        }
+        // TRICKY: compiled statements are bound to the tables they were compiled against
+        closeBatchWriter();
+    }
+
+    /**
+     * Replaces the content of the staged tables with their copies.
+     * This should be performed within a transaction so readers see either the old or the new content.
+     */
+    synchronized public void commitStaging() {
+        List<String> tables = new ArrayList<>(stagedTables.keySet());
+        for(int i = tables.size() - 1; i >= 0; i --) {
+            countStatement(false);
+            db.execSQL("delete from `" + tables.get(i) + "`");
+        }
+        for(String table:tables) {
+            countStatement(false);
+            db.execSQL("insert into `" + table + "` select * from temp.`" + stagedTables.get(table) + "`");
+        }
+        invalidateTargetLanguages();
+        discardStaging();
+    }
+
+    /**
+     * Drops the staging copies without touching the staged tables.
+     * This does nothing if nothing has been staged.
+     */
+    synchronized public void discardStaging() {
+        if(stagedTables.isEmpty()) return;
+        closeBatchWriter();
+        for(String staging:stagedTables.values()) {
+            countStatement(false);
+            db.execSQL("drop table if exists temp.`" + staging + "`");
+        }
+        stagedTables.clear();
+    }
+
+    /**
+     * Returns the name of the table that should receive writes.
+     * This will be the staging copy if the table is being staged.
+     * @param table
+     * @return
+     */
+    synchronized private String table(String table) {
+        String staging = stagedTables.get(table);
+        return staging != null ? staging : table;
     }
 
     /**
      * Closes the database
      */
     public void closeDatabase() {
+        closeBatchWriter();
         sqliteHelper.close();
     }
 
+    /**
+     * Runs a query against the database
+     * @param sql
+     * @param selectionArgs
+     * @return
+     */
+    private Cursor rawQuery(String sql, String[] selectionArgs) {
+        queryCount.incrementAndGet();
+        QueryObserver observer = queryObserver;
+        if(observer != null) observer.onQuery(sql, selectionArgs);
+        Metrics m = metrics;
+        if(m == null) return db.rawQuery(sql, selectionArgs);
+        m.onStatement(true);
+        return new MeteredCursor(db.rawQuery(sql, selectionArgs), m);
+    }
+
+    /**
+     * Reports a sql statement to the metrics
+     * @param query true if the statement reads rows
+     */
+    private void countStatement(boolean query) {
+        if(!query && transactionDepth > 0) transactionWritten = true;
+        Metrics m = metrics;
+        if(m != null) m.onStatement(query);
+    }
+
+    /**
+     * Sets the metrics that will receive the sql statement counts, rows read and written, and transaction times
+     * @param metrics the metrics or null to stop recording
+     */
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the observer that will receive the queries run by the library.
+     * This is used to check the query plans.
+     * @param observer the observer or null to stop observing
+     */
+    void setQueryObserver(QueryObserver observer) {
+        this.queryObserver = observer;
+    }
+
+    /**
+     * Sets the maximum number of models that will be cached.
+     * Source languages, projects, resources, categories and translations that are looked up by slug are cached.
+     *
+     * TRICKY: cached models are shared between callers so they must not be modified.
+     *
+     * @param maxEntries the number of models to cache. Use 0 to disable the cache.
+     */
+    public void setCacheSize(int maxEntries) {
+        cache.setMaxEntries(maxEntries);
+    }
+
+    /**
+     * Sets the languages that are used in order when a project is not available in the requested language.
+     * Projects that are not available in any of these languages fall back to the first language they were added in.
+     *
+     * The fallback projects are rebuilt when the languages change.
+     *
+     * @param languageSlugs the source language slugs. Leave empty to use the default of "en"
+     * @throws Exception
+     */
+    public synchronized void setFallbackLanguages(String... languageSlugs) throws Exception {
+        String[] languages = languageSlugs.length > 0 ? languageSlugs : DEFAULT_FALLBACK_LANGUAGES;
+        if(Arrays.equals(languages, fallbackLanguages)) return;
+
+        StringBuilder rank = new StringBuilder("case sl.slug");
+        for(int i = 0; i < languages.length; i ++) {
+            rank.append(" when ? then ").append(i);
+        }
+        rank.append(" else ").append(languages.length).append(" end");
+
+        boolean success = false;
+        beginTransaction();
+        try {
+            countStatement(false);
+            db.delete("fallback_language", null, null);
+            if(languageSlugs.length > 0) {
+                for(String slug:languages) {
+                    ContentValues values = new ContentValues();
+                    values.put("slug", slug);
+                    countStatement(false);
+                    db.insertOrThrow("fallback_language", null, values);
+                }
+            }
+            countStatement(false);
+            db.delete("project_fallback", null, null);
+            // TRICKY: the best ranked project of each slug is inserted first so the rest are ignored
+            countStatement(false);
+            db.execSQL("insert or ignore into project_fallback (slug, language_rank, project_id)" +
+                    " select p.slug, " + rank + " as language_rank, p.id from project as p" +
+                    " join source_language as sl on sl.id=p.source_language_id" +
+                    " order by language_rank asc, p.id asc", languages);
+            success = true;
+        } finally {
+            endTransaction(success);
+        }
+        fallbackLanguages = languages;
+        cache.clear();
+    }
+
+    /**
+     * Reads the fallback languages from the database
+     * @return
+     */
+    private String[] loadFallbackLanguages() {
+        List<String> languages = new ArrayList<>();
+        Cursor cursor = rawQuery("select slug from fallback_language order by id asc", null);
+        while(cursor.moveToNext()) {
+            languages.add(cursor.getString(0));
+        }
+        cursor.close();
+        return languages.isEmpty() ? DEFAULT_FALLBACK_LANGUAGES : languages.toArray(new String[languages.size()]);
+    }
+
+    /**
+     * Returns the usage statistics of the cache
+     * @return
+     */
+    public IndexCacheStats getCacheStats() {
+        return cache.getStats();
+    }
+
+    /**
+     * Returns the number of queries that have been run by the library.
+     * This is useful for catching code that issues a query per row.
+     * @return
+     */
+    long getQueryCount() {
+        return queryCount.get();
+    }
+
+    /**
+     * Returns the number of rows that have been inserted, updated or deleted since the database was opened.
+     * Outside of a transaction this is the count from when the last transaction began or ended
+     * so it does not include changes made outside of a transaction since then.
+     * @return
+     */
+    long getRowsWritten() {
+        // TRICKY: the changes are counted per connection so they can only be read by the thread holding the writer's connection
+        if(db.inTransaction()) return countChanges();
+        return rowsWritten.get();
+    }
+
+    /**
+     * Counts the changes made on the writer's connection.
+     * This must only be called within a transaction.
+     * @return
+     */
+    private long countChanges() {
+        return DatabaseUtils.longForQuery(db, "select total_changes()", null);
+    }
+
     /**
      * Ensures a value is not null or empty
      * @param value
@@ -115,9 +463,11 @@ class Library implements Index {
      * @return the id of the inserted row or the id of the existing row.
      */
     synchronized private InsertResult insertOrIgnore(String table, ContentValues values, String[] uniqueColumns) {
+        table = table(table);
         // try to insert
         Exception error = null;
         try {
+            countStatement(false);
             long id = db.insertOrThrow(table, null, values);
             return new InsertResult(id, true);
         } catch (SQLException e) {
@@ -129,7 +479,7 @@ class Library implements Index {
 
         Cursor cursor = null;
         try {
-            cursor = db.rawQuery("select id from " + table + " where " + where.statement, where.arguments);
+            cursor = rawQuery("select id from " + table + " where " + where.statement, where.arguments);
             if (cursor.moveToFirst()) {
                 id = cursor.getLong(0);
                 cursor.close();
@@ -159,6 +509,7 @@ class Library implements Index {
     synchronized private InsertResult insertOrUpdate(String table, ContentValues values, String[] uniqueColumns) throws Exception {
         // insert
         InsertResult result = insertOrIgnore(table, values, uniqueColumns);
+        table = table(table);
         if(!result.inserted) {
             WhereClause where = WhereClause.prepare(values, uniqueColumns);
 
@@ -168,12 +519,13 @@ class Library implements Index {
             }
 
             // update
+            countStatement(false);
             int numRows = db.updateWithOnConflict(table, values, where.statement, where.arguments, SQLiteDatabase.CONFLICT_ROLLBACK);
             if(numRows == 0) {
                 throw new Exception("Failed to update the row in " + table);
             } else {
                 // retrieve updated row id
-                Cursor cursor = db.rawQuery("select id from " + table + " where " + where.statement, where.arguments);
+                Cursor cursor = rawQuery("select id from " + table + " where " + where.statement, where.arguments);
                 if(cursor.moveToFirst()) {
                     long id = cursor.getLong(0);
                     cursor.close();
@@ -205,7 +557,10 @@ class Library implements Index {
         values.put("name", language.name);
         values.put("direction", language.direction);
 
-        return insertOrUpdate("source_language", values, new String[]{"slug"}).id;
+        long id = insertOrUpdate("source_language", values, new String[]{"slug"}).id;
+        cache.invalidate(IndexCache.SOURCE_LANGUAGE, 0, language.slug);
+        cache.invalidate(IndexCache.TRANSLATION, 0, language.slug);
+        return id;
     }
 
     /**
@@ -231,6 +586,7 @@ class Library implements Index {
         values.put("is_gateway_language", language.isGatewayLanguage ? 1: 0);
 
         long id = insertOrUpdate("target_language", values, new String[]{"slug"}).id;
+        invalidateTargetLanguages();
         return id > 0;
     }
 
@@ -248,6 +604,7 @@ class Library implements Index {
         values.put("is_gateway_language", language.isGatewayLanguage ? 1 : 0);
 
         long id = insertOrUpdate("temp_target_language", values, new String[]{"slug"}).id;
+        invalidateTargetLanguages();
         return id > 0;
     }
 
@@ -264,8 +621,10 @@ class Library implements Index {
         ContentValues contentValues = new ContentValues();
         contentValues.put("approved_target_language_slug", targetLanguageSlug);
 
-        int rowsAffected = db.updateWithOnConflict("temp_target_language", contentValues,
+        countStatement(false);
+        int rowsAffected = db.updateWithOnConflict(table("temp_target_language"), contentValues,
                 "slug=?", new String[]{tempTargetLanguageSlug}, SQLiteDatabase.CONFLICT_IGNORE );
+        invalidateTargetLanguages();
 
         return rowsAffected > 0;
     }
@@ -307,7 +666,9 @@ class Library implements Index {
                 updateValues.put("category_id", parentCategoryId);
                 updateValues.put("name", category.name);
 
-                insertOrUpdate("category_name", updateValues, new String[]{"source_language_id", "category_id"});
+                long categoryNameId = insertOrUpdate("category_name", updateValues, new String[]{"source_language_id", "category_id"}).id;
+                indexSearchEntry(SEARCH_CATEGORY, categoryNameId, sourceLanguageId, category.name, "");
+                cache.invalidate(IndexCache.CATEGORY, 1, category.slug);
             }
         }
         // add project
@@ -321,7 +682,36 @@ class Library implements Index {
         updateProject.put("source_language_id", sourceLanguageId);
         updateProject.put("category_id", parentCategoryId);
 
-        return insertOrUpdate("project", updateProject, new String[]{"slug", "source_language_id"}).id;
+        long projectId = insertOrUpdate("project", updateProject, new String[]{"slug", "source_language_id"}).id;
+        indexSearchEntry(SEARCH_PROJECT, projectId, sourceLanguageId, project.name, deNull(project.description));
+        updateProjectFallback(project.slug, projectId, sourceLanguageId);
+        invalidateCategoriesOnCommit();
+        cache.invalidate(IndexCache.PROJECT, 1, project.slug);
+        cache.invalidate(IndexCache.TRANSLATION, 1, project.slug);
+        return projectId;
+    }
+
+    /**
+     * Makes the project the fallback for its slug if its language is preferred over the current fallback
+     * @param projectSlug
+     * @param projectId
+     * @param sourceLanguageId
+     */
+    private void updateProjectFallback(String projectSlug, long projectId, long sourceLanguageId) {
+        Cursor cursor = rawQuery("select slug from source_language where id=" + sourceLanguageId, null);
+        String languageSlug = cursor.moveToFirst() ? cursor.getString(0) : null;
+        cursor.close();
+
+        String[] languages = fallbackLanguages;
+        int rank = Arrays.asList(languages).indexOf(languageSlug);
+        if(rank == -1) rank = languages.length;
+
+        countStatement(false);
+        db.execSQL("update project_fallback set language_rank=" + rank + ", project_id=" + projectId +
+                " where slug=? and language_rank > " + rank, new Object[]{projectSlug});
+        countStatement(false);
+        db.execSQL("insert or ignore into project_fallback (slug, language_rank, project_id)" +
+                " values (?, " + rank + ", " + projectId + ")", new Object[]{projectSlug});
     }
 
     /**
@@ -398,6 +788,93 @@ class Library implements Index {
         return insertOrUpdate("catalog", values, new String[]{"slug"}).id;
     }
 
+    /**
+     * Stores the cache validators of a response once it has been indexed.
+     * This should be performed in the same transaction as the indexing
+     * so the validators never get ahead of the indexed content.
+     *
+     * @param validator
+     * @throws Exception
+     */
+    public void setHttpValidator(HttpValidator validator) throws Exception {
+        validateNotEmpty(validator.url);
+
+        ContentValues values = new ContentValues();
+        values.put("url", validator.url);
+        values.put("etag", validator.etag);
+        values.put("last_modified", validator.lastModified);
+        values.put("content_hash", validator.contentHash);
+
+        insertOrUpdate("http_cache", values, new String[]{"url"});
+    }
+
+    /**
+     * Removes the cache validators of a url so it will be downloaded in full next time.
+     * @param url
+     */
+    public void removeHttpValidator(String url) {
+        countStatement(false);
+        db.delete("http_cache", "url=?", new String[]{url});
+    }
+
+    /**
+     * Removes a resource from the cache.
+     * The category tree is rebuilt as well since it filters projects by their resources.
+     * @param resourceSlug
+     */
+    private void invalidateResource(String resourceSlug) {
+        cache.invalidate(IndexCache.RESOURCE, 2, resourceSlug);
+        cache.invalidate(IndexCache.TRANSLATION, 2, resourceSlug);
+        invalidateCategoriesOnCommit();
+    }
+
+    /**
+     * Folds the case of text in the full-text search index.
+     * TRICKY: the fts tokenizer only folds ascii characters so both the indexed text and the queries are folded here.
+     * @param text
+     * @return
+     */
+    static String foldCase(String text) {
+        return text == null ? null : text.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Adds or updates an item in the full-text search index
+     *
+     * @param kind the type of item being indexed
+     * @param itemId the row id of the item
+     * @param sourceLanguageId the language the item text is in
+     * @param name the name of the item
+     * @param description the description of the item
+     */
+    synchronized private void indexSearchEntry(String kind, long itemId, long sourceLanguageId, String name, String description) {
+        Cursor cursor = rawQuery("select id from search_entry where kind=? and item_id=" + itemId, new String[]{kind});
+        long entryId = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        cursor.close();
+
+        ContentValues textValues = new ContentValues();
+        textValues.put("name", foldCase(name));
+        textValues.put("description", foldCase(description));
+        if(entryId == -1) {
+            ContentValues values = new ContentValues();
+            values.put("kind", kind);
+            values.put("item_id", itemId);
+            values.put("source_language_id", sourceLanguageId);
+            countStatement(false);
+            entryId = db.insertOrThrow("search_entry", null, values);
+            textValues.put("docid", entryId);
+            countStatement(false);
+            db.insertOrThrow("search_text", null, textValues);
+        } else {
+            ContentValues values = new ContentValues();
+            values.put("source_language_id", sourceLanguageId);
+            countStatement(false);
+            db.update("search_entry", values, "id=" + entryId, null);
+            countStatement(false);
+            db.update("search_text", textValues, "docid=" + entryId, null);
+        }
+    }
+
     /**
      * Inserts or updates a resource in the library.
      *
@@ -428,6 +905,12 @@ class Library implements Index {
         values.put("project_id", projectId);
 
         long resourceId = insertOrUpdate("resource", values, new String[]{"slug", "project_id"}).id;
+        Cursor projectCursor = rawQuery("select source_language_id from project where id=" + projectId, null);
+        if(projectCursor.moveToFirst()) {
+            indexSearchEntry(SEARCH_RESOURCE, resourceId, projectCursor.getLong(0), resource.name, "");
+        }
+        projectCursor.close();
+        invalidateResource(resource.slug);
 
         // add formats
         for(Resource.Format format : resource.formats) {
@@ -442,6 +925,8 @@ class Library implements Index {
 
             insertOrUpdate("resource_format", formatValues, new String[]{"mime_type", "resource_id"});
         }
+        countStatement(false);
+        db.execSQL(UPDATE_NUM_IMPORTED, new Object[]{resourceId});
 
         //add legacy data
         if(resource._legacyData.containsKey(API.LEGACY_WORDS_ASSIGNMENTS_URL)
@@ -455,6 +940,39 @@ class Library implements Index {
         return resourceId;
     }
 
+    /**
+     * Removes the formats of a resource that were added by importing a resource container.
+     * This should be called once the imported container has been deleted.
+     *
+     * @param languageSlug
+     * @param projectSlug
+     * @param resourceSlug
+     */
+    synchronized void removeImportedFormats(String languageSlug, String projectSlug, String resourceSlug) {
+        // TRICKY: readers must never see the formats removed while they are still counted
+        boolean success = false;
+        beginTransaction();
+        try {
+            Cursor cursor = rawQuery("select r.id from source_language as sl" +
+                    " join project as p on p.source_language_id=sl.id" +
+                    " join resource as r on r.project_id=p.id" +
+                    " where sl.slug=? and p.slug=? and r.slug=? and r.num_imported > 0",
+                    new String[]{languageSlug, projectSlug, resourceSlug});
+            long resourceId = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+            cursor.close();
+            if(resourceId != -1) {
+                countStatement(false);
+                db.delete("resource_format", "imported=1 and resource_id=?", new String[]{String.valueOf(resourceId)});
+                countStatement(false);
+                db.execSQL(UPDATE_NUM_IMPORTED, new Object[]{resourceId});
+                invalidateResource(resourceSlug);
+            }
+            success = true;
+        } finally {
+            endTransaction(success);
+        }
+    }
+
     /**
      *Inserts or updates a questionnaire in the library.
      *
@@ -513,7 +1031,7 @@ class Library implements Index {
     }
 
     public List<HashMap> listSourceLanguagesLastModified() {
-        Cursor cursor = db.rawQuery("select sl.slug, max(rf.modified_at) as modified_at from resource_format as rf"
+        Cursor cursor = rawQuery("select sl.slug, max(rf.modified_at) as modified_at from resource_format as rf"
                 + " left join resource  as r on r.id=rf.resource_id"
                 + " left join project as p on p.id=r.project_id"
                 + " left join source_language as sl on sl.id=p.source_language_id"
@@ -530,6 +1048,7 @@ class Library implements Index {
             HashMap sourceLanguageMap = new HashMap();
             sourceLanguageMap.put(slug, modifiedAt);
             langsLastModifiedList.add(sourceLanguageMap);
+            cursor.moveToNext();
         }
         cursor.close();
         return langsLastModifiedList;
@@ -537,19 +1056,18 @@ class Library implements Index {
 
     public Map<String, Integer> listProjectsLastModified(String languageSlug) {
         Cursor cursor = null;
-        if(languageSlug != null || languageSlug != ""){
-            cursor = db.rawQuery("select p.slug, max(rf.modified_at) as modified_at from resource_format as rf"
-                + " left join resource  as r on r.id=rf.resource_id"
-                + " left join project as p on p.id=r.project_id"
-                + " left join source_language as sl on sl.id=p.source_language_id"
+        if(languageSlug != null && !languageSlug.isEmpty()){
+            cursor = rawQuery("select p.slug, max(rf.modified_at) as modified_at from source_language as sl"
+                + " join project as p on p.source_language_id=sl.id"
+                + " join resource as r on r.project_id=p.id"
+                + " join resource_format as rf on rf.resource_id=r.id"
                 + " where rf.mime_type like(\"" + ResourceContainer.baseMimeType + "+%\") and sl.slug=?"
                 + " group by p.slug", new String[]{languageSlug});
         } else {
-            cursor = db.rawQuery("select p.slug, max(rf.modified_at) as modified_at from resource_format as rf"
+            cursor = rawQuery("select p.slug, max(rf.modified_at) as modified_at from resource_format as rf"
                 + " left join resource  as r on r.id=rf.resource_id"
                 + " left join project as p on p.id=r.project_id"
-                + " left join source_language as sl on sl.id=p.source_language_id"
-                + " where rf.mime_type like(\"" + ResourceContainer.baseMimeType + "+%\") and sl.slug=?"
+                + " where rf.mime_type like(\"" + ResourceContainer.baseMimeType + "+%\")"
                 + " group by p.slug", null);
         }
         Map<String, Integer> projectsLastModifiedList = new HashMap();
@@ -563,13 +1081,39 @@ class Library implements Index {
         return projectsLastModifiedList;
     }
 
+    /**
+     * Returns the resources of a project and when they were last modified.
+     * The value is taken from the max modified resource container format of the resource.
+     *
+     * @param languageSlug the source language of the project
+     * @param projectSlug the project who's resources will be selected
+     * @return {slug, modified_at}
+     */
+    public Map<String, Integer> listResourcesLastModified(String languageSlug, String projectSlug) {
+        Cursor cursor = rawQuery("select r.slug, max(rf.modified_at) as modified_at from source_language as sl"
+                + " join project as p on p.source_language_id=sl.id"
+                + " join resource as r on r.project_id=p.id"
+                + " join resource_format as rf on rf.resource_id=r.id"
+                + " where rf.mime_type like(\"" + ResourceContainer.baseMimeType + "+%\") and sl.slug=? and p.slug=?"
+                + " group by r.slug", new String[]{languageSlug, projectSlug});
+        Map<String, Integer> resourcesLastModified = new HashMap<>();
+        cursor.moveToFirst();
+        while(!cursor.isAfterLast()) {
+            CursorReader reader = new CursorReader(cursor);
+            resourcesLastModified.put(reader.getString("slug"), reader.getInt("modified_at"));
+            cursor.moveToNext();
+        }
+        cursor.close();
+        return resourcesLastModified;
+    }
+
     /**
      * Returns meta data about a project without any localized information such as the title or description
      * @param projectSlug the slug of the project who's meta will be returned
      * @return the project meta data
      */
     public JSONObject getProjectMeta(String projectSlug) {
-        Cursor cursor = db.rawQuery("select * from project where slug=? limit 1", new String[]{projectSlug});
+        Cursor cursor = rawQuery("select * from project where slug=? limit 1", new String[]{projectSlug});
         JSONObject meta = null;
         if(cursor.moveToFirst()) {
             CursorReader reader = new CursorReader(cursor);
@@ -589,13 +1133,78 @@ class Library implements Index {
         return meta;
     }
 
+    public List<SearchHit> search(String query, @Nullable String languageSlug, int offset, int limit) {
+        List<SearchHit> hits = new ArrayList<>();
+        // TRICKY: only search for whole words so the query cannot contain fts operators.
+        // The words are split the same way the fts tokenizer splits them: on every ascii character
+        // that is not a letter or digit. Other characters such as combining marks belong to the word.
+        StringBuilder match = new StringBuilder();
+        StringBuilder text = new StringBuilder();
+        for(String word:foldCase(query).split("[\\x00-\\x2F\\x3A-\\x40\\x5B-\\x60\\x7B-\\x7F]+")) {
+            if(word.isEmpty()) continue;
+            if(match.length() > 0) {
+                match.append(" ");
+                text.append(" ");
+            }
+            match.append(word).append("*");
+            text.append(word);
+        }
+        if(match.length() == 0 || limit < 1) return hits;
+
+        List<String> args = new ArrayList<>();
+        args.add(match.toString());
+        if(languageSlug != null) args.add(languageSlug);
+        args.add(text + "%");
+        args.add("%" + text + "%");
+        Cursor cursor = rawQuery("select e.kind, sl.slug as language_slug, coalesce(p.name, r.name, cn.name) as name," +
+                " p.slug as project_slug, r.slug as resource_slug, rp.slug as resource_project_slug, c.slug as category_slug" +
+                " from search_text as s" +
+                " join search_entry as e on e.id=s.docid" +
+                " join source_language as sl on sl.id=e.source_language_id" +
+                " left join project as p on e.kind='" + SEARCH_PROJECT + "' and p.id=e.item_id" +
+                " left join resource as r on e.kind='" + SEARCH_RESOURCE + "' and r.id=e.item_id" +
+                " left join project as rp on rp.id=r.project_id" +
+                " left join category_name as cn on e.kind='" + SEARCH_CATEGORY + "' and cn.id=e.item_id" +
+                " left join category as c on c.id=cn.category_id" +
+                " where search_text match ?" +
+                " and coalesce(p.id, r.id, c.id) is not null" +
+                (languageSlug != null ? " and sl.slug=?" : "") +
+                " order by case when s.name like ? then 0 when s.name like ? then 1 else 2 end, s.name asc" +
+                " limit " + limit + " offset " + Math.max(0, offset), args.toArray(new String[args.size()]));
+
+        cursor.moveToFirst();
+        while(!cursor.isAfterLast()) {
+            CursorReader reader = new CursorReader(cursor);
+            String kind = reader.getString("kind");
+            String name = reader.getString("name");
+            String language = reader.getString("language_slug");
+            if(kind.equals(SEARCH_PROJECT)) {
+                hits.add(new SearchHit(SearchHit.Type.PROJECT, reader.getString("project_slug"), name, language, null));
+            } else if(kind.equals(SEARCH_RESOURCE)) {
+                hits.add(new SearchHit(SearchHit.Type.RESOURCE, reader.getString("resource_slug"), name, language, reader.getString("resource_project_slug")));
+            } else {
+                hits.add(new SearchHit(SearchHit.Type.CATEGORY, reader.getString("category_slug"), name, language, null));
+            }
+            cursor.moveToNext();
+        }
+        cursor.close();
+        return hits;
+    }
+
     public Translation getTranslation(String containerSlug) {
         try {
             String[] slugs = ContainerTools.explodeSlug(containerSlug);
+            IndexCache.Key key = new IndexCache.Key(IndexCache.TRANSLATION, slugs[0], slugs[1], slugs[2]);
+            long generation = cache.generation();
+            Object cached = cache.get(key);
+            if(cached != IndexCache.MISS) return (Translation)cached;
+
             SourceLanguage l = getSourceLanguage(slugs[0]);
             Project p = getProject(slugs[0], slugs[1]);
             Resource r = getResource(slugs[0], slugs[1], slugs[2]);
-            return new Translation(l, p, r);
+            Translation translation = new Translation(l, p, r);
+            cache.put(key, translation, generation);
+            return translation;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -603,30 +1212,41 @@ class Library implements Index {
     }
 
     public List<Translation> findTranslations(String languageSlug, String projectSlug, String resourceSlug, String resourceType, String translateMode, int minCheckingLevel, int maxCheckingLevel) {
-        String conditionMaxChecking = "";
-
-        if(languageSlug == null || languageSlug.isEmpty()) languageSlug = "%";
-        if(projectSlug == null || projectSlug.isEmpty()) projectSlug = "%";
-        if(resourceSlug == null || resourceSlug.isEmpty()) resourceSlug = "%";
         if(resourceType == null || resourceType.isEmpty()) resourceType = "%";
         if(translateMode == null || translateMode.isEmpty()) translateMode = "%";
 
+        // TRICKY: only filter by the slugs that were given so the query can start from the indexed slugs.
+        // The slugs ignore case like they did when they were matched with like() but wildcards are not supported.
+        List<String> args = new ArrayList<>();
+        StringBuilder conditions = new StringBuilder();
+        if(languageSlug != null && !languageSlug.isEmpty()) {
+            conditions.append(" and l.slug=? collate nocase");
+            args.add(languageSlug);
+        }
+        if(projectSlug != null && !projectSlug.isEmpty()) {
+            conditions.append(" and p.slug=? collate nocase");
+            args.add(projectSlug);
+        }
+        if(resourceSlug != null && !resourceSlug.isEmpty()) {
+            conditions.append(" and r.slug=? collate nocase");
+            args.add(resourceSlug);
+        }
+        String conditionMaxChecking = "";
         if(maxCheckingLevel >= 0) conditionMaxChecking = " and r.checking_level <= " + maxCheckingLevel;
+        args.add(translateMode);
+        args.add(resourceType);
 
         List<Translation> translations = new ArrayList<>();
-        Cursor cursor = db.rawQuery("select l.slug as language_slug, l.name as language_name, l.direction," +
+        Cursor cursor = rawQuery("select l.slug as language_slug, l.name as language_name, l.direction," +
                 " p.slug as project_slug, p.name as project_name, p.desc, p.icon, p.sort, p.chunks_url," +
                 " r.id as resource_id, r.slug as resource_slug, r.name as resource_name, r.type, r.translate_mode, r.checking_level, r.comments, r.pub_date, r.license, r.version," +
-                " lri.translation_words_assignments_url" +
+                " lri.translation_words_assignments_url," + FORMAT_COLUMNS +
                 " from source_language as l" +
-                " left join project as p on p.source_language_id=l.id" +
-                " left join (" +
-                "   select r.*, count(rf.id) as num_imported from resource as r" +
-                "   left join resource_format as rf on rf.resource_id=r.id and rf.imported='1'" +
-                "   group by r.id" +
-                " ) as r on r.project_id=p.id" +
+                " join project as p on p.source_language_id=l.id" +
+                " join resource as r on r.project_id=p.id" +
                 " left join legacy_resource_info as lri on lri.resource_id=r.id" +
-                " where l.slug like(?) and p.slug like(?) and r.slug like(?)" +
+                " left join resource_format as fmt on fmt.resource_id=r.id" +
+                " where 1" + conditions +
                 " and (" +
                 "   (" +
                 "     r.checking_level >= " + minCheckingLevel + "" +
@@ -635,48 +1255,61 @@ class Library implements Index {
                 "   )" +
                 "   or r.num_imported > 0" +
                 " )" +
-                " and r.type like(?)",
-                new String[]{languageSlug, projectSlug, resourceSlug, translateMode, resourceType});
+                " and r.type like(?)" +
+                " order by r.id, fmt.id",
+                args.toArray(new String[args.size()]));
 
-        cursor.moveToFirst();
-        while(!cursor.isAfterLast()) {
-            Translation t = buildTranslation(new CursorReader(cursor));
-            translations.add(t);
-            cursor.moveToNext();
-        }
+        readTranslations(cursor, translations);
         cursor.close();
         return translations;
     }
 
     public List<Translation> getImportedTranslations() {
         List<Translation> translations = new ArrayList<>();
-        Cursor cursor = db.rawQuery("select l.slug as language_slug, l.name as language_name, l.direction," +
+        Cursor cursor = rawQuery("select l.slug as language_slug, l.name as language_name, l.direction," +
                         " p.slug as project_slug, p.name as project_name, p.desc, p.icon, p.sort, p.chunks_url," +
                         " r.id as resource_id, r.slug as resource_slug, r.name as resource_name, r.type, r.translate_mode, r.checking_level, r.comments, r.pub_date, r.license, r.version," +
-                        " lri.translation_words_assignments_url" +
-                        " from source_language as l" +
-                        " left join project as p on p.source_language_id=l.id" +
-                        " left join (" +
-                        "   select r.*, count(rf.id) as num_imported from resource as r" +
-                        "   left join resource_format as rf on rf.resource_id=r.id and rf.imported='1'" +
-                        "   group by r.id" +
-                        " ) as r on r.project_id=p.id" +
+                        " lri.translation_words_assignments_url," + FORMAT_COLUMNS +
+                        " from resource as r" +
+                        " join project as p on p.id=r.project_id" +
+                        " join source_language as l on l.id=p.source_language_id" +
                         " left join legacy_resource_info as lri on lri.resource_id=r.id" +
-                        " where r.num_imported > 0",
+                        " left join resource_format as fmt on fmt.resource_id=r.id" +
+                        " where r.num_imported > 0" +
+                        " order by r.id, fmt.id",
                 new String[]{});
 
+        readTranslations(cursor, translations);
+        cursor.close();
+        return translations;
+    }
+
+    /**
+     * Reads the translations from a cursor that has one row per resource format.
+     * The rows must be ordered by resource.
+     * @param cursor the cursor
+     * @param translations the list to which the translations will be added
+     */
+    private void readTranslations(Cursor cursor, List<Translation> translations) {
+        long lastResourceId = -1;
+        Translation translation = null;
         cursor.moveToFirst();
         while(!cursor.isAfterLast()) {
-            Translation t = buildTranslation(new CursorReader(cursor));
-            translations.add(t);
+            CursorReader reader = new CursorReader(cursor);
+            long resourceId = reader.getLong("resource_id");
+            if(translation == null || resourceId != lastResourceId) {
+                translation = buildTranslation(reader);
+                translations.add(translation);
+                lastResourceId = resourceId;
+            }
+            addFormat(translation.resource, reader);
             cursor.moveToNext();
         }
-        cursor.close();
-        return translations;
     }
 
     /**
-     * Utility to build a new translation object from a db cursor reader
+     * Utility to build a new translation object from a db cursor reader.
+     * The formats are not included.
      * @param reader the reader
      * @return
      */
@@ -695,29 +1328,38 @@ class Library implements Index {
         r.pubDate = reader.getString("pub_date");
         r.license = reader.getString("license");
         r._legacyData.put(API.LEGACY_WORDS_ASSIGNMENTS_URL, reader.getString("translation_words_assignments_url"));
+        return new Translation(l, p, r);
+    }
 
-        // load formats and add to resource
-        Cursor formatCursor = db.rawQuery("select * from resource_format where resource_id=" + reader.getLong("resource_id"), null);
-        formatCursor.moveToFirst();
-        while(!formatCursor.isAfterLast()) {
-            CursorReader formatReader = new CursorReader(formatCursor);
+    /**
+     * Adds the format selected with {@link #FORMAT_COLUMNS} to the resource.
+     * This does nothing if the row does not have a format.
+     * @param resource
+     * @param reader
+     */
+    private static void addFormat(Resource resource, CursorReader reader) {
+        if(reader.isNull("format_mime_type")) return;
+        Resource.Format format = new Resource.Format(reader.getString("format_package_version"),
+                reader.getString("format_mime_type"),
+                reader.getInt("format_modified_at"),
+                reader.getString("format_url"),
+                reader.getBoolean("format_imported"));
+        resource.addFormat(format);
+    }
 
-            String packageVersion = formatReader.getString("package_version");
-            String mimeType = formatReader.getString("mime_type");
-            int modifiedAt = formatReader.getInt("modified_at");
-            String url = formatReader.getString("url");
-            boolean imported = formatReader.getBoolean("imported");
+    public SourceLanguage getSourceLanguage(String sourceLanguageSlug) {
+        IndexCache.Key key = new IndexCache.Key(IndexCache.SOURCE_LANGUAGE, sourceLanguageSlug);
+        long generation = cache.generation();
+        Object cached = cache.get(key);
+        if(cached != IndexCache.MISS) return (SourceLanguage)cached;
 
-            Resource.Format format = new Resource.Format(packageVersion, mimeType, modifiedAt, url, imported);
-            r.addFormat(format);
-            formatCursor.moveToNext();
-        }
-        formatCursor.close();
-        return new Translation(l, p, r);
+        SourceLanguage language = loadSourceLanguage(sourceLanguageSlug);
+        cache.put(key, language, generation);
+        return language;
     }
 
-    public SourceLanguage getSourceLanguage(String sourceLanguageSlug) {
-        Cursor cursor = db.rawQuery("select * from source_language where slug=? limit 1", new String[]{sourceLanguageSlug});
+    private SourceLanguage loadSourceLanguage(String sourceLanguageSlug) {
+        Cursor cursor = rawQuery("select * from source_language where slug=? limit 1", new String[]{sourceLanguageSlug});
         if(cursor.moveToFirst()) {
             CursorReader reader = new CursorReader(cursor);
 
@@ -734,7 +1376,7 @@ class Library implements Index {
     }
 
     public List<SourceLanguage> getSourceLanguages() {
-        Cursor cursor = db.rawQuery("select * from source_language order by slug asc", null);
+        Cursor cursor = rawQuery("select * from source_language order by slug asc", null);
 
         List<SourceLanguage> sourceLanguages = new ArrayList<>();
         cursor.moveToFirst();
@@ -754,7 +1396,7 @@ class Library implements Index {
     }
 
     public List<SourceLanguage> getSourceLanguages(String projectSlug) {
-        Cursor cursor = db.rawQuery("select * from source_language where id in (" +
+        Cursor cursor = rawQuery("select * from source_language where id in (" +
                 " select source_language_id from project" +
                 " where slug=?" +
                 " group by source_language_id" +
@@ -779,12 +1421,13 @@ class Library implements Index {
 
     public TargetLanguage getTargetLanguage(String targetLangaugeSlug) {
         TargetLanguage targetLanguage = null;
-        Cursor cursor = db.rawQuery("select * from (" +
-                "  select slug, name, anglicized_name, direction, region, is_gateway_language from target_language" +
-                "  union" +
-                "  select slug, name, anglicized_name, direction, region, is_gateway_language from temp_target_language" +
-                "  where approved_target_language_slug is null" +
-                ") where slug=? limit 1", new String[]{targetLangaugeSlug});
+        // TRICKY: the slug is matched within each half of the union so both are looked up by their slug index
+        Cursor cursor = rawQuery("select slug, name, anglicized_name, direction, region, is_gateway_language from target_language" +
+                " where slug=?" +
+                " union" +
+                " select slug, name, anglicized_name, direction, region, is_gateway_language from temp_target_language" +
+                " where slug=? and approved_target_language_slug is null" +
+                " limit 1", new String[]{targetLangaugeSlug, targetLangaugeSlug});
 
         if(cursor.moveToFirst()) {
             CursorReader reader = new CursorReader(cursor);
@@ -803,59 +1446,39 @@ class Library implements Index {
     }
 
     public List<TargetLanguage> findTargetLanguage(final String namequery) {
-        List<TargetLanguage> targetLanguages = new ArrayList<>();
-        Cursor cursor = db.rawQuery("select * from (" +
-                "  select slug, name, anglicized_name, direction, region, is_gateway_language from target_language" +
-                "  union" +
-                "  select slug, name, anglicized_name, direction, region, is_gateway_language from temp_target_language" +
-                "  where approved_target_language_slug is null" +
-                ") where lower(name) like ?" +
-                " order by slug asc, name asc", new String[]{"%" + namequery.toLowerCase() + "%"});
-
-        cursor.moveToFirst();
-        while(!cursor.isAfterLast()) {
-            CursorReader reader = new CursorReader(cursor);
-
-            String slug = reader.getString("slug");
-            String name = reader.getString("name");
-            String anglicized = reader.getString("anglicized_name");
-            String direction = reader.getString("direction");
-            String region = reader.getString("region");
-            boolean isGateWay = reader.getBoolean("is_gateway_language");
-
-            TargetLanguage targetLanguage = new TargetLanguage(slug, name, anglicized, direction, region, isGateWay);
-            targetLanguages.add(targetLanguage);
-            cursor.moveToNext();
-        }
-        cursor.close();
+        return getTargetLanguageIndex().find(namequery);
+    }
 
-        Collections.sort(targetLanguages, new Comparator<TargetLanguage>() {
-            @Override
-            public int compare(TargetLanguage lhs, TargetLanguage rhs) {
-                String lhId = lhs.slug;
-                String rhId = rhs.slug;
-                // give priority to matches with the id
-                if(lhId.toLowerCase().startsWith(namequery.toLowerCase())) {
-                    lhId = "!!" + lhId;
-                }
-                if(rhId.toLowerCase().startsWith(namequery.toLowerCase())) {
-                    rhId = "!!" + rhId;
-                }
-                if(lhs.name.toLowerCase().startsWith(namequery.toLowerCase())) {
-                    lhId = "!" + lhId;
-                }
-                if(rhs.name.toLowerCase().startsWith(namequery.toLowerCase())) {
-                    rhId = "!" + rhId;
-                }
-                return lhId.compareToIgnoreCase(rhId);
+    /**
+     * Returns the search index of the target languages.
+     * The index is built on first use and rebuilt after the target languages change.
+     * @return
+     */
+    private TargetLanguageSearchIndex getTargetLanguageIndex() {
+        TargetLanguageSearchIndex index = targetLanguageIndex;
+        if(index == null) {
+            int generation = targetLanguageGeneration.get();
+            index = new TargetLanguageSearchIndex(getTargetLanguages());
+            // TRICKY: don't keep the index if the languages changed while it was being built
+            synchronized (targetLanguageGeneration) {
+                if(generation == targetLanguageGeneration.get()) targetLanguageIndex = index;
             }
-        });
+        }
+        return index;
+    }
 
-        return targetLanguages;
+    /**
+     * Discards the target language search index so it will be rebuilt
+     */
+    private void invalidateTargetLanguages() {
+        synchronized (targetLanguageGeneration) {
+            targetLanguageGeneration.incrementAndGet();
+            targetLanguageIndex = null;
+        }
     }
 
     public List<TargetLanguage> getTargetLanguages() {
-        Cursor cursor = db.rawQuery("select * from (" +
+        Cursor cursor = rawQuery("select * from (" +
                 "  select slug, name, anglicized_name, direction, region, is_gateway_language from target_language" +
                 "  union" +
                 "  select slug, name, anglicized_name, direction, region, is_gateway_language from temp_target_language" +
@@ -885,8 +1508,8 @@ class Library implements Index {
     public TargetLanguage getApprovedTargetLanguage(String tempTargetLanguageSlug) {
         TargetLanguage language = null;
 
-        Cursor cursor = db.rawQuery("select tl.* from target_language as tl" +
-                " left join temp_target_language as ttl on ttl.approved_target_language_slug=tl.slug" +
+        Cursor cursor = rawQuery("select tl.* from target_language as tl" +
+                " join temp_target_language as ttl on ttl.approved_target_language_slug=tl.slug" +
                 " where ttl.slug=?", new String[]{tempTargetLanguageSlug});
 
         if(cursor.moveToFirst()) {
@@ -910,11 +1533,27 @@ class Library implements Index {
     }
 
     public Project getProject(String sourceLanguageSlug, String projectSlug, boolean enableDefaultLanguage) {
+        IndexCache.Key key = new IndexCache.Key(IndexCache.PROJECT, sourceLanguageSlug, projectSlug, String.valueOf(enableDefaultLanguage));
+        long generation = cache.generation();
+        Object cached = cache.get(key);
+        if(cached != IndexCache.MISS) return (Project)cached;
+
+        Project project = loadProject(sourceLanguageSlug, projectSlug, enableDefaultLanguage);
+        cache.put(key, project, generation);
+        return project;
+    }
+
+    private Project loadProject(String sourceLanguageSlug, String projectSlug, boolean enableDefaultLanguage) {
         Project project = null;
-        Cursor cursor = db.rawQuery("select p.*, sl.slug as source_language_slug from project as p" +
-                " left join source_language as sl on sl.id=p.source_language_id" +
-                " where p.slug=? and sl.slug LIKE (?)" +
-                " limit 1", new String[]{projectSlug, sourceLanguageSlug});
+        Cursor cursor;
+        if(enableDefaultLanguage) {
+            cursor = rawQuery(FALLBACK_PROJECT + " where f.slug=?", new String[]{sourceLanguageSlug, projectSlug});
+        } else {
+            cursor = rawQuery("select p.*, sl.slug as source_language_slug from project as p" +
+                    " left join source_language as sl on sl.id=p.source_language_id" +
+                    " where p.slug=? and sl.slug LIKE (?)" +
+                    " limit 1", new String[]{projectSlug, sourceLanguageSlug});
+        }
 
         if(cursor.moveToFirst()) {
             CursorReader reader = new CursorReader(cursor);
@@ -933,11 +1572,6 @@ class Library implements Index {
             project.languageSlug = reader.getString("source_language_slug");
         }
         cursor.close();
-
-        // attempt to fetch the default language
-        if(project == null && enableDefaultLanguage) project = getProject("en", projectSlug, false);
-        if(project == null && enableDefaultLanguage) project = getProject("%", projectSlug, false);
-
         return project;
     }
 
@@ -949,52 +1583,9 @@ class Library implements Index {
         List<Project> projects = new ArrayList<>();
         Cursor cursor;
         if(enableDefaultLanguage) {
-            // TRICKY: this should work on android but is not working on the tests
-            cursor = db.rawQuery("select p.*, sl.slug as source_language_slug," +
-                " max(case sl.slug when ? then 3 when ? then 2 else 1 end) as weight" +
-                " from project as p" +
-                " left join source_language as sl on sl.id=p.source_language_id" +
-                " group by p.slug" +
-                " order by p.sort asc", new String[]{sourceLanguageSlug, "en"});
-
-            // another alternative that "should" work
-//            cursor = db.rawQuery("select p.*, sl.slug as source_language_slug, max(weight) from (" +
-//                    "  select *, 3 as weight from project where source_language_id in (" +
-//                    "    select id from source_language where slug=?" +
-//                    "  )" +
-//                    "  union" +
-//                    "  select *, 2 as weight from project where source_language_id in (" +
-//                    "    select id from source_language where slug=?" +
-//                    "  )" +
-//                    "  union" +
-//                    "  select *, 1 as weight from project" +
-//                    " ) as p" +
-//                    " left join source_language as sl on sl.id=p.source_language_id" +
-//                    " group by p.slug" +
-//                    " order by p.sort asc", new String[]{sourceLanguageSlug, "en"});
-
-            // another alternative that "should" work
-//            cursor = db.rawQuery("select p.*, sl.slug as source_language_slug from project as p" +
-//                    " left join source_language as sl on sl.id=p.source_language_id" +
-//                    " where p.id in (" +
-//                    "   select id from (" +
-//                    "     select max(weight), id from (" +
-//                    "       select *, 3 as weight from project where source_language_id in (" +
-//                    "         select id from source_language where slug=?" +
-//                    "       )" +
-//                    "       union" +
-//                    "       select *, 2 as weight from project where source_language_id in (" +
-//                    "         select id from source_language where slug=?" +
-//                    "       )" +
-//                    "       union" +
-//                    "       select *, 1 as weight from project" +
-//                    "     )" +
-//                    "     group by slug" +
-//                    "   )" +
-//                    " )" +
-//                    " order by p.sort asc", new String[]{sourceLanguageSlug, "en"});
+            cursor = rawQuery(FALLBACK_PROJECT + " order by p.sort asc", new String[]{sourceLanguageSlug});
         } else {
-            cursor = db.rawQuery("select * from project" +
+            cursor = rawQuery("select * from project" +
                     " where source_language_id in (select id from source_language where slug=?)" +
                     " order by sort asc", new String[]{sourceLanguageSlug});
         }
@@ -1028,126 +1619,109 @@ class Library implements Index {
     // TODO: 9/28/16 potentially add getTranslationProgress
     // TODO: 9/28/16 allow filtering by checking level (resource containers, projects, resources).. maybe we could do with just resource containers.
 
-    // we can use this in place of
     public List<CategoryEntry> getProjectCategories(long parentCategoryId, String languageSlug, String translateMode) {
-        Cursor categoryCursor;
-        String[] preferredSlug = {languageSlug, "en", "%"};
-        List<CategoryEntry> projectCategories = new ArrayList<>();
-        if(translateMode == null) translateMode = "";
-
-        // load categories
-        if(!translateMode.isEmpty()) {
-            categoryCursor = db.rawQuery("select \'category\' as type, c.slug as name, \'\' as source_language_slug," +
-                    " c.id, c.slug, c.parent_id, count(p.id) as num, max(p.sort) as csort from category as c" +
-                    " left join (" +
-                    "  select p.id, p.category_id, p.sort, count(r.id) as num from project as p" +
-                    "  left join (" +
-                    "   select r.*, count(rf.id) as num_imported from resource as r" +
-                    "   left join resource_format as rf on rf.resource_id=r.id and rf.imported='1'" +
-                    "   group by r.id" +
-                    "  ) as r on r.project_id=p.id and (r.translate_mode like (?) or r.num_imported > 0)" +
-                    "  group by p.slug" +
-                    " ) p on p.category_id=c.id and p.num > 0" +
-                    " where parent_id=" + parentCategoryId + " and num > 0 " +
-                    " group by c.slug" +
-                    " order by csort", new String[]{translateMode});
-        } else {
-            // TODO: left join projects were so we can max the sort so we can order the categories.
-            categoryCursor = db.rawQuery("select \'category\' as type, category.slug as name, \'\'" +
-                    " as source_language_slug, *" +
-                    " from category" +
-                    " where parent_id=" + parentCategoryId +
-                    " group by category.slug", null);
-        }
-
-        //find best name
-        categoryCursor.moveToFirst();
-        while(!categoryCursor.isAfterLast()) {
-            String catSlug = categoryCursor.getString(categoryCursor.getColumnIndex("slug"));
-            int catId = categoryCursor.getInt(categoryCursor.getColumnIndex("id"));
-
-            for(String slug : preferredSlug) {
-                Cursor cursor = db.rawQuery("select sl.slug as source_language_slug, cn.name as name" +
-                        " from category_name as cn" +
-                        " left join source_language as sl on sl.id=cn.source_language_id" +
-                        " where sl.slug like(?) and cn.category_id=" + catId, new String[]{slug});
+        return getCategoryTree().getEntries(parentCategoryId, languageSlug, translateMode);
+    }
 
-                if(cursor.moveToFirst()) {
-                    CursorReader reader = new CursorReader(cursor);
+    /**
+     * Returns the category tree.
+     * The tree is built on first use and rebuilt after the categories, projects or resources change.
+     * @return
+     */
+    private CategoryTree getCategoryTree() {
+        CategoryTree tree = categoryTree;
+        if(tree == null) {
+            int generation = categoryGeneration.get();
+            tree = loadCategoryTree();
+            // TRICKY: don't keep the tree if the index changed while it was being built
+            synchronized (categoryGeneration) {
+                if(generation == categoryGeneration.get()) categoryTree = tree;
+            }
+        }
+        return tree;
+    }
 
-                    String catName = reader.getString("name");
-                    String catSourceLanguageSlug = reader.getString("source_language_slug");
+    /**
+     * Discards the category tree once a write is committed.
+     * Within a transaction this is left to {@link #endTransaction(boolean)}
+     * so the tree is not reloaded after every write of an update.
+     * Until then the tree shows the content from before the transaction.
+     */
+    private void invalidateCategoriesOnCommit() {
+        if(!db.inTransaction()) invalidateCategories();
+    }
 
-                    CategoryEntry categoryEntry = new CategoryEntry(CategoryEntry.Type.CATEGORY, catId, catSlug, catName, catSourceLanguageSlug, parentCategoryId);
-                    projectCategories.add(categoryEntry);
-                    cursor.close();
-                    break;
-                }
-                cursor.close();
-            }
-            categoryCursor.moveToNext();
-        }
-        categoryCursor.close();
-
-        // load projects
-        Cursor projectCursor = db.rawQuery("select * from (" +
-                " select \'project\' as type, \'\' as source_language_slug," +
-                " p.id, p.slug, p.sort, p.name, count(r.id) as num from project as p" +
-                " left join (" +
-                "  select r.*, count(rf.id) as num_imported from resource as r" +
-                "  left join resource_format as rf on rf.resource_id=r.id and rf.imported='1'" +
-                "  group by r.id" +
-                " ) as r on r.project_id=p.id and (r.translate_mode like (?) or r.num_imported > 0)" +
-                " where p.category_id=" + parentCategoryId + " group by p.slug" +
-                " order by p.sort asc)" + (!translateMode.isEmpty() ? " where num > 0" : ""),
-                new String[]{(!translateMode.isEmpty() ? translateMode : "%")});
-
-        //find best name
-        projectCursor.moveToFirst();
-        while(!projectCursor.isAfterLast()) {
-            String projectSlug = projectCursor.getString(projectCursor.getColumnIndex("slug"));
-            long projectId = projectCursor.getLong(projectCursor.getColumnIndex("id"));
-            for(String slug : preferredSlug) {
-                Cursor cursor = db.rawQuery("select sl.slug as source_language_slug, p.name as name" +
-                        " from project as p" +
-                        " left join source_language as sl on sl.id=p.source_language_id" +
-                        " where sl.slug like(?) and p.slug=? order by sl.slug asc", new String[]{slug, projectSlug});
-                if(cursor.moveToFirst()) {
-                    CursorReader reader = new CursorReader(cursor);
+    /**
+     * Discards the category tree so it will be rebuilt
+     */
+    private void invalidateCategories() {
+        synchronized (categoryGeneration) {
+            categoryGeneration.incrementAndGet();
+            categoryTree = null;
+        }
+    }
 
-                    String projectName = reader.getString("name");
-                    String projSourceLangSlug = reader.getString("source_language_slug");
+    private CategoryTree loadCategoryTree() {
+        CategoryTree.Builder builder = new CategoryTree.Builder();
+        Cursor cursor = rawQuery("select id, slug, parent_id from category", null);
+        while(cursor.moveToNext()) {
+            builder.addCategory(cursor.getLong(0), cursor.getString(1), cursor.getLong(2));
+        }
+        cursor.close();
 
-                    CategoryEntry categoryEntry = new CategoryEntry(CategoryEntry.Type.PROJECT, projectId, projectSlug, projectName, projSourceLangSlug, parentCategoryId);
-                    projectCategories.add(categoryEntry);
-                    cursor.close();
-                    break;
-                }
-                cursor.close();
-            }
-            projectCursor.moveToNext();
+        cursor = rawQuery("select cn.category_id, sl.slug, cn.name from category_name as cn" +
+                " join source_language as sl on sl.id=cn.source_language_id", null);
+        while(cursor.moveToNext()) {
+            builder.addCategoryName(cursor.getLong(0), cursor.getString(1), cursor.getString(2));
         }
-        projectCursor.close();
+        cursor.close();
+
+        cursor = rawQuery("select p.id, p.slug, p.name, p.sort, p.category_id, sl.slug from project as p" +
+                " join source_language as sl on sl.id=p.source_language_id" +
+                " order by p.id", null);
+        while(cursor.moveToNext()) {
+            builder.addProject(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                    cursor.getInt(3), cursor.getLong(4), cursor.getString(5));
+        }
+        cursor.close();
 
-        return projectCategories;
+        cursor = rawQuery("select project_id, translate_mode, num_imported > 0 from resource", null);
+        while(cursor.moveToNext()) {
+            builder.addResource(cursor.getLong(0), cursor.getString(1), cursor.getInt(2) == 1);
+        }
+        cursor.close();
+        return builder.build();
     }
 
     @Nullable
     public Resource getResource(String sourceLanguageSlug, String projectSlug, String resourceSlug) {
+        IndexCache.Key key = new IndexCache.Key(IndexCache.RESOURCE, sourceLanguageSlug, projectSlug, resourceSlug);
+        long generation = cache.generation();
+        Object cached = cache.get(key);
+        if(cached != IndexCache.MISS) return (Resource)cached;
+
+        Resource resource = loadResource(sourceLanguageSlug, projectSlug, resourceSlug);
+        cache.put(key, resource, generation);
+        return resource;
+    }
+
+    private Resource loadResource(String sourceLanguageSlug, String projectSlug, String resourceSlug) {
         Resource resource = null;
-        Cursor cursor = db.rawQuery("select r.id, r.name, r.translate_mode, r.type, r.checking_level," +
+        Cursor cursor = rawQuery("select r.id, r.name, r.translate_mode, r.type, r.checking_level," +
                 " r.comments, r.pub_date, r.license, r.version," +
-                " lri.translation_words_assignments_url from resource as r" +
+                " lri.translation_words_assignments_url," + FORMAT_COLUMNS + " from (" +
+                "  select * from resource where slug=? and project_id in (" +
+                "   select id from project where slug=? and source_language_id in (" +
+                "   select id from source_language where slug=?)" +
+                "  ) limit 1" +
+                " ) as r" +
                 " left join legacy_resource_info as lri on lri.resource_id=r.id" +
-                " where r.slug=? and r.project_id in (" +
-                "  select id from project where slug=? and source_language_id in (" +
-                "  select id from source_language where slug=?)" +
-                " ) limit 1", new String[]{resourceSlug, projectSlug, sourceLanguageSlug});
+                " left join resource_format as fmt on fmt.resource_id=r.id" +
+                " order by fmt.id", new String[]{resourceSlug, projectSlug, sourceLanguageSlug});
 
         if(cursor.moveToFirst()) {
             CursorReader reader = new CursorReader(cursor);
 
-            long resourceId = reader.getLong("id");
             String name = reader.getString("name");
             String translateMode = reader.getString("translate_mode");
             String type = reader.getString("type");
@@ -1164,23 +1738,11 @@ class Library implements Index {
             resource.pubDate = pubDate;
             resource.license = license;
 
-            // load formats and add to resource
-            Cursor formatCursor = db.rawQuery("select * from resource_format where resource_id=" + resourceId, null);
-            formatCursor.moveToFirst();
-            while(!formatCursor.isAfterLast()) {
-                CursorReader formatReader = new CursorReader(formatCursor);
-
-                String packageVersion = formatReader.getString("package_version");
-                String mimeType = formatReader.getString("mime_type");
-                int modifiedAt = formatReader.getInt("modified_at");
-                String url = formatReader.getString("url");
-                boolean imported = formatReader.getBoolean("imported");
-
-                Resource.Format format = new Resource.Format(packageVersion, mimeType, modifiedAt, url, imported);
-                resource.addFormat(format);
-                formatCursor.moveToNext();
+            // add formats
+            while(!cursor.isAfterLast()) {
+                addFormat(resource, new CursorReader(cursor));
+                cursor.moveToNext();
             }
-            formatCursor.close();
         }
         cursor.close();
         return resource;
@@ -1190,28 +1752,37 @@ class Library implements Index {
         List<Resource> resources = new ArrayList<>();
         Cursor resourceCursor = null;
         if(languageSlug != null && !languageSlug.isEmpty()) {
-            resourceCursor = db.rawQuery("select r.*, lri.translation_words_assignments_url from resource as r" +
+            resourceCursor = rawQuery("select r.*, lri.translation_words_assignments_url," + FORMAT_COLUMNS + " from resource as r" +
                     " left join legacy_resource_info as lri on lri.resource_id=r.id" +
+                    " left join resource_format as fmt on fmt.resource_id=r.id" +
                     " where r.project_id in (" +
                     "  select id from project where slug=? and source_language_id in (" +
                     "   select id from source_language where slug=?)" +
                     " )" +
-                    " order by r.slug asc", new String[]{projectSlug, languageSlug});
+                    " order by r.slug asc, r.id, fmt.id", new String[]{projectSlug, languageSlug});
         } else {
-            resourceCursor = db.rawQuery("select sl.slug as source_language_slug, r.*, lri.translation_words_assignments_url from resource as r" +
+            resourceCursor = rawQuery("select sl.slug as source_language_slug, r.*, lri.translation_words_assignments_url," + FORMAT_COLUMNS + " from project as p" +
+                    " join resource as r on r.project_id=p.id" +
                     " left join legacy_resource_info as lri on lri.resource_id=r.id" +
-                    " left join project as p on p.id=r.project_id" +
-                    " left join (" +
-                    "  select id, slug from source_language" +
-                    " ) as sl on sl.id=p.source_language_id" +
-                    " where p.slug=? order by r.slug asc", new String[]{projectSlug});
+                    " left join resource_format as fmt on fmt.resource_id=r.id" +
+                    " left join source_language as sl on sl.id=p.source_language_id" +
+                    " where p.slug=? order by r.slug asc, r.id, fmt.id", new String[]{projectSlug});
         }
 
+        // TRICKY: there is a row for each format so we only build the resource on its first row
+        long lastResourceId = -1;
+        Resource resource = null;
         resourceCursor.moveToFirst();
         while(!resourceCursor.isAfterLast()) {
             CursorReader reader = new CursorReader(resourceCursor);
 
             long resourceId = reader.getLong("id");
+            if(resource != null && resourceId == lastResourceId) {
+                addFormat(resource, reader);
+                resourceCursor.moveToNext();
+                continue;
+            }
+            lastResourceId = resourceId;
             String slug = reader.getString("slug");
             String name = reader.getString("name");
             String translateMode = reader.getString("translate_mode");
@@ -1231,29 +1802,12 @@ class Library implements Index {
             status.put("license", license);
             status.put("version", version);
 
-            Resource resource = new Resource(slug, name, type, translateMode, checkingLevel, version);
+            resource = new Resource(slug, name, type, translateMode, checkingLevel, version);
             resource._legacyData.put(API.LEGACY_WORDS_ASSIGNMENTS_URL, wordsAssignmentsUrl);
             resource.comments = comments;
             resource.pubDate = pubDate;
             resource.license = license;
-
-            // load formats and add to resource
-            Cursor formatCursor = db.rawQuery("select * from resource_format where resource_id=" + resourceId, null);
-            formatCursor.moveToFirst();
-            while(!formatCursor.isAfterLast()) {
-                CursorReader formatReader = new CursorReader(formatCursor);
-
-                String packageVersion = formatReader.getString("package_version");
-                String mimeType = formatReader.getString("mime_type");
-                int modifiedAt = formatReader.getInt("modified_at");
-                String url = formatReader.getString("url");
-                boolean imported = formatReader.getBoolean("imported");
-
-                Resource.Format format = new Resource.Format(packageVersion, mimeType, modifiedAt, url, imported);
-                resource.addFormat(format);
-                formatCursor.moveToNext();
-            }
-            formatCursor.close();
+            addFormat(resource, reader);
 
             resources.add(resource);
             resourceCursor.moveToNext();
@@ -1264,7 +1818,7 @@ class Library implements Index {
 
     public Catalog getCatalog(String catalogSlug) {
         Catalog catalog = null;
-        Cursor cursor = db.rawQuery("select id, url, modified_at from catalog where slug=?", new String[]{catalogSlug});
+        Cursor cursor = rawQuery("select id, url, modified_at from catalog where slug=?", new String[]{catalogSlug});
         if(cursor.moveToFirst()) {
             CursorReader reader = new CursorReader(cursor);
 
@@ -1278,7 +1832,7 @@ class Library implements Index {
     }
 
     public List<Catalog> getCatalogs() {
-        Cursor cursor = db.rawQuery("select * from catalog", null);
+        Cursor cursor = rawQuery("select * from catalog", null);
 
         List<Catalog> catalogs = new ArrayList<>();
         cursor.moveToFirst();
@@ -1297,11 +1851,50 @@ class Library implements Index {
         return catalogs;
     }
 
+    /**
+     * Returns the cache validators of all the indexed responses
+     * @return validators keyed by url
+     */
+    public Map<String, HttpValidator> getHttpValidators() {
+        Cursor cursor = rawQuery("select url, etag, last_modified, content_hash from http_cache", null);
+
+        Map<String, HttpValidator> validators = new HashMap<>();
+        cursor.moveToFirst();
+        while(!cursor.isAfterLast()) {
+            CursorReader reader = new CursorReader(cursor);
+
+            String url = reader.getString("url");
+            HttpValidator validator = new HttpValidator(url, reader.getString("etag"),
+                    reader.getString("last_modified"), reader.getString("content_hash"));
+            validators.put(url, validator);
+            cursor.moveToNext();
+        }
+        cursor.close();
+        return validators;
+    }
+
+    /**
+     * Returns the cache validators of an indexed response
+     * @param url
+     * @return the validator or null
+     */
+    public HttpValidator getHttpValidator(String url) {
+        HttpValidator validator = null;
+        Cursor cursor = rawQuery("select etag, last_modified, content_hash from http_cache where url=?", new String[]{url});
+        if(cursor.moveToFirst()) {
+            CursorReader reader = new CursorReader(cursor);
+            validator = new HttpValidator(url, reader.getString("etag"),
+                    reader.getString("last_modified"), reader.getString("content_hash"));
+        }
+        cursor.close();
+        return validator;
+    }
+
     public Versification getVersification(String sourceLanguageSlug, String versificationSlug) {
         Versification versification = null;
-        Cursor cursor = db.rawQuery("select v.id, v.slug, vn.name from versification_name as vn" +
-                " left join versification as v on v.id=vn.versification_id" +
-                " left join source_language as sl on sl.id=vn.source_language_id" +
+        Cursor cursor = rawQuery("select v.id, v.slug, vn.name from source_language as sl" +
+                " join versification_name as vn on vn.source_language_id=sl.id" +
+                " join versification as v on v.id=vn.versification_id" +
                 " where sl.slug=? and v.slug=?", new String[]{sourceLanguageSlug, versificationSlug});
 
         if(cursor.moveToFirst()) {
@@ -1318,9 +1911,9 @@ class Library implements Index {
     }
 
     public List<Versification> getVersifications(String sourceLanguageSlug) {
-        Cursor cursor = db.rawQuery("select vn.name, v.slug, v.id from versification_name as vn" +
-                " left join versification as v on v.id=vn.versification_id" +
-                " left join source_language as sl on sl.id=vn.source_language_id" +
+        Cursor cursor = rawQuery("select vn.name, v.slug, v.id from source_language as sl" +
+                " join versification_name as vn on vn.source_language_id=sl.id" +
+                " join versification as v on v.id=vn.versification_id" +
                 " where sl.slug=?", new String[]{sourceLanguageSlug});
 
         List<Versification> versifications = new ArrayList<>();
@@ -1341,7 +1934,7 @@ class Library implements Index {
     }
 
     public List<ChunkMarker> getChunkMarkers(String projectSlug, String versificationSlug) {
-        Cursor cursor = db.rawQuery("select cm.id, cm.chapter, cm.verse from chunk_marker as cm" +
+        Cursor cursor = rawQuery("select cm.id, cm.chapter, cm.verse from chunk_marker as cm" +
                 " left join versification as v on v.id=cm.versification_id" +
                 " where v.slug=? and cm.project_slug=?", new String[]{versificationSlug, projectSlug});
 
@@ -1363,14 +1956,14 @@ class Library implements Index {
 
     public Questionnaire getQuestionnaire(long tdId) {
         Questionnaire questionnaire = null;
-        Cursor cursor = db.rawQuery("select * from questionnaire" +
+        Cursor cursor = rawQuery("select * from questionnaire" +
                 " where td_id=" + tdId, null);
         cursor.moveToFirst();
         if(!cursor.isAfterLast()) {
             CursorReader reader = new CursorReader(cursor);
 
             // load data fields
-            Cursor dataFieldsCursor = db.rawQuery("select field, question_td_id from questionnaire_data_field" +
+            Cursor dataFieldsCursor = rawQuery("select field, question_td_id from questionnaire_data_field" +
                     " where questionnaire_id=" + reader.getLong("id"), null);
             Map<String, Long> dataFields = new HashMap<>();
             dataFieldsCursor.moveToFirst();
@@ -1392,7 +1985,7 @@ class Library implements Index {
     }
 
     public List<Questionnaire> getQuestionnaires() {
-        Cursor cursor = db.rawQuery("select * from questionnaire", null);
+        Cursor cursor = rawQuery("select * from questionnaire", null);
 
         List<Questionnaire> questionnaires = new ArrayList<>();
         cursor.moveToFirst();
@@ -1406,7 +1999,7 @@ class Library implements Index {
             long tdId = reader.getLong("td_id");
 
             // load data fields
-            Cursor dataFieldsCursor = db.rawQuery("select field, question_td_id from questionnaire_data_field" +
+            Cursor dataFieldsCursor = rawQuery("select field, question_td_id from questionnaire_data_field" +
                     " where questionnaire_id=" + id, null);
             Map<String, Long> dataFields = new HashMap<>();
             dataFieldsCursor.moveToFirst();
@@ -1426,7 +2019,7 @@ class Library implements Index {
     }
 
     public List<Question> getQuestions(long questionnaireTDId) {
-        Cursor cursor = db.rawQuery("select * from question where questionnaire_id in (" +
+        Cursor cursor = rawQuery("select * from question where questionnaire_id in (" +
                 " select id from questionnaire where td_id=" + questionnaireTDId + ")" +
                 " order by sort asc", null);
 
@@ -1452,7 +2045,18 @@ class Library implements Index {
     }
 
     public Category getCategory(String languageSlug, String slug) {
-        Cursor cursor = db.rawQuery("select cn.name, c.slug from category as c" +
+        IndexCache.Key key = new IndexCache.Key(IndexCache.CATEGORY, languageSlug, slug);
+        long generation = cache.generation();
+        Object cached = cache.get(key);
+        if(cached != IndexCache.MISS) return (Category)cached;
+
+        Category category = loadCategory(languageSlug, slug);
+        cache.put(key, category, generation);
+        return category;
+    }
+
+    private Category loadCategory(String languageSlug, String slug) {
+        Cursor cursor = rawQuery("select cn.name, c.slug from category as c" +
                 " left join category_name as cn on cn.category_id=c.id" +
                 " left join source_language as sl on sl.id=cn.source_language_id" +
                 " where c.slug=? and sl.slug=?", new String[]{slug, languageSlug});
@@ -1465,55 +2069,8 @@ class Library implements Index {
         return cat;
     }
 
-    /**
-     * Returns the parent category of the given category
-     * @param languageSlug the language of the parent category name
-     * @param childCategorySlug the slug of the child category
-     * @return the parent category of null if there is no parent
-     */
-    private Category getParentCategory(String languageSlug, String childCategorySlug) {
-        Cursor cursor = db.rawQuery("select pcn.name, pc.slug from category as pc" +
-                " left join category as cc on cc.parent_id=pc.id" +
-                " left join category_name as pcn on pcn.category_id=pc.id" +
-                " left join source_language as sl on sl.id=pcn.source_language_id" +
-                " where cc.slug=? and sl.slug=?", new String[]{childCategorySlug, languageSlug});
-        Category cat = null;
-        if(cursor.moveToFirst()) {
-            CursorReader reader = new CursorReader(cursor);
-            cat = new Category(reader.getString("slug"), reader.getString("name"));
-        }
-        cursor.close();
-        return cat;
-    }
-
     public List<Category> getCategories(String languageSlug, String projectSlug) {
-        List<Category> categories = new ArrayList<>();
-        Cursor cursor = db.rawQuery("select c.slug, cn.name from category as c" +
-                " left join category_name as cn on cn.category_id=c.id" +
-                " left join source_language as sl on sl.id=cn.source_language_id" +
-                " left join project as p on p.source_language_id=sl.id and p.category_id=c.id" +
-                " where p.slug=? and sl.slug=?", new String[]{projectSlug, languageSlug});
-        if(cursor.moveToFirst()) {
-            CursorReader reader = new CursorReader(cursor);
-            Category cat = new Category(reader.getString("slug"), reader.getString("name"));
-            categories.add(cat);
-            cursor.close();
-
-            // find the rest of the categories
-            String previousSlug = cat.slug;
-            Category nextCat = null;
-            do {
-                nextCat = getParentCategory(languageSlug, previousSlug);
-                if(nextCat != null) {
-                    previousSlug = nextCat.slug;
-                    categories.add(0, nextCat);
-                }
-            } while (nextCat != null);
-        } else {
-            cursor.close();
-        }
-
-        return categories;
+        return getCategoryTree().getPath(languageSlug, projectSlug);
     }
 
     /**
@@ -1521,7 +2078,6 @@ class Library implements Index {
      */
     public void clearTargetLanguages() {
         truncateTable("target_language");
-        vacuum();
     }
 
     /**
@@ -1529,7 +2085,6 @@ class Library implements Index {
      */
     public void clearTempLanguages() {
         truncateTable("temp_target_language");
-        vacuum();
     }
 
     /**
@@ -1539,7 +2094,6 @@ class Library implements Index {
         truncateTable("questionnaire_data_field");
         truncateTable("question");
         truncateTable("questionnaire");
-        vacuum();
     }
 
     /**
@@ -1547,7 +2101,9 @@ class Library implements Index {
      * This does not actually truncate anything just sets all the approved slugs to null.
      */
     public void clearApprovedTempLanguages() {
-        db.rawQuery("update temp_target_language set approved_target_language_slug=null", null);
+        countStatement(false);
+        db.execSQL("update " + table("temp_target_language") + " set approved_target_language_slug=null");
+        invalidateTargetLanguages();
     }
 
     /**
@@ -1556,7 +2112,9 @@ class Library implements Index {
      * @param table the table that will lose all it's data.
      */
     protected void truncateTable(String table) {
-        db.rawQuery("delete from ".concat(table), null);
+        countStatement(false);
+        db.execSQL("delete from ".concat(table(table)));
+        invalidateTargetLanguages();
     }
 
     /**
@@ -1566,12 +2124,245 @@ class Library implements Index {
      */
     protected void vacuum() {
         try {
-            db.rawQuery("vacuum", null);
+            countStatement(false);
+            db.execSQL("vacuum");
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Writes rows in bulk using statements that are compiled once and re-bound for every row.
+     * This is used when indexing catalogs where the same kind of row is written thousands of times.
+     *
+     * Conflicts are detected by the number of rows affected rather than by catching exceptions.
+     * Updatable rows are updated first and only inserted if nothing was updated,
+     * so re-indexing unchanged content never attempts a failing insert.
+     *
+     * TRICKY: the statements survive {@link #yieldSafely()} but must not outlive the transaction.
+     * Use {@link #getBatchWriter()} rather than creating one directly.
+     */
+    public class BatchWriter implements Closeable {
+        private final List<SQLiteStatement> statements = new ArrayList<>();
+
+        private final SQLiteStatement updateTargetLanguage = compile("update " + table("target_language") + " set name=?, direction=?, anglicized_name=?, region=?, is_gateway_language=? where slug=?");
+        private final SQLiteStatement insertTargetLanguage = compile("insert into " + table("target_language") + " (name, direction, anglicized_name, region, is_gateway_language, slug) values (?, ?, ?, ?, ?, ?)");
+        private final SQLiteStatement updateTempTargetLanguage = compile("update " + table("temp_target_language") + " set name=?, direction=?, anglicized_name=?, region=?, is_gateway_language=? where slug=?");
+        private final SQLiteStatement insertTempTargetLanguage = compile("insert into " + table("temp_target_language") + " (name, direction, anglicized_name, region, is_gateway_language, slug) values (?, ?, ?, ?, ?, ?)");
+        private final SQLiteStatement insertChunkMarker = compile("insert or ignore into chunk_marker (chapter, verse, project_slug, versification_id) values (?, ?, ?, ?)");
+        private final SQLiteStatement selectChunkMarker = compile("select id from chunk_marker where chapter=? and verse=? and project_slug=? and versification_id=?");
+        private final SQLiteStatement updateResource = compile("update resource set name=?, type=?, translate_mode=?, checking_level=?, comments=?, pub_date=?, license=?, version=? where slug=? and project_id=?");
+        private final SQLiteStatement insertResource = compile("insert into resource (name, type, translate_mode, checking_level, comments, pub_date, license, version, slug, project_id) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        private final SQLiteStatement selectResource = compile("select id from resource where slug=? and project_id=?");
+        private final SQLiteStatement selectProjectLanguage = compile("select source_language_id from project where id=?");
+        private final SQLiteStatement updateFormat = compile("update resource_format set package_version=?, imported=?, modified_at=?, url=? where mime_type=? and resource_id=?");
+        private final SQLiteStatement insertFormat = compile("insert into resource_format (package_version, imported, modified_at, url, mime_type, resource_id) values (?, ?, ?, ?, ?, ?)");
+        private final SQLiteStatement updateNumImported = compile(UPDATE_NUM_IMPORTED);
+        private final SQLiteStatement updateLegacyInfo = compile("update legacy_resource_info set translation_words_assignments_url=? where resource_id=?");
+        private final SQLiteStatement insertLegacyInfo = compile("insert into legacy_resource_info (translation_words_assignments_url, resource_id) values (?, ?)");
+
+        private BatchWriter() {}
+
+        private SQLiteStatement compile(String sql) {
+            SQLiteStatement statement = db.compileStatement(sql);
+            statements.add(statement);
+            return statement;
+        }
+
+        /**
+         * Binds a string that may be null
+         * @param statement
+         * @param index
+         * @param value
+         */
+        private void bind(SQLiteStatement statement, int index, String value) {
+            if(value == null) {
+                statement.bindNull(index);
+            } else {
+                statement.bindString(index, value);
+            }
+        }
+
+        /**
+         * Runs an update and falls back to an insert if no rows were updated.
+         * Both statements must take the same arguments in the same order.
+         *
+         * @return the id of the inserted row or -1 if an existing row was updated
+         */
+        private long updateOrInsert(SQLiteStatement update, SQLiteStatement insert) {
+            countStatement(false);
+            if(update.executeUpdateDelete() > 0) return -1;
+            countStatement(false);
+            return insert.executeInsert();
+        }
+
+        /**
+         * Inserts or updates a target language.
+         * This behaves the same as {@link Library#addTargetLanguage(TargetLanguage)}
+         *
+         * @param language
+         * @return
+         * @throws Exception
+         */
+        synchronized public boolean addTargetLanguage(TargetLanguage language) throws Exception {
+            return addLanguage(updateTargetLanguage, insertTargetLanguage, language);
+        }
+
+        /**
+         * Inserts or updates a temporary target language.
+         * This behaves the same as {@link Library#addTempTargetLanguage(TargetLanguage)}
+         *
+         * @param language
+         * @return
+         * @throws Exception
+         */
+        synchronized public boolean addTempTargetLanguage(TargetLanguage language) throws Exception {
+            return addLanguage(updateTempTargetLanguage, insertTempTargetLanguage, language);
+        }
+
+        private boolean addLanguage(SQLiteStatement update, SQLiteStatement insert, TargetLanguage language) throws Exception {
+            validateNotEmpty(language.slug);
+            validateNotEmpty(language.name);
+            validateNotEmpty(language.direction);
+
+            for(SQLiteStatement statement:new SQLiteStatement[]{update, insert}) {
+                statement.bindString(1, language.name);
+                statement.bindString(2, language.direction);
+                statement.bindString(3, deNull(language.anglicizedName));
+                statement.bindString(4, deNull(language.region));
+                statement.bindLong(5, language.isGatewayLanguage ? 1 : 0);
+                statement.bindString(6, language.slug);
+            }
+            updateOrInsert(update, insert);
+            invalidateTargetLanguages();
+            return true;
+        }
+
+        /**
+         * Inserts a chunk marker.
+         * This behaves the same as {@link Library#addChunkMarker(ChunkMarker, String, long)}
+         *
+         * @param chunk
+         * @param projectSlug
+         * @param versificationId
+         * @return the id of the chunk marker
+         * @throws Exception
+         */
+        synchronized public long addChunkMarker(ChunkMarker chunk, String projectSlug, long versificationId) throws Exception {
+            validateNotEmpty(chunk.chapter);
+            validateNotEmpty(chunk.verse);
+            validateNotEmpty(projectSlug);
+
+            for(SQLiteStatement statement:new SQLiteStatement[]{insertChunkMarker, selectChunkMarker}) {
+                statement.bindString(1, chunk.chapter);
+                statement.bindString(2, chunk.verse);
+                statement.bindString(3, projectSlug);
+                statement.bindLong(4, versificationId);
+            }
+            // TRICKY: the row id reported by an ignored insert is not reliable across platforms so we always look it up
+            countStatement(false);
+            insertChunkMarker.executeUpdateDelete();
+            countStatement(true);
+            return selectChunkMarker.simpleQueryForLong();
+        }
+
+        /**
+         * Inserts or updates a resource along with its formats and legacy data.
+         * This behaves the same as {@link Library#addResource(Resource, long)}
+         *
+         * @param resource
+         * @param projectId
+         * @return the id of the resource row
+         * @throws Exception
+         */
+        synchronized public long addResource(Resource resource, long projectId) throws Exception {
+            validateNotEmpty(resource.slug);
+            validateNotEmpty(resource.name);
+            validateNotEmpty(resource.type);
+            validateNotEmpty(resource.formats.size() > 0 ? "good" : null);
+            validateNotEmpty(resource.translateMode);
+            validateNotEmpty(resource.checkingLevel);
+            validateNotEmpty(resource.version);
+            for(Resource.Format format : resource.formats) {
+                validateNotEmpty(format.mimeType);
+            }
+
+            for(SQLiteStatement statement:new SQLiteStatement[]{updateResource, insertResource}) {
+                statement.bindString(1, resource.name);
+                statement.bindString(2, resource.type);
+                statement.bindString(3, resource.translateMode);
+                statement.bindString(4, resource.checkingLevel);
+                statement.bindString(5, deNull(resource.comments));
+                statement.bindString(6, deNull(resource.pubDate));
+                statement.bindString(7, deNull(resource.license));
+                statement.bindString(8, resource.version);
+                statement.bindString(9, resource.slug);
+                statement.bindLong(10, projectId);
+            }
+            long resourceId = updateOrInsert(updateResource, insertResource);
+            if(resourceId == -1) {
+                selectResource.bindString(1, resource.slug);
+                selectResource.bindLong(2, projectId);
+                countStatement(true);
+                resourceId = selectResource.simpleQueryForLong();
+            }
+            selectProjectLanguage.bindLong(1, projectId);
+            countStatement(true);
+            indexSearchEntry(SEARCH_RESOURCE, resourceId, selectProjectLanguage.simpleQueryForLong(), resource.name, "");
+            invalidateResource(resource.slug);
+
+            // add formats
+            for(Resource.Format format : resource.formats) {
+                for(SQLiteStatement statement:new SQLiteStatement[]{updateFormat, insertFormat}) {
+                    bind(statement, 1, format.packageVersion);
+                    statement.bindLong(2, format.imported ? 1 : 0);
+                    statement.bindLong(3, format.modifiedAt);
+                    statement.bindString(4, deNull(format.url));
+                    statement.bindString(5, format.mimeType);
+                    statement.bindLong(6, resourceId);
+                }
+                updateOrInsert(updateFormat, insertFormat);
+            }
+            updateNumImported.bindLong(1, resourceId);
+            countStatement(false);
+            updateNumImported.executeUpdateDelete();
+
+            // add legacy data
+            Object wordsAssignmentsUrl = resource._legacyData.get(API.LEGACY_WORDS_ASSIGNMENTS_URL);
+            if(wordsAssignmentsUrl != null && !wordsAssignmentsUrl.equals("")) {
+                for(SQLiteStatement statement:new SQLiteStatement[]{updateLegacyInfo, insertLegacyInfo}) {
+                    statement.bindString(1, (String)wordsAssignmentsUrl);
+                    statement.bindLong(2, resourceId);
+                }
+                updateOrInsert(updateLegacyInfo, insertLegacyInfo);
+            }
+            return resourceId;
+        }
+
+        /**
+         * Releases the compiled statements
+         */
+        @Override
+        synchronized public void close() {
+            for(SQLiteStatement statement:statements) {
+                statement.close();
+            }
+            statements.clear();
+        }
+    }
+
+    /**
+     * Receives the queries run by the library
+     */
+    interface QueryObserver {
+        /**
+         * Called before a query is run
+         * @param sql the query
+         * @param selectionArgs the arguments bound to the query
+         */
+        void onQuery(String sql, String[] selectionArgs);
+    }
+
     /**
      * Represents the result from and insertOrIgnore or insertOrUpdate
      */
@@ -1590,6 +2381,32 @@ class Library implements Index {
         }
     }
 
+    /**
+     * Reports the number of rows that were read from a cursor when it is closed.
+     * Rows are counted up to the furthest position the cursor was moved to.
+     */
+    private static class MeteredCursor extends CursorWrapper {
+        private final Metrics metrics;
+        private boolean closed = false;
+
+        public MeteredCursor(Cursor cursor, Metrics metrics) {
+            super(cursor);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void close() {
+            if(!closed) {
+                closed = true;
+                int position = getPosition();
+                // TRICKY: the count is only cheap once a row has been read
+                long rows = position < 0 ? 0 : Math.min(position + 1, getCount());
+                metrics.onRowsRead(rows);
+            }
+            super.close();
+        }
+    }
+
     /**
      * A helper class to make reading from a cursor easier.
      */
@@ -1615,5 +2432,9 @@ class Library implements Index {
         public boolean getBoolean(String key) {
             return this.cursor.getInt(this.cursor.getColumnIndexOrThrow(key)) > 0;
         }
+
+        public boolean isNull(String key) {
+            return this.cursor.isNull(this.cursor.getColumnIndexOrThrow(key));
+        }
     }
 }
\ No newline at end of file
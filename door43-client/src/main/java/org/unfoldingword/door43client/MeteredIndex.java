@@ -0,0 +1,44 @@
+package org.unfoldingword.door43client;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Times every call made to an index.
+ * Calls are reported as "Index.<method>".
+ */
+class MeteredIndex implements InvocationHandler {
+    private final Index index;
+    private final Metrics metrics;
+
+    private MeteredIndex(Index index, Metrics metrics) {
+        this.index = index;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Wraps an index so it's calls are reported to the metrics
+     * @param index the index to wrap
+     * @param metrics
+     * @return the wrapped index
+     */
+    public static Index wrap(Index index, Metrics metrics) {
+        return (Index) Proxy.newProxyInstance(Index.class.getClassLoader(),
+                new Class<?>[]{Index.class}, new MeteredIndex(index, metrics));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if(method.getDeclaringClass() == Object.class) return method.invoke(index, args);
+        long start = System.nanoTime();
+        try {
+            return method.invoke(index, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            metrics.onOperation("Index." + method.getName(), System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.unfoldingword.door43client;
+
+/**
+ * Receives timings and counters from the client.
+ * See {@link MetricsRecorder} for an implementation that aggregates them.
+ *
+ * TRICKY: catalogs are downloaded on worker threads so implementations must be thread safe.
+ * They are also called while the index is in use and should return quickly.
+ */
+public interface Metrics {
+    /**
+     * Called when an index or api operation returns
+     * @param operation the name of the operation e.g. "Index.getResources" or "API.updateSources"
+     * @param nanos how long the operation took
+     */
+    void onOperation(String operation, long nanos);
+
+    /**
+     * Called when a sql statement has been executed
+     * @param query true if the statement read rows from the index
+     */
+    void onStatement(boolean query);
+
+    /**
+     * Called when the rows of a query have been read
+     * @param rows the number of rows that were read
+     */
+    void onRowsRead(long rows);
+
+    /**
+     * Called when the outermost transaction has ended
+     * @param nanos how long the transaction was held open
+     * @param rowsWritten the number of rows inserted, updated or deleted within the transaction
+     * @param committed false if the transaction was rolled back
+     */
+    void onTransaction(long nanos, long rowsWritten, boolean committed);
+
+    /**
+     * Called when a catalog has been requested
+     * @param url the catalog url
+     * @param status the http status code
+     * @param bytes the number of bytes received
+     * @param nanos how long the request took
+     */
+    void onHttpRequest(String url, int status, long bytes, long nanos);
+}
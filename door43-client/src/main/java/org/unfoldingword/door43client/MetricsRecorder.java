@@ -0,0 +1,292 @@
+package org.unfoldingword.door43client;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregates the metrics of the client in memory.
+ * Timings are kept in histograms so percentiles can be reported without keeping every sample.
+ */
+public class MetricsRecorder implements Metrics {
+    private final Map<String, Histogram> operations = new HashMap<>();
+    private final Map<String, HttpStats> requests = new HashMap<>();
+    private final Histogram transactions = new Histogram();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong statements = new AtomicLong();
+    private final AtomicLong rowsRead = new AtomicLong();
+    private final AtomicLong rowsWritten = new AtomicLong();
+
+    @Override
+    public void onOperation(String operation, long nanos) {
+        Histogram histogram;
+        synchronized (operations) {
+            histogram = operations.get(operation);
+            if(histogram == null) {
+                histogram = new Histogram();
+                operations.put(operation, histogram);
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    @Override
+    public void onStatement(boolean query) {
+        statements.incrementAndGet();
+        if(query) queries.incrementAndGet();
+    }
+
+    @Override
+    public void onRowsRead(long rows) {
+        rowsRead.addAndGet(rows);
+    }
+
+    @Override
+    public void onTransaction(long nanos, long rowsWritten, boolean committed) {
+        transactions.record(nanos);
+        if(committed) this.rowsWritten.addAndGet(rowsWritten);
+    }
+
+    @Override
+    public void onHttpRequest(String url, int status, long bytes, long nanos) {
+        HttpStats stats;
+        synchronized (requests) {
+            stats = requests.get(url);
+            if(stats == null) {
+                stats = new HttpStats();
+                requests.put(url, stats);
+            }
+        }
+        stats.record(bytes, nanos);
+    }
+
+    /**
+     * Returns the latency of each operation keyed by name
+     * @return a copy of the histograms
+     */
+    public Map<String, Histogram> getOperations() {
+        Map<String, Histogram> copy = new HashMap<>();
+        synchronized (operations) {
+            for(Map.Entry<String, Histogram> entry:operations.entrySet()) {
+                copy.put(entry.getKey(), entry.getValue().copy());
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the catalog requests keyed by url
+     * @return a copy of the stats
+     */
+    public Map<String, HttpStats> getHttpRequests() {
+        Map<String, HttpStats> copy = new HashMap<>();
+        synchronized (requests) {
+            for(Map.Entry<String, HttpStats> entry:requests.entrySet()) {
+                copy.put(entry.getKey(), entry.getValue().copy());
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Returns how long transactions were held open
+     * @return a copy of the histogram
+     */
+    public Histogram getTransactions() {
+        return transactions.copy();
+    }
+
+    /**
+     * Returns the number of sql statements that have been executed including queries
+     * @return
+     */
+    public long getStatements() {
+        return statements.get();
+    }
+
+    /**
+     * Returns the number of sql queries that have been executed
+     * @return
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * Returns the number of rows that have been read by queries
+     * @return
+     */
+    public long getRowsRead() {
+        return rowsRead.get();
+    }
+
+    /**
+     * Returns the number of rows that have been written by committed transactions
+     * @return
+     */
+    public long getRowsWritten() {
+        return rowsWritten.get();
+    }
+
+    /**
+     * Clears all of the recorded metrics
+     */
+    public void reset() {
+        synchronized (operations) {
+            operations.clear();
+        }
+        synchronized (requests) {
+            requests.clear();
+        }
+        transactions.reset();
+        statements.set(0);
+        queries.set(0);
+        rowsRead.set(0);
+        rowsWritten.set(0);
+    }
+
+    /**
+     * A histogram of durations.
+     * Samples are counted in power of two buckets so percentiles are accurate to within a factor of two.
+     */
+    public static class Histogram {
+        private final long[] buckets = new long[64];
+        private long count = 0;
+        private long total = 0;
+        private long max = 0;
+
+        synchronized void record(long nanos) {
+            if(nanos < 0) nanos = 0;
+            buckets[64 - Long.numberOfLeadingZeros(nanos)] ++;
+            count ++;
+            total += nanos;
+            if(nanos > max) max = nanos;
+        }
+
+        synchronized void reset() {
+            for(int i = 0; i < buckets.length; i ++) {
+                buckets[i] = 0;
+            }
+            count = 0;
+            total = 0;
+            max = 0;
+        }
+
+        synchronized Histogram copy() {
+            Histogram copy = new Histogram();
+            System.arraycopy(buckets, 0, copy.buckets, 0, buckets.length);
+            copy.count = count;
+            copy.total = total;
+            copy.max = max;
+            return copy;
+        }
+
+        /**
+         * Returns the number of samples
+         * @return
+         */
+        public synchronized long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the sum of all the samples in nanoseconds
+         * @return
+         */
+        public synchronized long getTotal() {
+            return total;
+        }
+
+        /**
+         * Returns the largest sample in nanoseconds
+         * @return
+         */
+        public synchronized long getMax() {
+            return max;
+        }
+
+        /**
+         * Returns the mean of the samples in nanoseconds
+         * @return
+         */
+        public synchronized long getMean() {
+            return count == 0 ? 0 : total / count;
+        }
+
+        /**
+         * Returns the upper bound of the bucket containing the percentile
+         * @param percentile a value between 0 and 100
+         * @return the duration in nanoseconds
+         */
+        public synchronized long getPercentile(double percentile) {
+            if(count == 0) return 0;
+            long rank = (long)Math.ceil(percentile / 100.0 * count);
+            long seen = 0;
+            for(int i = 0; i < buckets.length; i ++) {
+                seen += buckets[i];
+                if(seen >= Math.max(1, rank)) {
+                    return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() + " mean=" + getMean() + " p50=" + getPercentile(50)
+                    + " p99=" + getPercentile(99) + " max=" + getMax();
+        }
+    }
+
+    /**
+     * The requests made for a single catalog
+     */
+    public static class HttpStats {
+        private long requests = 0;
+        private long bytes = 0;
+        private long nanos = 0;
+
+        synchronized void record(long bytes, long nanos) {
+            this.requests ++;
+            this.bytes += bytes;
+            this.nanos += nanos;
+        }
+
+        synchronized HttpStats copy() {
+            HttpStats copy = new HttpStats();
+            copy.requests = requests;
+            copy.bytes = bytes;
+            copy.nanos = nanos;
+            return copy;
+        }
+
+        /**
+         * Returns the number of requests
+         * @return
+         */
+        public synchronized long getRequests() {
+            return requests;
+        }
+
+        /**
+         * Returns the number of bytes received
+         * @return
+         */
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns the total time spent on the requests in nanoseconds
+         * @return
+         */
+        public synchronized long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "requests=" + getRequests() + " bytes=" + getBytes() + " nanos=" + getNanos();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.unfoldingword.door43client;
+
+import org.unfoldingword.resourcecontainer.ResourceContainer;
+
+/**
+ * Receives the results of the downloads queued in the {@link DownloadManager}.
+ * These are called from the download threads.
+ */
+public interface OnDownloadListener {
+    /**
+     * A resource container was downloaded
+     * @param containerSlug
+     * @param container
+     */
+    void onDownloaded(String containerSlug, ResourceContainer container);
+
+    /**
+     * A resource container could not be downloaded
+     * @param containerSlug
+     * @param e
+     */
+    void onDownloadFailed(String containerSlug, Exception e);
+
+    /**
+     * The aggregate progress of the queue.
+     * The counts are reset once the queue is empty.
+     *
+     * @param total the number of containers queued since the queue was last empty
+     * @param completed the number of containers that were downloaded
+     * @param failed the number of containers that failed to download
+     */
+    void onProgress(int total, int completed, int failed);
+}
@@ -1,7 +1,9 @@
 package org.unfoldingword.door43client;
 
 /**
- * A utility to get progress updates during long operations
+ * A utility to get progress updates during long operations.
+ * Updates are throttled so not every item will be reported, however the last item of each tag always is.
+ * Use a {@link ProgressEventListener} to receive the download and parse progress as well.
  */
 public interface OnProgressListener {
     /**
@@ -0,0 +1,78 @@
+package org.unfoldingword.door43client;
+
+/**
+ * Describes the progress of a long running operation such as an update.
+ */
+public class ProgressEvent {
+    /**
+     * The stage of work being performed on a catalog
+     */
+    public enum Phase {
+        /**
+         * The catalog is being downloaded
+         */
+        FETCH,
+        /**
+         * The catalog is being read
+         */
+        PARSE,
+        /**
+         * The catalog is being written to the index
+         */
+        INDEX
+    }
+
+    /**
+     * Identifies what is being processed. This is the same tag given to {@link OnProgressListener}.
+     */
+    public final String tag;
+    public final Phase phase;
+    /**
+     * The number of items being processed.
+     * While a catalog is parsed this is the size of the catalog in bytes.
+     */
+    public final long max;
+    /**
+     * The number of items that have been processed.
+     * While a catalog is parsed this is the number of bytes that have been read.
+     */
+    public final long complete;
+    /**
+     * The number of bytes downloaded so far by the operation
+     */
+    public final long bytes;
+    /**
+     * The sum of the content lengths of the downloads started so far or -1 if any of them were unknown
+     */
+    public final long contentLength;
+    /**
+     * The number of rows written to the index so far by the operation
+     */
+    public final long rowsWritten;
+    /**
+     * The time in milliseconds since the operation started
+     */
+    public final long elapsed;
+    /**
+     * The estimated time in milliseconds until the items of this tag are processed or -1 if unknown
+     */
+    public final long remaining;
+
+    public ProgressEvent(String tag, Phase phase, long max, long complete, long bytes, long contentLength, long rowsWritten, long elapsed, long remaining) {
+        this.tag = tag;
+        this.phase = phase;
+        this.max = max;
+        this.complete = complete;
+        this.bytes = bytes;
+        this.contentLength = contentLength;
+        this.rowsWritten = rowsWritten;
+        this.elapsed = elapsed;
+        this.remaining = remaining;
+    }
+
+    @Override
+    public String toString() {
+        return tag + " " + phase + " " + complete + "/" + max + " bytes: " + bytes + "/" + contentLength
+                + " rows: " + rowsWritten + " elapsed: " + elapsed + "ms remaining: " + remaining + "ms";
+    }
+}
@@ -0,0 +1,46 @@
+package org.unfoldingword.door43client;
+
+/**
+ * Receives structured progress events during long operations.
+ * This may be given anywhere an {@link OnProgressListener} is accepted.
+ *
+ * Events are throttled so at most one is delivered per interval,
+ * except for the first and last event of each tag and phase which are always delivered.
+ */
+public abstract class ProgressEventListener implements OnProgressListener {
+    public static final long DEFAULT_INTERVAL = 100;
+
+    private final long interval;
+
+    public ProgressEventListener() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    /**
+     *
+     * @param interval the minimum time in milliseconds between events
+     */
+    public ProgressEventListener(long interval) {
+        this.interval = Math.max(0, interval);
+    }
+
+    /**
+     * Returns the minimum time in milliseconds between events
+     * @return
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     *
+     * @param event the progress
+     * @return cancels the operation if false is returned
+     */
+    public abstract boolean onProgress(ProgressEvent event);
+
+    @Override
+    public boolean onProgress(String tag, long max, long complete) {
+        return onProgress(new ProgressEvent(tag, ProgressEvent.Phase.INDEX, max, complete, 0, -1, 0, 0, -1));
+    }
+}
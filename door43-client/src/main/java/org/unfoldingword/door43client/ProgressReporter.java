@@ -0,0 +1,123 @@
+package org.unfoldingword.door43client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers the progress of an operation to a listener.
+ * Updates are throttled so per-row progress does not slow down the operation or flood the listener.
+ * Each phase is throttled on its own so the phases of a tag can be reported in turn.
+ * The first and last update of each tag and phase are always delivered.
+ *
+ * Only {@link ProgressEventListener}s receive the fetch and parse phases,
+ * plain listeners continue to receive the index progress of each tag.
+ *
+ * Once the listener cancels the operation every following update will return false.
+ */
+class ProgressReporter implements OnProgressListener {
+    private final OnProgressListener listener;
+    private final ProgressEventListener eventListener;
+    private final Library library;
+    private final long interval;
+    private final long start;
+    private final long rowsBefore;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong contentLength = new AtomicLong();
+    private final String[] lastTag = new String[ProgressEvent.Phase.values().length];
+    private final long[] tagStart = new long[ProgressEvent.Phase.values().length];
+    private final long[] lastDelivered = new long[ProgressEvent.Phase.values().length];
+    private volatile boolean canceled = false;
+
+    /**
+     *
+     * @param listener the listener to receive the progress. This may be null.
+     * @param library the library that is being written to. This is used to count the rows written.
+     */
+    public ProgressReporter(OnProgressListener listener, Library library) {
+        this.listener = listener;
+        this.eventListener = listener instanceof ProgressEventListener ? (ProgressEventListener) listener : null;
+        this.library = library;
+        this.interval = eventListener != null ? eventListener.getInterval() : ProgressEventListener.DEFAULT_INTERVAL;
+        this.start = now();
+        this.rowsBefore = eventListener != null && library != null ? library.getRowsWritten() : 0;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    @Override
+    public boolean onProgress(String tag, long max, long complete) {
+        return report(tag, ProgressEvent.Phase.INDEX, max, complete);
+    }
+
+    /**
+     * Reports progress
+     * @param tag identifies what is being processed
+     * @param phase the stage of work
+     * @param max the number of items being processed
+     * @param complete the number of items that have been processed
+     * @return false if the operation has been canceled
+     */
+    synchronized public boolean report(String tag, ProgressEvent.Phase phase, long max, long complete) {
+        if(canceled) return false;
+        if(listener == null) return true;
+        if(eventListener == null && phase != ProgressEvent.Phase.INDEX) return true;
+
+        long now = now();
+        int p = phase.ordinal();
+        if(!tag.equals(lastTag[p])) {
+            lastTag[p] = tag;
+            tagStart[p] = now;
+        } else if(complete < max && now - lastDelivered[p] < interval) {
+            return true;
+        }
+        lastDelivered[p] = now;
+
+        boolean proceed;
+        if(eventListener != null) {
+            long remaining = -1;
+            if(complete > 0 && complete <= max) remaining = (now - tagStart[p]) * (max - complete) / complete;
+            long rows = library != null ? library.getRowsWritten() - rowsBefore : 0;
+            proceed = eventListener.onProgress(new ProgressEvent(tag, phase, max, complete,
+                    bytes.get(), contentLength.get(), rows, now - start, remaining));
+        } else {
+            proceed = listener.onProgress(tag, max, complete);
+        }
+        if(!proceed) canceled = true;
+        return proceed;
+    }
+
+    /**
+     * Records bytes that have been downloaded.
+     * This may be called from any thread.
+     * @param count the number of bytes
+     */
+    public void addBytes(long count) {
+        bytes.addAndGet(count);
+    }
+
+    /**
+     * Records the content length of a download that has started.
+     * This may be called from any thread.
+     * @param length the content length or -1 if it is unknown
+     */
+    public void addContentLength(long length) {
+        if(length < 0) {
+            contentLength.set(-1);
+            return;
+        }
+        long current;
+        do {
+            current = contentLength.get();
+            if(current < 0) return;
+        } while(!contentLength.compareAndSet(current, current + length));
+    }
+
+    /**
+     * Checks if the listener has canceled the operation
+     * @return
+     */
+    public boolean isCanceled() {
+        return canceled;
+    }
+}
@@ -0,0 +1,315 @@
+package org.unfoldingword.door43client;
+
+import android.util.Base64;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads a file so that an interrupted download can be resumed later.
+ *
+ * The content is written to a partial file next to the destination along with a small metadata file
+ * that records the validators of the response. When the download is run again only the missing bytes
+ * are requested with a Range request. The If-Range header makes the server send the entire file
+ * instead if it has changed in the mean time.
+ *
+ * Once complete the size and (if the server provided one) the Content-MD5 of the file are verified
+ * before it is moved to the destination.
+ */
+class ResumableDownload {
+    public static final String PART_EXTENSION = ".part";
+    public static final String META_EXTENSION = ".part.json";
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private final String url;
+    private final File destFile;
+    private final File partFile;
+    private final File metaFile;
+    private Metrics metrics = null;
+    private int readTimeout = CatalogFetcher.READ_TIMEOUT;
+
+    /**
+     *
+     * @param url the url to download
+     * @param destFile the file that will receive the completed download
+     */
+    public ResumableDownload(String url, File destFile) {
+        this(url, destFile, destFile);
+    }
+
+    /**
+     *
+     * @param url the url to download
+     * @param destFile the file that will receive the completed download
+     * @param resumeFile the partial download is kept next to this file so later attempts can find it.
+     *                   This must be on the same disk as the destination.
+     */
+    public ResumableDownload(String url, File destFile, File resumeFile) {
+        this.url = url;
+        this.destFile = destFile;
+        this.partFile = new File(resumeFile.getParentFile(), resumeFile.getName() + PART_EXTENSION);
+        this.metaFile = new File(resumeFile.getParentFile(), resumeFile.getName() + META_EXTENSION);
+    }
+
+    /**
+     * Sets the metrics that will receive the http request
+     * @param metrics this may be null
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets how long to wait for the server to send more data before the attempt fails.
+     * The partial download is kept so a later attempt can resume it.
+     * @param readTimeout the timeout in milliseconds
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Returns the file the content is downloaded to until it is complete
+     * @return
+     */
+    public File getPartFile() {
+        return partFile;
+    }
+
+    /**
+     * Returns the file where the validators of the partial download are stored
+     * @return
+     */
+    public File getMetaFile() {
+        return metaFile;
+    }
+
+    /**
+     * Downloads the file, resuming a previous attempt if possible.
+     * If the download is interrupted the partial file is kept so the next attempt can resume it.
+     *
+     * @return the completed file
+     * @throws Exception
+     */
+    public File run() throws Exception {
+        long start = System.nanoTime();
+        int code = -1;
+        long bytes = 0;
+        Meta meta = readMeta();
+        long offset = 0;
+        if(meta != null && meta.canResume()) {
+            offset = partFile.length();
+        } else {
+            discard();
+            meta = null;
+        }
+
+        HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+        conn.setConnectTimeout(CatalogFetcher.CONNECT_TIMEOUT);
+        conn.setReadTimeout(readTimeout);
+        try {
+            // TRICKY: transparent compression would break the byte offsets
+            conn.setRequestProperty("Accept-Encoding", "identity");
+            if(offset > 0) {
+                conn.setRequestProperty("Range", "bytes=" + offset + "-");
+                conn.setRequestProperty("If-Range", meta.etag != null ? meta.etag : meta.lastModified);
+            }
+            code = conn.getResponseCode();
+
+            boolean append;
+            if(code == HttpURLConnection.HTTP_PARTIAL && offset > 0) {
+                long[] range = parseContentRange(conn.getHeaderField("Content-Range"));
+                if(range == null || range[0] != offset) {
+                    discard();
+                    throw new Exception("Unexpected content range " + conn.getHeaderField("Content-Range"));
+                }
+                if(range[1] >= 0) meta = meta.withLength(range[1]);
+                append = true;
+            } else if(code == HttpURLConnection.HTTP_OK) {
+                meta = new Meta(url, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"),
+                        parseLong(conn.getHeaderField("Content-Length")), conn.getHeaderField("Content-MD5"));
+                append = false;
+            } else if(code == HTTP_RANGE_NOT_SATISFIABLE && meta != null && meta.length == offset) {
+                // we already have everything
+                return finish(meta);
+            } else {
+                if(code == HTTP_RANGE_NOT_SATISFIABLE) discard();
+                throw new Exception(conn.getResponseMessage());
+            }
+            writeMeta(meta);
+
+            OutputStream out = FileUtil.openOutputStream(partFile, append);
+            InputStream in = conn.getInputStream();
+            try {
+                byte[] buffer = new byte[8192];
+                int n;
+                while((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                    bytes += n;
+                    // TRICKY: the part file is kept so an interrupted download resumes where it stopped
+                    if(Thread.currentThread().isInterrupted()) throw new InterruptedIOException("The download of " + url + " was interrupted");
+                }
+            } finally {
+                FileUtil.closeQuietly(in);
+                out.close();
+            }
+        } finally {
+            conn.disconnect();
+            if(metrics != null) metrics.onHttpRequest(url, code, bytes, System.nanoTime() - start);
+        }
+        return finish(meta);
+    }
+
+    /**
+     * Deletes the partial download
+     */
+    public void discard() {
+        FileUtil.deleteQuietly(partFile);
+        FileUtil.deleteQuietly(metaFile);
+    }
+
+    /**
+     * Verifies the partial file and moves it to the destination
+     * @param meta
+     * @return the destination file
+     * @throws Exception
+     */
+    private File finish(Meta meta) throws Exception {
+        if(meta.length >= 0 && partFile.length() > meta.length) {
+            discard();
+            throw new Exception("The downloaded file is larger than expected");
+        }
+        if(meta.length >= 0 && partFile.length() < meta.length) {
+            // the connection was closed early. The next attempt will resume from here
+            throw new Exception("Incomplete download. Received " + partFile.length() + " of " + meta.length + " bytes");
+        }
+        if(meta.md5 != null && !meta.md5.equals(md5(partFile))) {
+            discard();
+            throw new Exception("The downloaded file is corrupt");
+        }
+        // TRICKY: the rename replaces an existing file atomically so the old file is never lost
+        ContainerStaging.sync(partFile);
+        if(!partFile.renameTo(destFile)) {
+            FileUtil.deleteQuietly(destFile);
+            if(!partFile.renameTo(destFile)) {
+                FileUtil.copyFile(partFile, destFile);
+                FileUtil.deleteQuietly(partFile);
+            }
+        }
+        FileUtil.deleteQuietly(metaFile);
+        return destFile;
+    }
+
+    /**
+     * Reads the metadata of the partial download
+     * @return the metadata or null if there is nothing to resume
+     */
+    private Meta readMeta() {
+        if(!metaFile.exists() || !partFile.exists()) return null;
+        try {
+            JSONObject json = new JSONObject(FileUtil.readFileToString(metaFile));
+            Meta meta = new Meta(json.getString("url"), json.optString("etag", null),
+                    json.optString("last_modified", null), json.optLong("length", -1), json.optString("md5", null));
+            // the url of the resource may have changed
+            if(!url.equals(meta.url)) return null;
+            return meta;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private void writeMeta(Meta meta) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("url", meta.url);
+        json.putOpt("etag", meta.etag);
+        json.putOpt("last_modified", meta.lastModified);
+        json.put("length", meta.length);
+        json.putOpt("md5", meta.md5);
+        FileUtil.writeStringToFile(metaFile, json.toString());
+    }
+
+    /**
+     * Parses the Content-Range header
+     * @param header
+     * @return the first byte and the total length (-1 if unknown) or null if the header is invalid
+     */
+    static long[] parseContentRange(String header) {
+        if(header == null) return null;
+        Matcher m = CONTENT_RANGE.matcher(header.trim());
+        if(!m.matches()) return null;
+        long total = m.group(3).equals("*") ? -1 : Long.parseLong(m.group(3));
+        return new long[]{Long.parseLong(m.group(1)), total};
+    }
+
+    private static long parseLong(String value) {
+        if(value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the base64 encoded md5 of the file as used in the Content-MD5 header
+     * @param file
+     * @return
+     * @throws Exception
+     */
+    private static String md5(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return Base64.encodeToString(digest.digest(), Base64.NO_WRAP);
+    }
+
+    /**
+     * The validators of a partial download
+     */
+    private static class Meta {
+        final String url;
+        final String etag;
+        final String lastModified;
+        final long length;
+        final String md5;
+
+        Meta(String url, String etag, String lastModified, long length, String md5) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.md5 = md5;
+        }
+
+        /**
+         * Without a validator we cannot tell if the file changed since the partial download
+         * @return
+         */
+        boolean canResume() {
+            return etag != null || lastModified != null;
+        }
+
+        Meta withLength(long length) {
+            return new Meta(url, etag, lastModified, length, md5);
+        }
+    }
+}
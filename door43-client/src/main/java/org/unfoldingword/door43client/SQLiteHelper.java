@@ -1,9 +1,12 @@
 package org.unfoldingword.door43client;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Build;
+import android.text.TextUtils;
 
 import java.io.File;
 
@@ -11,7 +14,7 @@ import java.io.File;
  * A SQLite database helper
  */
 class SQLiteHelper extends SQLiteOpenHelper {
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 7;
     private final String schema;
 
     /**
@@ -56,12 +59,149 @@ class SQLiteHelper extends SQLiteOpenHelper {
         } else {
             db.execSQL("PRAGMA foreign_keys=OFF;");
         }
+        enableWriteAheadLogging(db);
+    }
+
+    /**
+     * Switches the database to write-ahead logging.
+     * This lets queries from threads outside of a transaction run on a pool of read-only connections
+     * so they are not blocked by the updates, although they won't see the changes until they are committed.
+     *
+     * TRICKY: recent changes may only be in the -wal file until the database is closed
+     * so the database must be closed before the file is copied.
+     *
+     * @param db
+     */
+    private static void enableWriteAheadLogging(SQLiteDatabase db) {
+        if(!db.isReadOnly()) db.enableWriteAheadLogging();
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         // TRICKY: if this is used to manage upgrades care must be taken to ensure the correct DATABASE_VERSION
         // is set in the db that is packaged with an android app. Otherwise the packaged db may get overwritten.
+        if(oldVersion < 2) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `http_cache` (" +
+                    "  `id` INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," +
+                    "  `url` TEXT NOT NULL," +
+                    "  `etag` TEXT NULL DEFAULT NULL," +
+                    "  `last_modified` TEXT NULL DEFAULT NULL," +
+                    "  `content_hash` TEXT NULL DEFAULT NULL," +
+                    "  UNIQUE(`url`)" +
+                    ")");
+        }
+        if(oldVersion < 3) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `search_entry` (" +
+                    "  `id` INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," +
+                    "  `kind` TEXT NOT NULL," +
+                    "  `item_id` INTEGER NOT NULL," +
+                    "  `source_language_id` INTEGER NOT NULL," +
+                    "  UNIQUE(`kind`, `item_id`)" +
+                    ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `search_entry_source_language_id` ON `search_entry`(`source_language_id`)");
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `search_text` USING fts4(`name`, `description`)");
+
+            // index the existing content
+            db.execSQL("insert or ignore into search_entry (kind, item_id, source_language_id)" +
+                    " select '" + Library.SEARCH_PROJECT + "', id, source_language_id from project");
+            db.execSQL("insert or ignore into search_entry (kind, item_id, source_language_id)" +
+                    " select '" + Library.SEARCH_RESOURCE + "', r.id, p.source_language_id from resource as r" +
+                    " join project as p on p.id=r.project_id");
+            db.execSQL("insert or ignore into search_entry (kind, item_id, source_language_id)" +
+                    " select '" + Library.SEARCH_CATEGORY + "', id, source_language_id from category_name");
+            db.execSQL("insert into search_text (docid, name, description)" +
+                    " select e.id, p.name, p.desc from search_entry as e" +
+                    " join project as p on p.id=e.item_id where e.kind='" + Library.SEARCH_PROJECT + "'");
+            db.execSQL("insert into search_text (docid, name, description)" +
+                    " select e.id, r.name, '' from search_entry as e" +
+                    " join resource as r on r.id=e.item_id where e.kind='" + Library.SEARCH_RESOURCE + "'");
+            db.execSQL("insert into search_text (docid, name, description)" +
+                    " select e.id, cn.name, '' from search_entry as e" +
+                    " join category_name as cn on cn.id=e.item_id where e.kind='" + Library.SEARCH_CATEGORY + "'");
+            foldSearchText(db);
+        }
+        if(oldVersion < 4) {
+            // these duplicated the indexes of the unique constraints
+            db.execSQL("DROP INDEX IF EXISTS `category_slug`");
+            db.execSQL("DROP INDEX IF EXISTS `source_language_slug`");
+            db.execSQL("DROP INDEX IF EXISTS `resource_format_mime_type`");
+            db.execSQL("DROP INDEX IF EXISTS `questionnaire_data_field_field`");
+            db.execSQL("DROP INDEX IF EXISTS `target_language_slug`");
+            db.execSQL("DROP INDEX IF EXISTS `temp_target_language_slug`");
+            db.execSQL("DROP INDEX IF EXISTS `versification_slug`");
+            db.execSQL("DROP INDEX IF EXISTS `catalog_slug`");
+
+            // the join keys
+            db.execSQL("CREATE INDEX IF NOT EXISTS `category_name_category_id` ON `category_name`(`category_id`, `source_language_id`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `question_questionnaire_id` ON `question`(`questionnaire_id`, `sort`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `questionnaire_data_field_questionnaire_id` ON `questionnaire_data_field`(`questionnaire_id`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `resource_format_resource_id` ON `resource_format`(`resource_id`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `chunk_marker_project_slug` ON `chunk_marker`(`project_slug`)");
+        }
+        if(oldVersion < 5) {
+            // the number of imported formats is kept on the resource
+            db.execSQL("ALTER TABLE `resource` ADD COLUMN `num_imported` INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("update resource set num_imported=(" +
+                    " select count(*) from resource_format where imported=1 and resource_id=resource.id)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `resource_num_imported` ON `resource`(`num_imported`)");
+            // the imported formats no longer need to be looked up
+            db.execSQL("DROP INDEX IF EXISTS `resource_format_imported`");
+        }
+        if(oldVersion < 6) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `project_fallback` (" +
+                    "  `id` INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," +
+                    "  `slug` TEXT NOT NULL," +
+                    "  `language_rank` INTEGER NOT NULL," +
+                    "  `project_id` INTEGER NOT NULL," +
+                    "  UNIQUE (`slug`)," +
+                    "  FOREIGN KEY (project_id) REFERENCES `project` (`id`) ON DELETE CASCADE" +
+                    ")");
+            db.execSQL("CREATE TABLE IF NOT EXISTS `fallback_language` (" +
+                    "  `id` INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," +
+                    "  `slug` TEXT NOT NULL," +
+                    "  UNIQUE (`slug`)" +
+                    ")");
+
+            // choose the fallbacks of the existing projects using the default language
+            db.execSQL("insert or ignore into project_fallback (slug, language_rank, project_id)" +
+                    " select p.slug, case sl.slug when 'en' then 0 else 1 end as language_rank, p.id from project as p" +
+                    " join source_language as sl on sl.id=p.source_language_id" +
+                    " order by language_rank asc, p.id asc");
+        }
+        if(oldVersion < 7) {
+            // the translations are found by slugs that ignore case
+            db.execSQL("CREATE INDEX IF NOT EXISTS `source_language_slug_nocase` ON `source_language`(`slug` COLLATE NOCASE)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `project_slug_nocase` ON `project`(`slug` COLLATE NOCASE)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `resource_slug_nocase` ON `resource`(`slug` COLLATE NOCASE)");
+        }
+    }
+
+    /**
+     * Folds the case of the text in the full-text search index.
+     * TRICKY: this is done in java since lower() in sqlite only folds ascii characters
+     * @param db
+     */
+    private static void foldSearchText(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("select docid, name, description from search_text", null);
+        SQLiteStatement update = db.compileStatement("update search_text set name=?, description=? where docid=?");
+        try {
+            while(cursor.moveToNext()) {
+                String name = cursor.getString(1);
+                String description = cursor.getString(2);
+                String foldedName = Library.foldCase(name);
+                String foldedDescription = Library.foldCase(description);
+                if(TextUtils.equals(name, foldedName) && TextUtils.equals(description, foldedDescription)) continue;
+
+                update.clearBindings();
+                if(foldedName != null) update.bindString(1, foldedName);
+                if(foldedDescription != null) update.bindString(2, foldedDescription);
+                update.bindLong(3, cursor.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            cursor.close();
+            update.close();
+        }
     }
 
     @Override
@@ -75,6 +215,8 @@ class SQLiteHelper extends SQLiteOpenHelper {
             db.setForeignKeyConstraintsEnabled(true);
         } else {
             db.execSQL("PRAGMA foreign_keys=ON;");
+            // TRICKY: onConfigure is not called before API 16
+            enableWriteAheadLogging(db);
         }
     }
 }
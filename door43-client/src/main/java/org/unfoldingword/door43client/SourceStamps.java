@@ -0,0 +1,54 @@
+package org.unfoldingword.door43client;
+
+import org.unfoldingword.door43client.models.SourceLanguage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A snapshot of when the indexed projects were last modified in each source language.
+ * This is used to skip unchanged parts of the legacy catalogs during an incremental update.
+ *
+ * TRICKY: the stamps are only compared per source language. The stamp of a whole project cannot tell
+ * if a language was added to it later or if a previous update stopped part way through the project.
+ *
+ * The snapshot is read on the thread that owns the update transaction
+ * so it can be safely consulted by the fetch workers.
+ *
+ * TRICKY: the legacy date_modified stamps only have a resolution of one day.
+ * Changes published later on the same day as the indexed content will only be picked up by a full update.
+ */
+class SourceStamps {
+    private final Map<String, Map<String, Integer>> languages;
+
+    private SourceStamps(Map<String, Map<String, Integer>> languages) {
+        this.languages = languages;
+    }
+
+    /**
+     * Reads the modification stamps from the library
+     * @param library
+     * @return
+     */
+    public static SourceStamps load(Library library) {
+        Map<String, Map<String, Integer>> languages = new HashMap<>();
+        for(SourceLanguage l:library.getSourceLanguages()) {
+            languages.put(l.slug, library.listProjectsLastModified(l.slug));
+        }
+        return new SourceStamps(languages);
+    }
+
+    /**
+     * Checks if the indexed project language is at least as recent as the catalog
+     * @param languageSlug
+     * @param projectSlug
+     * @param dateModified the date_modified from the catalog
+     * @return
+     */
+    public boolean isLanguageCurrent(String languageSlug, String projectSlug, int dateModified) {
+        Map<String, Integer> languageProjects = languages.get(languageSlug);
+        if(languageProjects == null) return false;
+        Integer indexed = languageProjects.get(projectSlug);
+        return indexed != null && dateModified > 0 && dateModified <= indexed;
+    }
+}
@@ -0,0 +1,144 @@
+package org.unfoldingword.door43client;
+
+import org.unfoldingword.door43client.models.TargetLanguage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory search index over the slug, name and anglicized name of the target languages.
+ * This is an immutable snapshot. When the languages change a new index should be built.
+ *
+ * Queries of three or more characters are narrowed down with a trigram index before being matched,
+ * shorter queries are matched against every language.
+ *
+ * Results are ranked by slug prefix, then by name prefix, then by slug.
+ */
+class TargetLanguageSearchIndex {
+    private static final int GRAM = 3;
+
+    private final TargetLanguage[] languages;
+    private final String[] slugs;
+    private final String[] names;
+    private final String[] anglicizedNames;
+    private final Map<String, int[]> grams;
+
+    /**
+     * Builds a new index
+     * @param targetLanguages the languages to index
+     */
+    public TargetLanguageSearchIndex(List<TargetLanguage> targetLanguages) {
+        this.languages = targetLanguages.toArray(new TargetLanguage[targetLanguages.size()]);
+        // TRICKY: ordering the entries by slug lets us rank results without sorting them
+        Arrays.sort(this.languages, new Comparator<TargetLanguage>() {
+            @Override
+            public int compare(TargetLanguage lhs, TargetLanguage rhs) {
+                return lhs.slug.compareToIgnoreCase(rhs.slug);
+            }
+        });
+
+        this.slugs = new String[languages.length];
+        this.names = new String[languages.length];
+        this.anglicizedNames = new String[languages.length];
+        Map<String, List<Integer>> postings = new HashMap<>();
+        for(int i = 0; i < languages.length; i ++) {
+            slugs[i] = normalize(languages[i].slug);
+            names[i] = normalize(languages[i].name);
+            anglicizedNames[i] = normalize(languages[i].anglicizedName);
+
+            Set<String> entryGrams = new HashSet<>();
+            addGrams(slugs[i], entryGrams);
+            addGrams(names[i], entryGrams);
+            addGrams(anglicizedNames[i], entryGrams);
+            for(String gram:entryGrams) {
+                List<Integer> ids = postings.get(gram);
+                if(ids == null) {
+                    ids = new ArrayList<>();
+                    postings.put(gram, ids);
+                }
+                ids.add(i);
+            }
+        }
+
+        this.grams = new HashMap<>(postings.size() * 2);
+        for(Map.Entry<String, List<Integer>> entry:postings.entrySet()) {
+            List<Integer> ids = entry.getValue();
+            int[] array = new int[ids.size()];
+            for(int i = 0; i < array.length; i ++) {
+                array[i] = ids.get(i);
+            }
+            grams.put(entry.getKey(), array);
+        }
+    }
+
+    /**
+     * Returns the number of indexed languages
+     * @return
+     */
+    public int size() {
+        return languages.length;
+    }
+
+    /**
+     * Finds the languages who's slug, name, or anglicized name contains the query
+     * @param query the text to search for
+     * @return the ranked results
+     */
+    public List<TargetLanguage> find(String query) {
+        String q = normalize(query);
+
+        int[] candidates = null;
+        if(q.length() >= GRAM) {
+            // the shortest posting list of the query grams contains every possible match
+            for(int i = 0; i + GRAM <= q.length(); i ++) {
+                int[] ids = grams.get(q.substring(i, i + GRAM));
+                if(ids == null) return Collections.emptyList();
+                if(candidates == null || ids.length < candidates.length) candidates = ids;
+            }
+        }
+        int numCandidates = candidates == null ? languages.length : candidates.length;
+
+        // buckets by rank: slug and name prefix, slug prefix, name prefix, substring
+        List<List<TargetLanguage>> ranks = new ArrayList<>(4);
+        for(int i = 0; i < 4; i ++) {
+            ranks.add(new ArrayList<TargetLanguage>());
+        }
+        int numResults = 0;
+        for(int c = 0; c < numCandidates; c ++) {
+            int i = candidates == null ? c : candidates[c];
+            boolean slugPrefix = slugs[i].startsWith(q);
+            boolean namePrefix = names[i].startsWith(q);
+            if(slugPrefix || namePrefix
+                    || slugs[i].contains(q)
+                    || names[i].contains(q)
+                    || anglicizedNames[i].contains(q)) {
+                int rank = (slugPrefix ? 0 : 2) + (namePrefix ? 0 : 1);
+                ranks.get(rank).add(languages[i]);
+                numResults ++;
+            }
+        }
+
+        List<TargetLanguage> results = new ArrayList<>(numResults);
+        for(List<TargetLanguage> rank:ranks) {
+            results.addAll(rank);
+        }
+        return results;
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.toLowerCase();
+    }
+
+    private static void addGrams(String value, Set<String> grams) {
+        for(int i = 0; i + GRAM <= value.length(); i ++) {
+            grams.add(value.substring(i, i + GRAM));
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.unfoldingword.door43client;
+
+/**
+ * How the files of a resource container are transferred when it is imported or exported
+ */
+public enum TransferMode {
+    /**
+     * The files are copied. The source is left untouched.
+     */
+    COPY,
+
+    /**
+     * The files are hard linked so no content is copied.
+     * The source and destination share their content so the source must not be modified afterwards.
+     * Files are copied instead when links are not supported e.g. across file systems or before Lollipop.
+     */
+    LINK,
+
+    /**
+     * The files are moved. This is an atomic rename when the source is on the same file system
+     * otherwise the files are copied and the source is deleted.
+     */
+    MOVE
+}
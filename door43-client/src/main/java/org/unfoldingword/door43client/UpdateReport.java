@@ -0,0 +1,55 @@
+package org.unfoldingword.door43client;
+
+/**
+ * Summarizes the changes made to the index by a source update.
+ *
+ * Entries are counted at the level where the update stopped looking.
+ * e.g. an unchanged project counts as a single skipped entry
+ * while a changed project contributes one entry for each of it's resources.
+ */
+public class UpdateReport {
+    private int skipped = 0;
+    private int updated = 0;
+    private int inserted = 0;
+
+    /**
+     * Returns the number of catalog entries that were left untouched because they have not changed
+     * @return
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Returns the number of resources that already existed and were indexed again
+     * @return
+     */
+    public int getUpdated() {
+        return updated;
+    }
+
+    /**
+     * Returns the number of resources that were newly added to the index
+     * @return
+     */
+    public int getInserted() {
+        return inserted;
+    }
+
+    void skip() {
+        skipped ++;
+    }
+
+    void update() {
+        updated ++;
+    }
+
+    void insert() {
+        inserted ++;
+    }
+
+    @Override
+    public String toString() {
+        return "skipped: " + skipped + ", updated: " + updated + ", inserted: " + inserted;
+    }
+}
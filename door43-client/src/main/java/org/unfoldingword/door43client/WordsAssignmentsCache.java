@@ -0,0 +1,250 @@
+package org.unfoldingword.door43client;
+
+import android.util.JsonReader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the legacy tW assignments in the background and keeps the parsed assignments on the disk.
+ *
+ * The assignments are cached by their url and the modification date of the resource
+ * so converting the same resource again does not download or parse the assignments again.
+ * Concurrent requests for the same assignments share a single download.
+ */
+class WordsAssignmentsCache {
+    private static final int WORKERS = 2;
+
+    private final File dir;
+    private final ExecutorService executor;
+    private final Map<String, Future<JSONObject>> pending = new HashMap<>();
+
+    /**
+     *
+     * @param dir the directory where the assignments are cached
+     */
+    public WordsAssignmentsCache(File dir) {
+        this.dir = dir;
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "door43-tw-fetch-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Returns the assignments from the cache or begins downloading them
+     * @param url the legacy assignments catalog
+     * @param projectSlug the project the words are assigned to
+     * @param modifiedAt when the resource was last modified
+     * @return the assignments
+     */
+    public synchronized Future<JSONObject> get(final String url, final String projectSlug, final int modifiedAt) {
+        final String key;
+        try {
+            key = makeKey(url, projectSlug);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        final String pendingKey = key + "_" + modifiedAt;
+        Future<JSONObject> future = pending.get(pendingKey);
+        if(future != null) return future;
+
+        future = executor.submit(new Callable<JSONObject>() {
+            @Override
+            public JSONObject call() throws Exception {
+                try {
+                    return load(key, url, projectSlug, modifiedAt);
+                } finally {
+                    synchronized (WordsAssignmentsCache.this) {
+                        pending.remove(pendingKey);
+                    }
+                }
+            }
+        });
+        pending.put(pendingKey, future);
+        return future;
+    }
+
+    /**
+     * Stops the background downloads
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Reads the assignments from the disk or downloads them
+     * @param key
+     * @param url
+     * @param projectSlug
+     * @param modifiedAt
+     * @return
+     * @throws Exception
+     */
+    private JSONObject load(String key, String url, String projectSlug, int modifiedAt) throws Exception {
+        File cacheFile = new File(dir, key + "_" + modifiedAt + ".json");
+        if(cacheFile.exists()) {
+            try {
+                return new JSONObject(FileUtil.readFileToString(cacheFile, "UTF-8"));
+            } catch (JSONException e) {
+                FileUtil.deleteQuietly(cacheFile);
+            }
+        }
+
+        JSONObject assignments;
+        HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+        conn.setConnectTimeout(CatalogFetcher.CONNECT_TIMEOUT);
+        conn.setReadTimeout(CatalogFetcher.READ_TIMEOUT);
+        try {
+            if(conn.getResponseCode() >= 300) throw new Exception(conn.getResponseMessage());
+            Reader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+            try {
+                assignments = readAssignments(reader, projectSlug);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            conn.disconnect();
+        }
+
+        // replace older versions of the assignments
+        FileUtil.forceMkdir(dir);
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f:files) {
+                if(f.getName().startsWith(key + "_")) FileUtil.deleteQuietly(f);
+            }
+        }
+        File tempFile = new File(dir, cacheFile.getName() + ".tmp");
+        FileUtil.writeStringToFile(tempFile, assignments.toString());
+        if(!tempFile.renameTo(cacheFile)) FileUtil.deleteQuietly(tempFile);
+        return assignments;
+    }
+
+    /**
+     * Reads the legacy tW assignments catalog one frame at a time.
+     * The assignments are keyed by the normalized chapter and frame slugs
+     * and the words are given as links e.g. //bible/tw/god.
+     *
+     * @param reader the legacy assignments catalog
+     * @param projectSlug the project the words are assigned to
+     * @return the assignments
+     * @throws Exception
+     */
+    static JSONObject readAssignments(Reader reader, String projectSlug) throws Exception {
+        String twProjSlug = projectSlug.equals("obs") ? "bible-obs" : "bible";
+        JSONObject assignments = new JSONObject();
+        JsonReader json = new JsonReader(reader);
+        json.setLenient(true);
+        json.beginObject();
+        while(json.hasNext()) {
+            if(!json.nextName().equals("chapters")) {
+                json.skipValue();
+                continue;
+            }
+            json.beginArray();
+            while(json.hasNext()) {
+                // TRICKY: the id may come after the frames
+                String chapterId = null;
+                JSONObject chapterAssignment = new JSONObject();
+                json.beginObject();
+                while(json.hasNext()) {
+                    String name = json.nextName();
+                    if(name.equals("id")) {
+                        chapterId = json.nextString();
+                    } else if(name.equals("frames")) {
+                        json.beginArray();
+                        while(json.hasNext()) {
+                            readFrameAssignment(json, "//" + twProjSlug + "/tw/", chapterAssignment);
+                        }
+                        json.endArray();
+                    } else {
+                        json.skipValue();
+                    }
+                }
+                json.endObject();
+                if(chapterId == null) throw new JSONException("Missing chapter id");
+                assignments.put(LegacyTools.normalizeSlug(chapterId), chapterAssignment);
+            }
+            json.endArray();
+        }
+        json.endObject();
+        return assignments;
+    }
+
+    /**
+     * Reads the words assigned to a single frame
+     * @param json
+     * @param linkPrefix the prefix of the word links
+     * @param chapterAssignment receives the frame assignment
+     * @throws Exception
+     */
+    private static void readFrameAssignment(JsonReader json, String linkPrefix, JSONObject chapterAssignment) throws Exception {
+        String frameId = null;
+        JSONArray frameAssignment = new JSONArray();
+        json.beginObject();
+        while(json.hasNext()) {
+            String name = json.nextName();
+            if(name.equals("id")) {
+                frameId = json.nextString();
+            } else if(name.equals("items")) {
+                json.beginArray();
+                while(json.hasNext()) {
+                    String wordId = null;
+                    json.beginObject();
+                    while(json.hasNext()) {
+                        if(json.nextName().equals("id")) {
+                            wordId = json.nextString();
+                        } else {
+                            json.skipValue();
+                        }
+                    }
+                    json.endObject();
+                    if(wordId == null) throw new JSONException("Missing word id");
+                    frameAssignment.put(linkPrefix + wordId);
+                }
+                json.endArray();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        if(frameId == null) throw new JSONException("Missing frame id");
+        chapterAssignment.put(LegacyTools.normalizeSlug(frameId), frameAssignment);
+    }
+
+    /**
+     * Generates a file safe key for the assignments
+     * @param url
+     * @param projectSlug
+     * @return
+     * @throws Exception
+     */
+    private static String makeKey(String url, String projectSlug) throws Exception {
+        MessageDigest digest = HttpValidator.newDigest();
+        digest.update((projectSlug + " " + url).getBytes("UTF-8"));
+        return HttpValidator.toHex(digest.digest());
+    }
+}
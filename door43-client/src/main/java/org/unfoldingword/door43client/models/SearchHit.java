@@ -0,0 +1,35 @@
+package org.unfoldingword.door43client.models;
+
+/**
+ * Represents a single result from a full-text search of the index
+ */
+public class SearchHit {
+
+    public final Type type;
+    public final String slug;
+    public final String name;
+    public final String sourceLanguageSlug;
+    public final String projectSlug;
+
+    /**
+     *
+     * @param type the type of item that was found e.g. a project or resource
+     * @param slug the slug of the project/resource/category
+     * @param name the human readable name of the project/resource/category
+     * @param sourceLanguageSlug the slug of the source language in which the name is given
+     * @param projectSlug the slug of the project the resource belongs to (only used when the type is resource)
+     */
+    public SearchHit(Type type, String slug, String name, String sourceLanguageSlug, String projectSlug) {
+        this.type = type;
+        this.slug = slug;
+        this.name = name;
+        this.sourceLanguageSlug = sourceLanguageSlug;
+        this.projectSlug = projectSlug;
+    }
+
+    public enum Type {
+        PROJECT,
+        RESOURCE,
+        CATEGORY
+    }
+}
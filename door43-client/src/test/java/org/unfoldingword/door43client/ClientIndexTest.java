@@ -4,6 +4,8 @@ import android.app.Application;
 
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -20,15 +22,22 @@ import org.unfoldingword.tools.http.GetRequest;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(RobolectricTestRunner.class)
 public class ClientIndexTest {
@@ -57,6 +66,7 @@ public class ClientIndexTest {
         }
 
         client = new API(context, sb.toString(), resourceDir.getRoot(), resourceDir.getRoot());
+        client.setLegacyServer("http://localhost:" + wireMockRule.port());
     }
 
     @After
@@ -167,6 +177,21 @@ public class ClientIndexTest {
                         .withStatus(200)
                         .withHeader("Content-Type", "application/json")
                         .withBody(genEnUlbAssignments)));
+        String genChunks = Util.loadResource(this.getClass().getClassLoader(), "genesis/chunks.json");
+        stubFor(get(urlEqualTo("/bible/txt/1/gen/chunks.json"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(genChunks)));
+        String[] taVolumes = {"audio_2", "checking_1", "checking_2", "gateway_3", "intro_1", "process_1", "translate_1", "translate_2"};
+        for(String volume:taVolumes) {
+            String ta = Util.loadResource(this.getClass().getClassLoader(), "ta/" + volume + ".json");
+            stubFor(get(urlEqualTo("/ta/txt/1/en/" + volume + ".json"))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Type", "application/json")
+                            .withBody(ta)));
+        }
     }
 
     @Test
@@ -198,6 +223,204 @@ public class ClientIndexTest {
         verify(getRequestedFor(urlMatching("/catalog")));
     }
 
+    @Test
+    public void updatePrimaryIndexWithSingleWorker() throws Exception {
+        stubAPI();
+        client.setUpdateConcurrency(1);
+        client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", null);
+
+        assertEquals(3, client.index().getSourceLanguages().size());
+        assertEquals(10, client.index().getProjects("en").size());
+        assertEquals(4, client.index().getResources("en", "gen").size());
+        assertEquals(3, client.index().getResources("en", "obs").size());
+    }
+
+    @Test
+    public void recordMetrics() throws Exception {
+        stubAPI();
+        MetricsRecorder metrics = new MetricsRecorder();
+        client.setMetrics(metrics);
+        client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", null);
+        assertEquals(4, client.index().getResources("en", "gen").size());
+
+        assertEquals(1, metrics.getOperations().get("API.updateSources").getCount());
+        MetricsRecorder.Histogram getResources = metrics.getOperations().get("Index.getResources");
+        assertEquals(1, getResources.getCount());
+        assertTrue(getResources.getPercentile(50) <= getResources.getMax());
+        assertTrue(metrics.getQueries() > 0);
+        assertTrue(metrics.getStatements() > metrics.getQueries());
+        assertTrue(metrics.getRowsRead() >= 4);
+        assertTrue(metrics.getRowsWritten() > 0);
+        assertTrue(metrics.getTransactions().getCount() > 0);
+        MetricsRecorder.HttpStats catalog = metrics.getHttpRequests().get("http://localhost:" + wireMockRule.port() + "/catalog");
+        assertEquals(1, catalog.getRequests());
+        assertTrue(catalog.getBytes() > 0);
+
+        // stop recording
+        client.setMetrics(null);
+        client.index().getResources("en", "gen");
+        assertEquals(1, metrics.getOperations().get("Index.getResources").getCount());
+    }
+
+    @Test
+    public void reportProgressEvents() throws Exception {
+        stubAPI();
+        final List<ProgressEvent> events = new ArrayList<>();
+        client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", new ProgressEventListener(0) {
+            @Override
+            public boolean onProgress(ProgressEvent event) {
+                events.add(event);
+                return true;
+            }
+        });
+
+        assertEquals("catalog", events.get(0).tag);
+        assertEquals(ProgressEvent.Phase.FETCH, events.get(0).phase);
+        assertTrue(events.get(0).bytes > 0);
+        ProgressEvent last = events.get(events.size() - 1);
+        assertEquals("ta", last.tag);
+        assertEquals(ProgressEvent.Phase.INDEX, last.phase);
+        assertEquals(last.max, last.complete);
+        assertTrue(last.rowsWritten > 0);
+        assertTrue(last.bytes > events.get(0).bytes);
+    }
+
+    @Test
+    public void throttleCatalogProgress() throws Exception {
+        stubAPI();
+        client.setGlobalCatalogServer("http://localhost:" + wireMockRule.port());
+        final List<Long> updates = new ArrayList<>();
+        final List<Long> totals = new ArrayList<>();
+        client.updateCatalogs(new OnProgressListener() {
+            @Override
+            public boolean onProgress(String tag, long max, long complete) {
+                if(tag.equals("langnames")) {
+                    updates.add(complete);
+                    totals.add(max);
+                    assertTrue(complete <= max);
+                }
+                return true;
+            }
+        });
+        assertTrue(updates.size() < 7644);
+        assertEquals(7644L, (long)updates.get(updates.size() - 1));
+        assertEquals(7644L, (long)totals.get(totals.size() - 1));
+    }
+
+    @Test
+    public void reportCatalogBytes() throws Exception {
+        stubAPI();
+        client.setGlobalCatalogServer("http://localhost:" + wireMockRule.port());
+        final long length = Util.loadResource(this.getClass().getClassLoader(), "langnames.json").getBytes("UTF-8").length;
+        final List<ProgressEvent> events = new ArrayList<>();
+        client.updateCatalogs(new ProgressEventListener(0) {
+            @Override
+            public boolean onProgress(ProgressEvent event) {
+                if(event.tag.equals("langnames") && event.phase == ProgressEvent.Phase.PARSE) events.add(event);
+                return true;
+            }
+        });
+        // the catalog is parsed as it is indexed
+        assertTrue(events.size() > 1);
+        ProgressEvent last = events.get(events.size() - 1);
+        assertEquals(length, last.max);
+        assertEquals(length, last.complete);
+    }
+
+    @Test
+    public void skipUnchangedCatalogs() throws Exception {
+        stubAPI();
+        client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", null);
+        client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", null);
+
+        // the primary catalog did not change so nothing below it is downloaded again
+        verify(2, getRequestedFor(urlEqualTo("/catalog")));
+        verify(1, getRequestedFor(urlEqualTo("/ts/txt/2/gen/languages.json")));
+        verify(1, getRequestedFor(urlEqualTo("/ts/txt/2/gen/en/resources.json")));
+        assertEquals(4, client.index().getResources("en", "gen").size());
+    }
+
+    @Test
+    public void incrementallyUpdateSources() throws Exception {
+        stubAPI();
+        UpdateReport first = client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", true, null);
+        assertTrue(first.getInserted() > 0);
+        assertEquals(0, first.getSkipped());
+
+        // change the primary catalog without changing any of the stamps
+        String catalog = Util.loadResource(this.getClass().getClassLoader(), "catalog.json");
+        stubFor(get(urlEqualTo("/catalog"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(catalog + "\n")));
+        UpdateReport second = client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", true, null);
+
+        // the language catalogs are requested again but have not changed
+        assertEquals(2, second.getSkipped());
+        assertEquals(0, second.getInserted());
+        assertEquals(0, second.getUpdated());
+        verify(2, getRequestedFor(urlEqualTo("/ts/txt/2/gen/languages.json")));
+        verify(1, getRequestedFor(urlEqualTo("/ts/txt/2/gen/en/resources.json")));
+        assertEquals(4, client.index().getResources("en", "gen").size());
+    }
+
+    @Test
+    public void incrementallyUpdatePartlyIndexedProject() throws Exception {
+        stubAPI();
+        // the first update only sees the english genesis
+        JSONArray genLanguages = new JSONArray(Util.loadResource(this.getClass().getClassLoader(), "genesis/languages.json"));
+        stubFor(get(urlEqualTo("/ts/txt/2/gen/languages.json"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(new JSONArray().put(genLanguages.getJSONObject(1)).toString())));
+        client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", true, null);
+        assertEquals(0, client.index().getResources("ru", "gen").size());
+
+        // russian is added without changing the date_modified of the project
+        stubFor(get(urlEqualTo("/ts/txt/2/gen/languages.json"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(genLanguages.toString())));
+        String catalog = Util.loadResource(this.getClass().getClassLoader(), "catalog.json");
+        stubFor(get(urlEqualTo("/catalog"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(catalog + "\n")));
+        client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", true, null);
+
+        assertTrue(client.index().getResources("ru", "gen").size() > 0);
+        assertEquals(4, client.index().getResources("en", "gen").size());
+        verify(1, getRequestedFor(urlEqualTo("/ts/txt/2/gen/ru/resources.json")));
+        verify(1, getRequestedFor(urlEqualTo("/ts/txt/2/gen/en/resources.json")));
+    }
+
+    @Test
+    public void conditionallyUpdateCatalog() throws Exception {
+        stubAPI();
+        stubFor(get(urlEqualTo("/exports/langnames.json"))
+                .withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse()
+                        .withStatus(304)));
+        stubFor(get(urlEqualTo("/exports/langnames.json"))
+                .withHeader("If-None-Match", absent())
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("ETag", "\"v1\"")
+                        .withBody(Util.loadResource(this.getClass().getClassLoader(), "langnames.json"))));
+        client.setGlobalCatalogServer("http://localhost:" + wireMockRule.port());
+
+        client.updateCatalog("langnames");
+        client.updateCatalog("langnames");
+
+        verify(1, getRequestedFor(urlEqualTo("/exports/langnames.json")).withHeader("If-None-Match", equalTo("\"v1\"")));
+        assertNotNull(client.index().getTargetLanguage("kff-x-dmorla"));
+        assertTrue(client.index().getCatalog("langnames").modifiedAt > 0);
+    }
+
     @Test
     public void downloadContainer() throws Exception {
         stubAPI();
@@ -208,6 +431,23 @@ public class ClientIndexTest {
         assertTrue(path.exists());
     }
 
+    @Test
+    public void replaceOpenContainerWithDownload() throws Exception {
+        stubAPI();
+        client.setGlobalCatalogServer("http://localhost:" + wireMockRule.port());
+        client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", null);
+        File containerDir = new File(resourceDir.getRoot(), ContainerTools.makeSlug("en", "gen", "ulb"));
+        containerDir.mkdirs();
+        FileUtil.writeStringToFile(new File(containerDir, "package.json"), "{}");
+
+        File path = client.downloadFutureCompatibleResourceContainer("en", "gen", "ulb");
+
+        // the stale open container must not be preferred over the new archive
+        assertTrue(path.exists());
+        assertTrue(!containerDir.exists());
+        assertEquals(0, new File(resourceDir.getRoot(), ContainerStaging.DIR_NAME).list().length);
+    }
+
     @Test
     public void failToDownloadContainer() throws Exception {
         stubAPI();
@@ -224,6 +464,284 @@ public class ClientIndexTest {
         }
     }
 
+    /**
+     * Leaves a partial container download behind as if the connection dropped half way through
+     * @param etag the validator of the interrupted response
+     * @return the complete content of the container
+     */
+    private byte[] interruptContainerDownload(String etag) throws Exception {
+        byte[] content = Util.loadResource(this.getClass().getClassLoader(), "genesis/en/ulb/source.json").getBytes("UTF-8");
+        File destFile = new File(resourceDir.getRoot(), ContainerTools.makeSlug("en", "gen", "ulb") + "." + ResourceContainer.fileExtension);
+        FileOutputStream out = new FileOutputStream(new File(destFile.getPath() + ResumableDownload.PART_EXTENSION));
+        out.write(content, 0, content.length / 2);
+        out.close();
+        FileUtil.writeStringToFile(new File(destFile.getPath() + ResumableDownload.META_EXTENSION), new JSONObject()
+                .put("url", "http://localhost:8090/ts/txt/2/gen/en/ulb/source.json")
+                .put("etag", etag)
+                .put("length", content.length).toString());
+        return content;
+    }
+
+    @Test
+    public void resumeContainerDownload() throws Exception {
+        stubAPI();
+        client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", null);
+        byte[] content = interruptContainerDownload("\"v1\"");
+        int offset = content.length / 2;
+        stubFor(get(urlEqualTo("/ts/txt/2/gen/en/ulb/source.json"))
+                .withHeader("Range", equalTo("bytes=" + offset + "-"))
+                .withHeader("If-Range", equalTo("\"v1\""))
+                .willReturn(aResponse()
+                        .withStatus(206)
+                        .withHeader("ETag", "\"v1\"")
+                        .withHeader("Content-Range", "bytes " + offset + "-" + (content.length - 1) + "/" + content.length)
+                        .withBody(Arrays.copyOfRange(content, offset, content.length))));
+
+        File path = client.downloadFutureCompatibleResourceContainer("en", "gen", "ulb");
+
+        verify(1, getRequestedFor(urlEqualTo("/ts/txt/2/gen/en/ulb/source.json")).withHeader("Range", equalTo("bytes=" + offset + "-")));
+        assertEquals(new String(content, "UTF-8"), FileUtil.readFileToString(path));
+        assertTrue(!new File(path.getPath() + ResumableDownload.PART_EXTENSION).exists());
+        assertTrue(!new File(path.getPath() + ResumableDownload.META_EXTENSION).exists());
+    }
+
+    @Test
+    public void resumeStalledContainerDownload() throws Exception {
+        byte[] content = interruptContainerDownload("\"v1\"");
+        int offset = content.length / 2;
+        File destFile = new File(resourceDir.getRoot(), ContainerTools.makeSlug("en", "gen", "ulb") + "." + ResourceContainer.fileExtension);
+        String url = "http://localhost:" + wireMockRule.port() + "/ts/txt/2/gen/en/ulb/source.json";
+        stubFor(get(urlEqualTo("/ts/txt/2/gen/en/ulb/source.json"))
+                .willReturn(aResponse()
+                        .withStatus(206)
+                        .withFixedDelay(5000)
+                        .withHeader("ETag", "\"v1\"")
+                        .withHeader("Content-Range", "bytes " + offset + "-" + (content.length - 1) + "/" + content.length)
+                        .withBody(Arrays.copyOfRange(content, offset, content.length))));
+        ResumableDownload download = new ResumableDownload(url, destFile);
+        download.setReadTimeout(500);
+
+        try {
+            download.run();
+            fail();
+        } catch (SocketTimeoutException e) {
+            assertNotNull(e);
+        }
+        assertEquals(offset, download.getPartFile().length());
+
+        stubFor(get(urlEqualTo("/ts/txt/2/gen/en/ulb/source.json"))
+                .willReturn(aResponse()
+                        .withStatus(206)
+                        .withHeader("ETag", "\"v1\"")
+                        .withHeader("Content-Range", "bytes " + offset + "-" + (content.length - 1) + "/" + content.length)
+                        .withBody(Arrays.copyOfRange(content, offset, content.length))));
+        File path = download.run();
+
+        verify(2, getRequestedFor(urlEqualTo("/ts/txt/2/gen/en/ulb/source.json")).withHeader("Range", equalTo("bytes=" + offset + "-")));
+        assertEquals(new String(content, "UTF-8"), FileUtil.readFileToString(path));
+    }
+
+    @Test
+    public void restartChangedContainerDownload() throws Exception {
+        stubAPI();
+        client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", null);
+        // the server ignores the range because the container changed since the partial download
+        byte[] content = interruptContainerDownload("\"v0\"");
+
+        File path = client.downloadFutureCompatibleResourceContainer("en", "gen", "ulb");
+
+        verify(1, getRequestedFor(urlEqualTo("/ts/txt/2/gen/en/ulb/source.json")).withHeader("If-Range", equalTo("\"v0\"")));
+        assertEquals(new String(content, "UTF-8"), FileUtil.readFileToString(path));
+    }
+
+    @Test
+    public void discardCorruptContainerDownload() throws Exception {
+        stubAPI();
+        client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", null);
+        stubFor(get(urlEqualTo("/ts/txt/2/gen/en/ulb/source.json"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("ETag", "\"v1\"")
+                        .withHeader("Content-MD5", "1B2M2Y8AsgTpgAmY7PhCfg==")
+                        .withBody("not the container")));
+        File destFile = new File(resourceDir.getRoot(), ContainerTools.makeSlug("en", "gen", "ulb") + "." + ResourceContainer.fileExtension);
+
+        try {
+            client.downloadFutureCompatibleResourceContainer("en", "gen", "ulb");
+            fail();
+        } catch (Exception e) {
+            assertNotNull(e);
+        }
+        assertTrue(!destFile.exists());
+        assertTrue(!new File(destFile.getPath() + ResumableDownload.PART_EXTENSION).exists());
+    }
+
+    @Test
+    public void cacheWordsAssignments() throws Exception {
+        stubAPI();
+        client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", null);
+        File cacheDir = new File(context.getCacheDir(), "tw_assignments");
+        FileUtil.deleteQuietly(cacheDir);
+
+        client.downloadResourceContainer("en", "gen", "ulb");
+        client.downloadResourceContainer("en", "gen", "ulb");
+
+        verify(2, getRequestedFor(urlEqualTo("/ts/txt/2/gen/en/ulb/source.json")));
+        verify(1, getRequestedFor(urlEqualTo("/ts/txt/2/gen/en/tw_cat.json")));
+        assertEquals(1, cacheDir.list().length);
+    }
+
+    @Test
+    public void downloadQueuedContainers() throws Exception {
+        stubAPI();
+        client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", null);
+        File queueFile = new File(resourceDir.getRoot(), "downloads.json");
+        DownloadManager manager = new DownloadManager(client, queueFile);
+        final List<String> downloaded = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+        final int[] progress = new int[3];
+        manager.setListener(new OnDownloadListener() {
+            @Override
+            public void onDownloaded(String containerSlug, ResourceContainer container) {
+                downloaded.add(containerSlug);
+            }
+
+            @Override
+            public void onDownloadFailed(String containerSlug, Exception e) {
+                failed.add(containerSlug);
+            }
+
+            @Override
+            public synchronized void onProgress(int total, int completed, int failed) {
+                progress[0] = total;
+                progress[1] = Math.max(progress[1], completed);
+                progress[2] = Math.max(progress[2], failed);
+            }
+        });
+
+        assertTrue(manager.enqueue("en", "gen", "ulb", 0));
+        assertTrue(manager.enqueue("en", "gen", "udb", 1));
+        assertTrue(!manager.enqueue("en", "gen", "ulb", 5));
+        assertEquals(ContainerTools.makeSlug("en", "gen", "ulb"), manager.getQueue().get(0));
+        manager.start();
+        assertTrue(manager.awaitIdle(10000));
+        manager.stop();
+
+        assertEquals(1, downloaded.size());
+        assertEquals(ContainerTools.makeSlug("en", "gen", "udb"), failed.get(0));
+        assertEquals(2, progress[0]);
+        assertEquals(1, progress[1]);
+        assertEquals(1, progress[2]);
+        verify(1, getRequestedFor(urlEqualTo("/ts/txt/2/gen/en/ulb/source.json")));
+        assertEquals(0, manager.getQueue().size());
+        assertEquals(ContainerTools.makeSlug("en", "gen", "udb"), manager.getFailed().get(0));
+        JSONArray savedQueue = new JSONArray(FileUtil.readFileToString(queueFile));
+        assertEquals(1, savedQueue.length());
+        assertTrue(savedQueue.getJSONObject(0).getBoolean("failed"));
+    }
+
+    @Test
+    public void retryFailedDownloads() throws Exception {
+        stubAPI();
+        client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", null);
+        File queueFile = new File(resourceDir.getRoot(), "downloads.json");
+        DownloadManager manager = new DownloadManager(client, queueFile);
+        manager.enqueue("en", "gen", "udb", 0);
+        manager.start();
+        assertTrue(manager.awaitIdle(10000));
+        manager.stop();
+
+        DownloadManager restored = new DownloadManager(client, queueFile);
+        assertEquals(0, restored.getQueue().size());
+        assertEquals(ContainerTools.makeSlug("en", "gen", "udb"), restored.getFailed().get(0));
+        assertTrue(restored.isIdle());
+
+        assertTrue(restored.enqueue("en", "gen", "udb", 0));
+        assertEquals(ContainerTools.makeSlug("en", "gen", "udb"), restored.getQueue().get(0));
+        assertEquals(0, restored.getFailed().size());
+        assertTrue(restored.remove(ContainerTools.makeSlug("en", "gen", "udb")));
+        assertEquals(0, new JSONArray(FileUtil.readFileToString(queueFile)).length());
+    }
+
+    @Test
+    public void surviveDownloadListenerErrors() throws Exception {
+        stubAPI();
+        client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", null);
+        DownloadManager manager = new DownloadManager(client, new File(resourceDir.getRoot(), "downloads.json"));
+        manager.setWorkers(1);
+        final List<String> downloaded = Collections.synchronizedList(new ArrayList<String>());
+        manager.setListener(new OnDownloadListener() {
+            @Override
+            public void onDownloaded(String containerSlug, ResourceContainer container) {
+                downloaded.add(containerSlug);
+                throw new RuntimeException("listener failed");
+            }
+
+            @Override
+            public void onDownloadFailed(String containerSlug, Exception e) {
+                throw new RuntimeException("listener failed");
+            }
+
+            @Override
+            public void onProgress(int total, int completed, int failed) {
+            }
+        });
+
+        manager.enqueue("en", "gen", "udb", 1);
+        manager.enqueue("en", "gen", "ulb", 0);
+        manager.start();
+        assertTrue(manager.awaitIdle(10000));
+        manager.stop();
+
+        // the single worker kept going after the listener failed
+        assertEquals(1, downloaded.size());
+        assertEquals(0, manager.getQueue().size());
+        assertEquals(1, manager.getFailed().size());
+    }
+
+    @Test
+    public void stopStalledDownload() throws Exception {
+        stubAPI();
+        client.updateSources("http://localhost:" + wireMockRule.port() + "/catalog", null);
+        stubFor(get(urlEqualTo("/ts/txt/2/gen/en/ulb/source.json"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(20000)
+                        .withBody("{}")));
+        File queueFile = new File(resourceDir.getRoot(), "downloads.json");
+        DownloadManager manager = new DownloadManager(client, queueFile);
+        manager.enqueue("en", "gen", "ulb", 0);
+        manager.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while(findAll(getRequestedFor(urlEqualTo("/ts/txt/2/gen/en/ulb/source.json"))).isEmpty()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        long start = System.currentTimeMillis();
+        manager.stop();
+
+        assertTrue(System.currentTimeMillis() - start < DownloadManager.STOP_TIMEOUT + 1000);
+        assertEquals(ContainerTools.makeSlug("en", "gen", "ulb"), manager.getQueue().get(0));
+        assertEquals(ContainerTools.makeSlug("en", "gen", "ulb"), new DownloadManager(client, queueFile).getQueue().get(0));
+    }
+
+    @Test
+    public void restoreDownloadQueue() throws Exception {
+        File queueFile = new File(resourceDir.getRoot(), "downloads.json");
+        DownloadManager manager = new DownloadManager(client, queueFile);
+        manager.enqueue("en", "gen", "ulb", 0);
+        manager.enqueue("en", "exo", "ulb", 2);
+        manager.enqueue("en", "lev", "ulb", 0);
+
+        DownloadManager restored = new DownloadManager(client, queueFile);
+        List<String> queue = restored.getQueue();
+        assertEquals(3, queue.size());
+        assertEquals(ContainerTools.makeSlug("en", "exo", "ulb"), queue.get(0));
+        assertEquals(ContainerTools.makeSlug("en", "gen", "ulb"), queue.get(1));
+        assertEquals(ContainerTools.makeSlug("en", "lev", "ulb"), queue.get(2));
+    }
+
     @Test
     public void convertLegacyResource() throws Exception {
         stubAPI();
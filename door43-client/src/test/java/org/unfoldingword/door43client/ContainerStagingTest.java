@@ -0,0 +1,193 @@
+package org.unfoldingword.door43client;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ContainerStagingTest {
+    private static final String SLUG = "en_gen_ulb";
+    private static final String[] FILES = {"package.json", "content/01/01.usx", "content/01/02.usx", "content/front/title.usx"};
+
+    @Rule
+    public TemporaryFolder resourceDir = new TemporaryFolder();
+
+    private final List<String> errors = new ArrayList<>();
+    private final OnLogListener log = new OnLogListener() {
+        @Override
+        public void onInfo(String message) {
+        }
+
+        @Override
+        public void onWarning(String message) {
+        }
+
+        @Override
+        public void onError(String message, Exception ex) {
+            errors.add(message);
+        }
+    };
+
+    /**
+     * Writes a container where each file contains it's name and the version
+     * @param dir
+     * @param version
+     * @param limit the number of bytes to write before the write is killed
+     * @return the number of bytes written
+     */
+    private static int writeContainer(File dir, String version, int limit) throws Exception {
+        int written = 0;
+        for(String name:FILES) {
+            if(written >= limit) break;
+            File file = new File(dir, name);
+            file.getParentFile().mkdirs();
+            byte[] content = (name + " " + version + "\n").getBytes("UTF-8");
+            int length = Math.min(content.length, limit - written);
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(content, 0, length);
+            out.close();
+            written += length;
+        }
+        return written;
+    }
+
+    private static int sizeOf(String version) throws Exception {
+        int size = 0;
+        for(String name:FILES) {
+            size += (name + " " + version + "\n").getBytes("UTF-8").length;
+        }
+        return size;
+    }
+
+    private void assertContainer(String version) throws Exception {
+        for(String name:FILES) {
+            File file = new File(resourceDir.getRoot(), SLUG + "/" + name);
+            assertEquals(name + " " + version + "\n", FileUtil.readFileToString(file, "UTF-8"));
+        }
+    }
+
+    private void assertStagingEmpty() {
+        String[] stages = new File(resourceDir.getRoot(), ContainerStaging.DIR_NAME).list();
+        assertTrue(stages == null || stages.length == 0);
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void recoverFromKilledWrites() throws Exception {
+        writeContainer(new File(resourceDir.getRoot(), SLUG), "old", Integer.MAX_VALUE);
+        int size = sizeOf("new");
+        Random random = new Random(43);
+
+        for(int i = 0; i < 50; i ++) {
+            ContainerStaging staging = new ContainerStaging(resourceDir.getRoot());
+            ContainerStaging.Stage stage = staging.begin(SLUG, false);
+            // the process dies part way through writing the container
+            writeContainer(stage.getPath(), "new", random.nextInt(size));
+
+            List<String> reindex = new ContainerStaging(resourceDir.getRoot()).recover(log);
+
+            assertTrue(reindex.isEmpty());
+            assertContainer("old");
+            assertStagingEmpty();
+        }
+    }
+
+    @Test
+    public void recoverFromKilledCommits() throws Exception {
+        for(int steps = 0; steps <= 4; steps ++) {
+            FileUtil.deleteQuietly(new File(resourceDir.getRoot(), SLUG));
+            writeContainer(new File(resourceDir.getRoot(), SLUG), "old", Integer.MAX_VALUE);
+
+            ContainerStaging.Stage stage = new ContainerStaging(resourceDir.getRoot()).begin(SLUG, true);
+            writeContainer(stage.getPath(), "new", Integer.MAX_VALUE);
+            // the process dies part way through the commit
+            stage.commit(steps);
+
+            List<String> reindex = new ContainerStaging(resourceDir.getRoot()).recover(log);
+
+            // once the commit marker is written the new container wins
+            boolean committed = steps >= 2;
+            assertContainer(committed ? "new" : "old");
+            assertEquals(committed ? 1 : 0, reindex.size());
+            assertStagingEmpty();
+        }
+    }
+
+    @Test
+    public void rollbackCommit() throws Exception {
+        writeContainer(new File(resourceDir.getRoot(), SLUG), "old", Integer.MAX_VALUE);
+        ContainerStaging.Stage stage = new ContainerStaging(resourceDir.getRoot()).begin(SLUG, true);
+        writeContainer(stage.getPath(), "new", Integer.MAX_VALUE);
+
+        stage.commit();
+        assertContainer("new");
+        stage.rollback();
+
+        assertContainer("old");
+        assertStagingEmpty();
+    }
+
+    @Test
+    public void recoverReplacedContainer() throws Exception {
+        String archiveName = SLUG + ".tsrc";
+        File archive = new File(resourceDir.getRoot(), archiveName);
+        for(int steps = 0; steps <= 4; steps ++) {
+            FileUtil.deleteQuietly(new File(resourceDir.getRoot(), SLUG));
+            writeContainer(new File(resourceDir.getRoot(), SLUG), "old", Integer.MAX_VALUE);
+            FileUtil.writeStringToFile(archive, "old");
+
+            // the new archive replaces the open container
+            ContainerStaging.Stage stage = new ContainerStaging(resourceDir.getRoot()).begin(archiveName, false, SLUG);
+            FileUtil.writeStringToFile(stage.getPath(), "new");
+            // the process dies part way through the commit
+            stage.commit(steps);
+
+            new ContainerStaging(resourceDir.getRoot()).recover(log);
+
+            boolean committed = steps >= 2;
+            assertEquals(committed ? "new" : "old", FileUtil.readFileToString(archive, "UTF-8"));
+            if(committed) {
+                assertTrue(!new File(resourceDir.getRoot(), SLUG).exists());
+            } else {
+                assertContainer("old");
+            }
+            assertStagingEmpty();
+        }
+    }
+
+    @Test
+    public void rollbackReplacedContainer() throws Exception {
+        String archiveName = SLUG + ".tsrc";
+        writeContainer(new File(resourceDir.getRoot(), SLUG), "old", Integer.MAX_VALUE);
+        ContainerStaging.Stage stage = new ContainerStaging(resourceDir.getRoot()).begin(archiveName, false, SLUG);
+        FileUtil.writeStringToFile(stage.getPath(), "new");
+
+        stage.commit();
+        assertTrue(!new File(resourceDir.getRoot(), SLUG).exists());
+        stage.rollback();
+
+        assertContainer("old");
+        assertTrue(!new File(resourceDir.getRoot(), archiveName).exists());
+        assertStagingEmpty();
+    }
+
+    @Test
+    public void commitNewContainer() throws Exception {
+        ContainerStaging.Stage stage = new ContainerStaging(resourceDir.getRoot()).begin(SLUG, false);
+        writeContainer(stage.getPath(), "new", Integer.MAX_VALUE);
+
+        stage.commit();
+        stage.finish();
+
+        assertContainer("new");
+        assertStagingEmpty();
+    }
+}
@@ -1,6 +1,7 @@
 package org.unfoldingword.door43client;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
 
 import org.junit.After;
 import org.junit.Before;
@@ -26,6 +27,7 @@ import java.util.List;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(RobolectricTestRunner.class)
 public class ImportTest {
@@ -134,6 +136,56 @@ public class ImportTest {
         assertEquals(0, numOther);
     }
 
+    @Test
+    public void ImportResourceContainerByMoving() throws Exception {
+        ClassLoader classLoader = this.getClass().getClassLoader();
+        File dir = new File(resourceDir.newFolder("external"), "en_tit_ulb");
+        FileUtil.copyDirectory(new File(classLoader.getResource("en_tit_ulb").getPath()), dir, null);
+
+        ResourceContainer rc = client.importResourceContainer(dir, TransferMode.MOVE);
+
+        assertNotNull(rc);
+        assertTrue(!dir.exists());
+        assertTrue(new File(resourceDir.getRoot(), rc.slug + "/package.json").exists());
+        assertEquals(0, new File(resourceDir.getRoot(), ContainerStaging.DIR_NAME).list().length);
+    }
+
+    @Test
+    public void restoreMovedContainerWhenIndexingFails() throws Exception {
+        ClassLoader classLoader = this.getClass().getClassLoader();
+        File dir = new File(resourceDir.newFolder("external"), "en_tit_ulb");
+        FileUtil.copyDirectory(new File(classLoader.getResource("en_tit_ulb").getPath()), dir, null);
+
+        // make indexing the container fail
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(new File(resourceDir.getRoot(), "index.sqlite").getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        db.execSQL("create trigger fail_import before insert on resource_format begin select raise(abort, 'index failure'); end");
+        db.close();
+
+        try {
+            client.importResourceContainer(dir, TransferMode.MOVE);
+            fail();
+        } catch (Exception e) {
+            // expected
+        }
+
+        assertTrue(new File(dir, "package.json").exists());
+        assertTrue(!new File(resourceDir.getRoot(), "en_tit_ulb").exists());
+        assertEquals(0, new File(resourceDir.getRoot(), ContainerStaging.DIR_NAME).list().length);
+    }
+
+    @Test
+    public void ImportResourceContainerByLinking() throws Exception {
+        ClassLoader classLoader = this.getClass().getClassLoader();
+        File dir = new File(classLoader.getResource("en_tit_ulb").getPath());
+
+        ResourceContainer rc = client.importResourceContainer(dir, TransferMode.LINK);
+
+        assertNotNull(rc);
+        assertTrue(new File(dir, "package.json").exists());
+        assertEquals(FileUtil.readFileToString(new File(dir, "package.json")),
+                FileUtil.readFileToString(new File(resourceDir.getRoot(), rc.slug + "/package.json")));
+    }
+
     // we currently do not support importing new projects. If we do this test will check that
 //    @Test
 //    public void ImportContainerWithNewProject() throws Exception {
@@ -0,0 +1,46 @@
+package org.unfoldingword.door43client;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class JsonArrayReaderTest {
+
+    @Test
+    public void readLegacyCatalog() throws Exception {
+        String data = Util.loadResource(this.getClass().getClassLoader(), "genesis/languages.json");
+        byte[] bytes = data.getBytes("UTF-8");
+        CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(bytes));
+
+        JsonArrayReader reader = new JsonArrayReader(new InputStreamReader(in, "UTF-8"));
+        JSONObject first = reader.next();
+        assertEquals("ru", first.getJSONObject("language").getString("slug"));
+        assertEquals("Bible: OT", first.getJSONObject("project").getJSONArray("meta").getString(0));
+        assertTrue(reader.hasNext());
+        reader.skip();
+        assertFalse(reader.hasNext());
+        assertEquals(bytes.length, in.getCount());
+        reader.close();
+    }
+
+    @Test
+    public void readValues() throws Exception {
+        JsonArrayReader reader = new JsonArrayReader(new StringReader("[{\"gl\":true,\"id\":12,\"pk\":1.5,\"x\":null}]"));
+        JSONObject json = reader.next();
+        assertTrue(json.getBoolean("gl"));
+        assertEquals(12, json.getInt("id"));
+        assertEquals(1.5, json.getDouble("pk"), 0);
+        assertTrue(json.isNull("x"));
+        reader.close();
+    }
+}
@@ -0,0 +1,97 @@
+package org.unfoldingword.door43client;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class LegacyBookConverterTest {
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static JSONObject buildProperties(String projectSlug, String type) throws Exception {
+        JSONObject properties = new JSONObject();
+        properties.put("language", new JSONObject().put("slug", "en").put("name", "English").put("direction", "ltr"));
+        properties.put("project", new JSONObject().put("slug", projectSlug).put("name", "Genesis"));
+        properties.put("resource", new JSONObject().put("slug", "ulb").put("name", "Unlocked Literal Bible").put("type", type)
+                .put("status", new JSONObject().put("license", "CC BY-SA 4.0")));
+        properties.put("modified_at", 20160901);
+        return properties;
+    }
+
+    @Test
+    public void convertBook() throws Exception {
+        String data = Util.loadResource(this.getClass().getClassLoader(), "genesis/en/ulb/source.json");
+        JSONObject properties = buildProperties("gen", "book");
+        properties.put("tw_assignments", new JSONObject().put("01", new JSONObject()
+                .put("01", new JSONArray().put("//bible/tw/creation").put("//bible/tw/god"))));
+        File dir = new File(tempDir.getRoot(), "en_gen_ulb");
+
+        LegacyBookConverter.convert(new StringReader(data), dir, properties);
+
+        JSONObject frame = new JSONObject(data).getJSONArray("chapters").getJSONObject(0).getJSONArray("frames").getJSONObject(0);
+        assertEquals(frame.getString("text"), FileUtil.readFileToString(new File(dir, "content/01/01.usx"), "UTF-8"));
+        assertEquals("Genesis", FileUtil.readFileToString(new File(dir, "content/front/title.usx"), "UTF-8"));
+        assertTrue(new File(dir, "content/50/22.usx").exists());
+        // TRICKY: the chapter number comes after the frames in the legacy catalog
+        assertFalse(new File(dir, "content/.chapter").exists());
+        assertEquals("CC BY-SA 4.0", FileUtil.readFileToString(new File(dir, "LICENSE.md"), "UTF-8"));
+
+        JSONObject packageData = new JSONObject(FileUtil.readFileToString(new File(dir, "package.json"), "UTF-8"));
+        assertEquals("text/usx", packageData.getString("content_mime_type"));
+        assertEquals(20160901, packageData.getInt("modified_at"));
+        assertEquals("gen", packageData.getJSONObject("project").getString("slug"));
+
+        String toc = FileUtil.readFileToString(new File(dir, "content/toc.yml"), "UTF-8");
+        assertTrue(toc.startsWith("-\n  chapter: front\n  chunks:\n    - title\n-\n  chapter: '01'\n  chunks:\n    - '01'\n    - '03'\n"));
+        assertEquals("content:\n  '01':\n    '01':\n      words:\n        - //bible/tw/creation\n        - //bible/tw/god\n",
+                FileUtil.readFileToString(new File(dir, "content/config.yml"), "UTF-8"));
+    }
+
+    @Test
+    public void convertChapterTitles() throws Exception {
+        String data = "{\"chapters\":[{\"frames\":[{\"id\":\"01-02\",\"text\":\"b\"},{\"id\":\"01-01\",\"text\":\"a\"}],"
+                + "\"number\":\"1\",\"ref\":\"Genesis 1\",\"title\":null},"
+                + "{\"number\":\"02\",\"title\":\"Chapter 2\",\"frames\":[{\"text\":\"c\",\"id\":\"02-01\"}]}]}";
+        File dir = new File(tempDir.getRoot(), "en_gen_ulb");
+
+        LegacyBookConverter.convert(new StringReader(data), dir, buildProperties("gen", "book"));
+
+        assertEquals("b", FileUtil.readFileToString(new File(dir, "content/01/02.usx"), "UTF-8"));
+        assertEquals("Genesis 1", FileUtil.readFileToString(new File(dir, "content/01/reference.usx"), "UTF-8"));
+        assertFalse(new File(dir, "content/01/title.usx").exists());
+        assertEquals("Chapter 2", FileUtil.readFileToString(new File(dir, "content/02/title.usx"), "UTF-8"));
+        assertEquals("-\n  chapter: front\n  chunks:\n    - title\n"
+                        + "-\n  chapter: '01'\n  chunks:\n    - '02'\n    - '01'\n    - reference\n"
+                        + "-\n  chapter: '02'\n  chunks:\n    - title\n    - '01'\n",
+                FileUtil.readFileToString(new File(dir, "content/toc.yml"), "UTF-8"));
+        assertEquals("content: {}\n", FileUtil.readFileToString(new File(dir, "content/config.yml"), "UTF-8"));
+    }
+
+    @Test
+    public void onlyConvertBooks() throws Exception {
+        assertTrue(LegacyBookConverter.isBook(buildProperties("gen", "book")));
+        assertFalse(LegacyBookConverter.isBook(buildProperties("obs", "book")));
+        assertFalse(LegacyBookConverter.isBook(buildProperties("gen", "help")));
+    }
+
+    @Test
+    public void quoteYamlStrings() throws Exception {
+        assertEquals("front", LegacyBookConverter.yamlString("front"));
+        assertEquals("//bible/tw/god", LegacyBookConverter.yamlString("//bible/tw/god"));
+        assertEquals("'01'", LegacyBookConverter.yamlString("01"));
+        assertEquals("'no'", LegacyBookConverter.yamlString("no"));
+        assertEquals("'it''s'", LegacyBookConverter.yamlString("it's"));
+    }
+}
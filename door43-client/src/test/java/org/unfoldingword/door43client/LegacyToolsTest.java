@@ -0,0 +1,26 @@
+package org.unfoldingword.door43client;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class LegacyToolsTest {
+
+    @Test
+    public void normalizeSlug() throws Exception {
+        assertEquals("01", LegacyTools.normalizeSlug("1"));
+        assertEquals("01", LegacyTools.normalizeSlug("001"));
+        assertEquals("12", LegacyTools.normalizeSlug("12"));
+        assertEquals("123", LegacyTools.normalizeSlug("0123"));
+        assertEquals("00", LegacyTools.normalizeSlug("0"));
+        assertEquals("00", LegacyTools.normalizeSlug("00"));
+        assertEquals("a", LegacyTools.normalizeSlug("a"));
+        assertEquals("0word", LegacyTools.normalizeSlug("0word"));
+        assertEquals("intro", LegacyTools.normalizeSlug("intro"));
+        assertEquals("-5", LegacyTools.normalizeSlug("-5"));
+        assertEquals("12345678901", LegacyTools.normalizeSlug("12345678901"));
+    }
+}
@@ -1,6 +1,9 @@
 package org.unfoldingword.door43client;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
 import android.util.Log;
 
 import org.junit.After;
@@ -16,6 +19,7 @@ import org.unfoldingword.door43client.models.ChunkMarker;
 import org.unfoldingword.door43client.models.Question;
 import org.unfoldingword.door43client.models.Questionnaire;
 import org.unfoldingword.door43client.models.SourceLanguage;
+import org.unfoldingword.door43client.models.SearchHit;
 import org.unfoldingword.door43client.models.TargetLanguage;
 import org.unfoldingword.door43client.models.Translation;
 import org.unfoldingword.door43client.models.Versification;
@@ -29,9 +33,14 @@ import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
@@ -46,6 +55,7 @@ import static org.junit.Assert.assertTrue;
 public class LibraryGettersUnitTest {
     private static final int GENERATOR_QTY = 5;
     private static Context context;
+    private static SQLiteHelper helper;
     private static Library library;
     private static int testCounter = 0;
 
@@ -212,7 +222,7 @@ public class LibraryGettersUnitTest {
 //        context.deleteDatabase("index");
 
         // initialize library
-        SQLiteHelper helper = new SQLiteHelper(context, sb.toString(), "index" + testCounter);
+        helper = new SQLiteHelper(context, sb.toString(), "index" + testCounter);
         library = new Library(helper);
 
         library.beginTransaction();
@@ -234,6 +244,15 @@ public class LibraryGettersUnitTest {
     public void listProjectsLastModified() throws Exception {
         Map<String, Integer> modified = library.listProjectsLastModified("en1");
         assertTrue(modified.size() > 0);
+
+        Map<String, Integer> allModified = library.listProjectsLastModified(null);
+        assertTrue(allModified.size() >= modified.size());
+    }
+
+    @Test
+    public void listSourceLanguagesLastModified() throws Exception {
+        List<HashMap> modified = library.listSourceLanguagesLastModified();
+        assertTrue(modified.size() > 0);
     }
 
     @Test
@@ -266,6 +285,44 @@ public class LibraryGettersUnitTest {
 
         translations = library.findTranslations(null, "proj-1", null, "missing", "", 0, 3);
         assertEquals(0, translations.size());
+
+        // the slugs ignore case
+        translations = library.findTranslations("EN2", "Proj-1", "RES1", "book", "", 0, 3);
+        assertTrue(translations.size() > 0);
+        for(Translation t:translations) {
+            assertEquals("en2", t.language.slug);
+            assertEquals("res1", t.resource.slug);
+        }
+
+        // but are not patterns
+        translations = library.findTranslations(null, "proj-%", null, "book", "", 0, 3);
+        assertEquals(0, translations.size());
+    }
+
+    @Test
+    public void loadFormatsWithTheResources() throws Exception {
+        // the number of queries must not grow with the number of resources
+        long count = library.getQueryCount();
+        List<Translation> translations = library.findTranslations(null, null, null, null, null, 0, -1);
+        assertTrue(translations.size() > GENERATOR_QTY);
+        assertEquals(1, library.getQueryCount() - count);
+        for(Translation t:translations) {
+            assertEquals(1, t.resource.formats.size());
+        }
+
+        count = library.getQueryCount();
+        translations = library.getImportedTranslations();
+        assertEquals(GENERATOR_QTY, translations.size());
+        assertEquals(1, library.getQueryCount() - count);
+        assertTrue(translations.get(0).resource.formats.get(0).imported);
+
+        count = library.getQueryCount();
+        List<Resource> resources = library.getResources(null, "proj-cat2-1");
+        assertTrue(resources.size() > GENERATOR_QTY);
+        assertEquals(1, library.getQueryCount() - count);
+        for(Resource r:resources) {
+            assertEquals(1, r.formats.size());
+        }
     }
 
     @Test
@@ -295,6 +352,69 @@ public class LibraryGettersUnitTest {
         assertTrue(languages.size() > 0);
     }
 
+    @Test
+    public void findTargetLanguage() throws Exception {
+        List<TargetLanguage> languages = library.findTargetLanguage("En");
+        assertEquals(library.getTargetLanguages().size(), languages.size());
+        // slug matches come first
+        assertEquals("en1", languages.get(0).slug);
+        assertTrue(languages.get(languages.size() - 1).slug.startsWith("temp-en"));
+
+        // approved temp languages are not included
+        languages = library.findTargetLanguage("temp-en");
+        assertEquals(GENERATOR_QTY - 1, languages.size());
+
+        // anglicized names are searched as well
+        assertEquals(library.getTargetLanguages().size(), library.findTargetLanguage("american").size());
+        assertEquals(0, library.findTargetLanguage("klingon").size());
+    }
+
+    @Test
+    public void search() throws Exception {
+        List<SearchHit> hits = library.search("imported", "en2", 0, 10);
+        assertEquals(1, hits.size());
+        assertEquals(SearchHit.Type.PROJECT, hits.get(0).type);
+        assertEquals("imported-gen", hits.get(0).slug);
+        assertEquals("en2", hits.get(0).sourceLanguageSlug);
+
+        // every word must match
+        assertEquals(1, library.search("Genesis Imp", null, 0, 100).size());
+        assertEquals(0, library.search("imported", "en1", 0, 10).size());
+
+        // categories
+        hits = library.search("second", "en1", 0, 10);
+        assertEquals(1, hits.size());
+        assertEquals(SearchHit.Type.CATEGORY, hits.get(0).type);
+        assertEquals("cat2", hits.get(0).slug);
+
+        // resources
+        hits = library.search("literal bible", "en3", 0, 10);
+        assertEquals(10, hits.size());
+        assertEquals(SearchHit.Type.RESOURCE, hits.get(0).type);
+        assertNotNull(hits.get(0).projectSlug);
+
+        // paging
+        List<SearchHit> all = library.search("unlocked", "en3", 0, 1000);
+        List<SearchHit> page = library.search("unlocked", "en3", 5, 5);
+        assertEquals(5, page.size());
+        assertEquals(all.get(5).projectSlug, page.get(0).projectSlug);
+        assertEquals(all.get(5).slug, page.get(0).slug);
+
+        // names that start with the query come first
+        hits = library.search("genesis", "en2", 0, 1000);
+        assertEquals("Genesis", hits.get(0).name);
+        assertEquals("Imported Genesis", hits.get(hits.size() - 1).name);
+
+        // words with combining marks
+        long languageId = library.addSourceLanguage(new SourceLanguage("hi", "हिन्दी", "ltr"));
+        library.addProject(new Project("hi-gen", "हिन्दी Genesis", 1), null, languageId);
+        assertEquals(1, library.search("genesis", "hi", 0, 10).size());
+        hits = library.search("हिन्दी", "hi", 0, 10);
+        assertEquals(1, hits.size());
+        assertEquals("हिन्दी Genesis", hits.get(0).name);
+        assertEquals(1, library.search("हिन्", "hi", 0, 10).size());
+    }
+
     @Test
     public void getApprovedTargetLanguage() throws Exception {
         TargetLanguage language = library.getApprovedTargetLanguage("temp-en1");
@@ -324,7 +444,48 @@ public class LibraryGettersUnitTest {
         Project p1 = library.getProject("missing", "proj-no-cat-1", true);
 
         assertNotNull(p1);
-//        assertNotEquals(p1.);
+        assertEquals("en1", p1.languageSlug);
+        assertEquals("en3", library.getProject("en3", "proj-no-cat-1", true).languageSlug);
+        assertNull(library.getProject("en1", "missing", true));
+    }
+
+    @Test
+    public void getProjectsWithFallbackLanguages() throws Exception {
+        // the first language of each project is used by default
+        List<Project> projects = library.getProjects("en1", true);
+        assertEquals(GENERATOR_QTY * 4 + 1, projects.size());
+        Map<String, String> languages = new HashMap<>();
+        for(Project p:projects) {
+            languages.put(p.slug, p.languageSlug);
+        }
+        assertEquals("en1", languages.get("proj-cat1-1"));
+        assertEquals("en2", languages.get("proj-1"));
+        assertEquals("en2", languages.get("imported-gen"));
+
+        library.setFallbackLanguages("en4", "en3");
+        assertEquals("en4", library.getProject("en1", "proj-1", true).languageSlug);
+        assertEquals("en1", library.getProject("en1", "proj-cat1-1", true).languageSlug);
+        assertEquals("en2", library.getProject("en1", "imported-gen", true).languageSlug);
+
+        // new projects are ranked as they are added
+        long languageId = library.addSourceLanguage(new SourceLanguage("en3", "English", "ltr"));
+        library.addProject(new Project("imported-gen", "Imported Genesis", 1), null, languageId);
+        assertEquals("en3", library.getProject("en1", "imported-gen", true).languageSlug);
+        languageId = library.addSourceLanguage(new SourceLanguage("de", "Deutsch", "ltr"));
+        library.addProject(new Project("new-proj", "New Project", 1), null, languageId);
+        assertEquals("de", library.getProject("en1", "new-proj", true).languageSlug);
+
+        projects = library.getProjects("en5", true);
+        assertEquals(GENERATOR_QTY * 4 + 2, projects.size());
+        for(Project p:projects) {
+            if(p.slug.equals("imported-gen")) {
+                assertEquals("en3", p.languageSlug);
+            } else if(p.slug.equals("new-proj")) {
+                assertEquals("de", p.languageSlug);
+            } else {
+                assertEquals("en5", p.languageSlug);
+            }
+        }
     }
 
     @Test
@@ -432,4 +593,147 @@ public class LibraryGettersUnitTest {
         assertEquals("cat1", categories.get(0).slug);
         assertEquals("cat2", categories.get(1).slug);
     }
+
+    @Test
+    public void readCategoriesFromMemory() throws Exception {
+        library.getProjectCategories(0, "en1", "all");
+        long count = library.getQueryCount();
+
+        List<CategoryEntry> entries = library.getProjectCategories(0, "en1", "all");
+        assertEquals(CategoryEntry.Type.CATEGORY, entries.get(0).entryType);
+        assertEquals("cat1", entries.get(0).slug);
+        assertEquals("First level category", entries.get(0).name);
+        // projects missing from the language are named in another language
+        assertEquals(1 + GENERATOR_QTY * 2 + 1, entries.size());
+        for(CategoryEntry entry:entries) {
+            if(entry.slug.equals("proj-1")) assertEquals("en2", entry.sourceLanguageSlug);
+        }
+
+        List<CategoryEntry> children = library.getProjectCategories(entries.get(0).id, "en1", "all");
+        assertEquals("cat2", children.get(0).slug);
+        assertEquals(1 + GENERATOR_QTY, children.size());
+        assertEquals(0, library.getProjectCategories(entries.get(0).id, "en1", "none").size());
+
+        List<Category> categories = library.getCategories("en3", "proj-cat2-2");
+        assertEquals(2, categories.size());
+        assertEquals("Second level category", categories.get(1).name);
+        assertEquals(0, library.getCategories("en1", "proj-no-cat-1").size());
+        assertEquals(0, library.getCategories("en1", "proj-1").size());
+        assertEquals(0, library.getQueryCount() - count);
+    }
+
+    @Test
+    public void queryPlansUseIndexes() throws Exception {
+        // TRICKY: cached models would skip the queries
+        library.setCacheSize(0);
+        QueryPlanChecker checker = new QueryPlanChecker(helper.getReadableDatabase());
+        library.setQueryObserver(checker);
+
+        // lists of a whole table may scan that table
+        checker.allow("source_language");
+        library.getSourceLanguages();
+        checker.allow("target_language", "temp_target_language");
+        library.getTargetLanguages();
+        library.findTargetLanguage("en");
+        checker.allow("catalog");
+        library.getCatalogs();
+        checker.allow("questionnaire");
+        library.getQuestionnaires();
+        checker.allow("resource_format");
+        library.listSourceLanguagesLastModified();
+        library.listProjectsLastModified(null);
+        checker.allow("source_language", "project", "resource", "resource_format");
+        library.findTranslations(null, null, null, null, null, 0, -1);
+        // the default language lists every project slug
+        checker.allow("project_fallback");
+        library.getProjects("en1", true);
+        // the category tree is loaded from every category and project
+        checker.allow("category", "category_name", "project", "resource");
+        library.getCategories("en1", "proj-cat2-1");
+        checker.assertIndexed();
+
+        library.listProjectsLastModified("en1");
+        library.listResourcesLastModified("en1", "proj-1");
+        library.getProjectMeta("proj-1");
+        library.search("genesis", "en1", 0, 10);
+        library.getTranslation("en2_proj-1_res1");
+        library.findTranslations(null, "proj-1", null, "book", null, 0, -1);
+        library.findTranslations("en1", "proj-1", "res1", null, "all", 3, 3);
+        library.findTranslations("en1", null, null, null, null, 0, -1);
+        library.findTranslations(null, null, "res1", null, null, 0, -1);
+        library.getImportedTranslations();
+        library.getSourceLanguage("en1");
+        library.getSourceLanguages("proj-1");
+        library.getTargetLanguage("en1");
+        library.getApprovedTargetLanguage("temp-en1");
+        library.getProject("en1", "proj-1");
+        library.getProject("missing", "proj-1", true);
+        library.getProjects("en1");
+        library.getProjectCategories(0, "en1", "all");
+        library.getProjectCategories(0, "en1", "");
+        library.getResource("en1", "proj-1", "res1");
+        library.getResources("en1", "proj-1");
+        library.getResources(null, "proj-1");
+        library.getCatalog("cat1");
+        library.getVersification("en1", "versi1");
+        library.getVersifications("en1");
+        library.getChunkMarkers("proj-1", "versi1");
+        library.getQuestionnaire(1);
+        library.getQuestions(1);
+        library.getCategory("en1", "cat2");
+        library.getCategories("en1", "proj-cat2-1");
+        checker.assertIndexed();
+        library.setQueryObserver(null);
+    }
+
+    /**
+     * Explains the queries run by the library and records the tables that were fully scanned
+     */
+    private static class QueryPlanChecker implements Library.QueryObserver {
+        // e.g. "SCAN TABLE project AS p" or "SCAN project AS p" in newer versions of sqlite
+        private static final Pattern SCAN = Pattern.compile("^SCAN (?:TABLE )?(\\w+)");
+        private final SQLiteDatabase db;
+        private final Set<String> allowed = new HashSet<>();
+        private final List<String> scans = new ArrayList<>();
+
+        QueryPlanChecker(SQLiteDatabase db) {
+            this.db = db;
+        }
+
+        /**
+         * Allows the tables to be scanned by the queries run before the next check
+         * @param tables
+         */
+        void allow(String... tables) {
+            allowed.addAll(Arrays.asList(tables));
+        }
+
+        /**
+         * Fails if any of the queries since the last check scanned a table that was not allowed
+         */
+        void assertIndexed() {
+            List<String> found = new ArrayList<>(scans);
+            scans.clear();
+            allowed.clear();
+            assertTrue("Full table scans:\n" + TextUtils.join("\n", found), found.isEmpty());
+        }
+
+        @Override
+        public void onQuery(String sql, String[] selectionArgs) {
+            Cursor cursor = db.rawQuery("explain query plan " + sql, selectionArgs);
+            try {
+                int column = cursor.getColumnIndex("detail");
+                while(cursor.moveToNext()) {
+                    String detail = cursor.getString(column);
+                    Matcher matcher = SCAN.matcher(detail);
+                    if(!matcher.find() || detail.contains("VIRTUAL TABLE")) continue;
+                    String table = matcher.group(1);
+                    if(table.equals("SUBQUERY") || table.equals("CONSTANT") || allowed.contains(table)) continue;
+                    scans.add(detail + " in: " + sql);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
 }
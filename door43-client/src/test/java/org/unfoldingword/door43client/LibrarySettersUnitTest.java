@@ -10,9 +10,11 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.unfoldingword.door43client.models.Catalog;
 import org.unfoldingword.door43client.models.Category;
+import org.unfoldingword.door43client.models.CategoryEntry;
 import org.unfoldingword.door43client.models.ChunkMarker;
 import org.unfoldingword.door43client.models.Question;
 import org.unfoldingword.door43client.models.Questionnaire;
+import org.unfoldingword.door43client.models.SearchHit;
 import org.unfoldingword.door43client.models.TargetLanguage;
 import org.unfoldingword.door43client.models.SourceLanguage;
 import org.unfoldingword.door43client.models.Versification;
@@ -305,4 +307,325 @@ public class LibrarySettersUnitTest {
         }
         throw new Exception("missing question");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void batchWriteTargetLanguages() throws Exception {
+        library.beginTransaction();
+        Library.BatchWriter batch = library.getBatchWriter();
+        assertTrue(batch.addTargetLanguage(new TargetLanguage("en", "English", "American English", "ltr", "United States", true)));
+        assertTrue(batch.addTempTargetLanguage(new TargetLanguage("temp-en", "English", "American English", "ltr", "United States", true)));
+
+        // test updated
+        assertTrue(batch.addTargetLanguage(new TargetLanguage("en", "Updated English", "American English", "ltr", "United States", true)));
+        library.endTransaction(true);
+
+        assertEquals("Updated English", library.getTargetLanguage("en").name);
+        assertEquals(2, library.getTargetLanguages().size());
+
+        // test the writer is released with the transaction
+        try {
+            library.getBatchWriter();
+            fail();
+        } catch (IllegalStateException e) {
+            assertNotNull(e);
+        }
+    }
+
+    @Test
+    public void batchWriteChunkMarkers() throws Exception {
+        SourceLanguage language = new SourceLanguage("en", "English", "ltr");
+        Versification v = new Versification("en", "English Versification");
+        long languageId = library.addSourceLanguage(language);
+        long versificationId = library.addVersification(v, languageId);
+
+        library.beginTransaction();
+        Library.BatchWriter batch = library.getBatchWriter();
+        long id = batch.addChunkMarker(new ChunkMarker("01", "01"), "gen", versificationId);
+        assertTrue(id > 0);
+        long otherId = batch.addChunkMarker(new ChunkMarker("01", "05"), "gen", versificationId);
+        assertTrue(otherId != id);
+
+        // test duplicate
+        long duplicateId = batch.addChunkMarker(new ChunkMarker("01", "01"), "gen", versificationId);
+        assertEquals(id, duplicateId);
+        library.endTransaction(true);
+
+        assertEquals(2, library.getChunkMarkers("gen", "en").size());
+    }
+
+    @Test
+    public void batchWriteResources() throws Exception {
+        SourceLanguage language = new SourceLanguage("en", "English", "ltr");
+        long languageId = library.addSourceLanguage(language);
+        Project project = new Project("gen", "Genesis", 1);
+        long projectId = library.addProject(project, null, languageId);
+
+        library.beginTransaction();
+        Library.BatchWriter batch = library.getBatchWriter();
+
+        // test invalid
+        Resource resource = new Resource("ulb", "Unlocked Literal Bible", "book", "all", "3", "4");
+        try {
+            batch.addResource(resource, projectId);
+            fail();
+        } catch (Exception e) {
+            assertNotNull(e);
+        }
+
+        // test good
+        resource.addFormat(new Resource.Format(ResourceContainer.version, ResourceContainer.baseMimeType + "+book", 0, "some url", false));
+        long resourceId = batch.addResource(resource, projectId);
+        assertTrue(resourceId > 0);
+
+        // test update
+        Resource newResource = new Resource("ulb", "Updated Unlocked Literal Bible", "book", "all", "3", "4");
+        newResource.addFormat(new Resource.Format(ResourceContainer.version, ResourceContainer.baseMimeType + "+book", 10, "some url", false));
+        assertEquals(resourceId, batch.addResource(newResource, projectId));
+        library.endTransaction(true);
+
+        Resource updated = library.getResource("en", "gen", "ulb");
+        assertEquals("Updated Unlocked Literal Bible", updated.name);
+        assertEquals(1, updated.formats.size());
+        assertEquals(10, updated.formats.get(0).modifiedAt);
+    }
+
+    @Test
+    public void countImportedFormats() throws Exception {
+        long languageId = library.addSourceLanguage(new SourceLanguage("en", "English", "ltr"));
+        long projectId = library.addProject(new Project("gen", "Genesis", 1), null, languageId);
+        Resource resource = new Resource("ulb", "Unlocked Literal Bible", "book", "gl", "3", "4");
+        resource.addFormat(new Resource.Format(ResourceContainer.version, ResourceContainer.baseMimeType + "+book", 0, "some url", false));
+        library.addResource(resource, projectId);
+        assertEquals(0, library.getImportedTranslations().size());
+        assertEquals(0, library.findTranslations(null, "gen", null, null, "all", 0, -1).size());
+
+        // importing
+        Resource imported = new Resource("ulb", "Unlocked Literal Bible", "book", "gl", "3", "4");
+        imported.addFormat(new Resource.Format(ResourceContainer.version, "book", 0, "", true));
+        library.addResource(imported, projectId);
+        assertEquals(1, library.getImportedTranslations().size());
+        assertEquals(1, library.findTranslations(null, "gen", null, null, "all", 0, -1).size());
+
+        // updating the catalog keeps the import
+        library.beginTransaction();
+        library.getBatchWriter().addResource(resource, projectId);
+        library.endTransaction(true);
+        assertEquals(1, library.getImportedTranslations().size());
+        assertEquals(2, library.getResource("en", "gen", "ulb").formats.size());
+
+        // deleting the import
+        library.removeImportedFormats("en", "gen", "ulb");
+        assertEquals(0, library.getImportedTranslations().size());
+        assertEquals(1, library.getResource("en", "gen", "ulb").formats.size());
+    }
+
+    @Test
+    public void rebuildCategoryTree() throws Exception {
+        long languageId = library.addSourceLanguage(new SourceLanguage("en", "English", "ltr"));
+        List<Category> categories = new ArrayList<>();
+        categories.add(new Category("bible", "Bible"));
+        categories.add(new Category("bible-ot", "Old Testament"));
+        long projectId = library.addProject(new Project("gen", "Genesis", 1), categories, languageId);
+        Resource ulb = new Resource("ulb", "Unlocked Literal Bible", "book", "gl", "3", "4");
+        ulb.addFormat(new Resource.Format(ResourceContainer.version, ResourceContainer.baseMimeType + "+book", 0, "some url", false));
+        library.addResource(ulb, projectId);
+        assertEquals(0, library.getProjectCategories(0, "en", "all").size());
+        assertEquals(1, library.getProjectCategories(0, "en", "gl").size());
+        List<Category> path = library.getCategories("en", "gen");
+        assertEquals(2, path.size());
+        assertEquals("bible", path.get(0).slug);
+        assertEquals("Old Testament", path.get(1).name);
+
+        // resources added in a batch
+        library.beginTransaction();
+        Resource udb = new Resource("udb", "Unlocked Dynamic Bible", "book", "all", "3", "4");
+        udb.addFormat(new Resource.Format(ResourceContainer.version, ResourceContainer.baseMimeType + "+book", 0, "some url", false));
+        library.getBatchWriter().addResource(udb, projectId);
+        library.endTransaction(true);
+        List<CategoryEntry> entries = library.getProjectCategories(0, "en", "all");
+        assertEquals(1, entries.size());
+        assertEquals("Bible", entries.get(0).name);
+        entries = library.getProjectCategories(entries.get(0).id, "en", "all");
+        assertEquals("bible-ot", entries.get(0).slug);
+        entries = library.getProjectCategories(entries.get(0).id, "en", "all");
+        assertEquals(CategoryEntry.Type.PROJECT, entries.get(0).entryType);
+        assertEquals("gen", entries.get(0).slug);
+
+        // the tree is rebuilt once the transaction ends
+        library.beginTransaction();
+        library.addProject(new Project("obs", "Open Bible Stories", 2), null, languageId);
+        assertEquals(1, library.getProjectCategories(0, "en", "").size());
+        library.endTransaction(false);
+        assertEquals(1, library.getProjectCategories(0, "en", "").size());
+        library.beginTransaction();
+        library.addProject(new Project("obs", "Open Bible Stories", 2), null, languageId);
+        library.endTransaction(true);
+        assertEquals(2, library.getProjectCategories(0, "en", "").size());
+    }
+
+    @Test
+    public void searchNonAsciiNames() throws Exception {
+        long languageId = library.addSourceLanguage(new SourceLanguage("es", "Español", "ltr"));
+        library.addProject(new Project("exo", "Éxodo", 2), null, languageId);
+        languageId = library.addSourceLanguage(new SourceLanguage("ru", "Русский", "ltr"));
+        library.addProject(new Project("gen", "Бытие", 1), null, languageId);
+
+        List<SearchHit> hits = library.search("ÉXODO", null, 0, 10);
+        assertEquals(1, hits.size());
+        assertEquals("Éxodo", hits.get(0).name);
+        assertEquals(1, library.search("éxo", null, 0, 10).size());
+        assertEquals(1, library.search("Бытие", "ru", 0, 10).size());
+        assertEquals(1, library.search("бытие", "ru", 0, 10).size());
+    }
+
+    @Test
+    public void readDuringTransaction() throws Exception {
+        library.addSourceLanguage(new SourceLanguage("en", "English", "ltr"));
+        library.beginTransaction();
+        library.addSourceLanguage(new SourceLanguage("de", "Deutsch", "ltr"));
+
+        // other threads read the committed content without waiting for the transaction
+        final Library reader = library;
+        final List<Object> results = new ArrayList<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                results.add(reader.getSourceLanguages().size());
+                results.add(reader.getSourceLanguage("de"));
+            }
+        });
+        thread.start();
+        thread.join(10000);
+        boolean blocked = thread.isAlive();
+        library.endTransaction(true);
+        thread.join();
+        assertFalse(blocked);
+        assertEquals(1, results.get(0));
+        assertNull(results.get(1));
+
+        // the committed changes replace what was cached by the reader
+        assertNotNull(library.getSourceLanguage("de"));
+        assertEquals(2, library.getSourceLanguages().size());
+    }
+
+    @Test
+    public void countRowsWithoutWaiting() throws Exception {
+        library.beginTransaction();
+        library.addSourceLanguage(new SourceLanguage("en", "English", "ltr"));
+        assertTrue(library.getRowsWritten() > 0);
+
+        // other threads get the count from when the transaction began
+        final Library reader = library;
+        final List<Long> results = new ArrayList<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                results.add(reader.getRowsWritten());
+            }
+        });
+        thread.start();
+        thread.join(10000);
+        boolean blocked = thread.isAlive();
+        library.endTransaction(true);
+        thread.join();
+        assertFalse(blocked);
+        assertEquals(0, (long)results.get(0));
+        assertTrue(library.getRowsWritten() > 0);
+    }
+
+    @Test
+    public void stageTargetLanguages() throws Exception {
+        library.addTargetLanguage(new TargetLanguage("en", "English", "American English", "ltr", "United States", true));
+
+        library.beginStaging("target_language");
+        library.beginTransaction();
+        library.addTargetLanguage(new TargetLanguage("de", "Deutsch", "German", "ltr", "Europe", true));
+        library.getBatchWriter().addTargetLanguage(new TargetLanguage("fr", "Français", "French", "ltr", "Europe", true));
+        library.endTransaction(true);
+
+        // readers see the current content until the staging is committed
+        assertEquals(1, library.getTargetLanguages().size());
+        assertNotNull(library.getTargetLanguage("en"));
+
+        library.beginTransaction();
+        library.commitStaging();
+        library.endTransaction(true);
+
+        assertEquals(2, library.getTargetLanguages().size());
+        assertNull(library.getTargetLanguage("en"));
+        assertNotNull(library.getTargetLanguage("de"));
+        assertNotNull(library.getTargetLanguage("fr"));
+
+        // writes go to the table again
+        library.addTargetLanguage(new TargetLanguage("en", "English", "American English", "ltr", "United States", true));
+        assertEquals(3, library.getTargetLanguages().size());
+    }
+
+    @Test
+    public void discardStagedQuestionnaires() throws Exception {
+        Map<String, Long> dataFields = new HashMap<>();
+        dataFields.put("ln", (long)1);
+        long questionnaireId = library.addQuestionnaire(new Questionnaire("en", "English", "ltr", 1, dataFields));
+        library.addQuestion(new Question("What is the language name?", "", true, Question.InputType.String, 0, -1, 1), questionnaireId);
+
+        library.beginStaging("questionnaire", "question", "questionnaire_data_field");
+        long stagedId = library.addQuestionnaire(new Questionnaire("de", "Deutsch", "ltr", 2, dataFields));
+        library.addQuestion(new Question("Wie heißt die Sprache?", "", true, Question.InputType.String, 0, -1, 1), stagedId);
+        library.discardStaging();
+
+        List<Questionnaire> questionnaires = library.getQuestionnaires();
+        assertEquals(1, questionnaires.size());
+        assertEquals("en", questionnaires.get(0).languageSlug);
+        assertEquals(1, library.getQuestions(1).size());
+    }
+
+    @Test
+    public void invalidateCachedModels() throws Exception {
+        library.setCacheSize(10);
+        long languageId = library.addSourceLanguage(new SourceLanguage("en", "English", "ltr"));
+        List<Category> categories = new ArrayList<>();
+        categories.add(new Category("bible-ot", "Old Testament"));
+        long projectId = library.addProject(new Project("gen", "Genesis", 1), categories, languageId);
+        Resource resource = new Resource("ulb", "Unlocked Literal Bible", "book", "all", "3", "4");
+        resource.addFormat(new Resource.Format(ResourceContainer.version, ResourceContainer.baseMimeType + "+book", 0, "some url", false));
+        library.addResource(resource, projectId);
+
+        // lookups are cached
+        Project project = library.getProject("en", "gen");
+        assertSame(project, library.getProject("en", "gen"));
+        assertEquals(1, library.getCacheStats().hits);
+        assertEquals("Old Testament", library.getCategory("en", "bible-ot").name);
+        assertEquals("Unlocked Literal Bible", library.getTranslation("en_gen_ulb").resource.name);
+        assertNull(library.getSourceLanguage("de"));
+
+        // writes invalidate the affected models
+        library.addProject(new Project("gen", "Updated Genesis", 1), categories, languageId);
+        assertEquals("Updated Genesis", library.getProject("en", "gen").name);
+        assertEquals("Updated Genesis", library.getTranslation("en_gen_ulb").project.name);
+
+        categories.set(0, new Category("bible-ot", "Updated Old Testament"));
+        library.addProject(new Project("gen", "Genesis", 1), categories, languageId);
+        assertEquals("Updated Old Testament", library.getCategory("en", "bible-ot").name);
+
+        Resource newResource = new Resource("ulb", "Updated Unlocked Literal Bible", "book", "all", "3", "4");
+        newResource.addFormat(new Resource.Format(ResourceContainer.version, ResourceContainer.baseMimeType + "+book", 0, "some url", true));
+        library.addResource(newResource, projectId);
+        assertEquals("Updated Unlocked Literal Bible", library.getResource("en", "gen", "ulb").name);
+        assertTrue(library.getTranslation("en_gen_ulb").resource.formats.get(0).imported);
+
+        library.addSourceLanguage(new SourceLanguage("de", "Deutsch", "ltr"));
+        assertNotNull(library.getSourceLanguage("de"));
+
+        // models cached during a rolled back transaction are dropped
+        library.beginTransaction();
+        library.addSourceLanguage(new SourceLanguage("fr", "Français", "ltr"));
+        assertNotNull(library.getSourceLanguage("fr"));
+        library.endTransaction(false);
+        assertNull(library.getSourceLanguage("fr"));
+
+        // the cache is bounded
+        assertTrue(library.getCacheStats().size <= 10);
+        library.setCacheSize(0);
+        assertEquals(0, library.getCacheStats().size);
+    }
+}
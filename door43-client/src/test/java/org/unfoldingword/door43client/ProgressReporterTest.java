@@ -0,0 +1,98 @@
+package org.unfoldingword.door43client;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressReporterTest {
+
+    @Test
+    public void throttleUpdates() throws Exception {
+        final List<Long> updates = new ArrayList<>();
+        ProgressReporter reporter = new ProgressReporter(new OnProgressListener() {
+            @Override
+            public boolean onProgress(String tag, long max, long complete) {
+                updates.add(complete);
+                return true;
+            }
+        }, null);
+        for(int i = 1; i <= 10000; i ++) {
+            assertTrue(reporter.onProgress("langnames", 10000, i));
+        }
+        // the first and last updates are always delivered
+        assertTrue(updates.size() < 10000);
+        assertEquals(1L, (long)updates.get(0));
+        assertEquals(10000L, (long)updates.get(updates.size() - 1));
+    }
+
+    @Test
+    public void reportPhasesToEventListeners() throws Exception {
+        final List<ProgressEvent> events = new ArrayList<>();
+        final List<String> legacy = new ArrayList<>();
+        ProgressReporter eventReporter = new ProgressReporter(new ProgressEventListener(0) {
+            @Override
+            public boolean onProgress(ProgressEvent event) {
+                events.add(event);
+                return true;
+            }
+        }, null);
+        ProgressReporter legacyReporter = new ProgressReporter(new OnProgressListener() {
+            @Override
+            public boolean onProgress(String tag, long max, long complete) {
+                legacy.add(tag);
+                return true;
+            }
+        }, null);
+        for(ProgressReporter reporter:new ProgressReporter[]{eventReporter, legacyReporter}) {
+            reporter.addContentLength(100);
+            reporter.addBytes(60);
+            reporter.report("langnames", ProgressEvent.Phase.FETCH, 1, 1);
+            reporter.report("langnames", ProgressEvent.Phase.PARSE, 4, 4);
+            reporter.onProgress("langnames", 4, 1);
+            reporter.onProgress("langnames", 4, 2);
+            reporter.onProgress("langnames", 4, 4);
+        }
+
+        assertEquals(5, events.size());
+        assertEquals(ProgressEvent.Phase.FETCH, events.get(0).phase);
+        assertEquals(60, events.get(0).bytes);
+        assertEquals(100, events.get(0).contentLength);
+        assertEquals(ProgressEvent.Phase.PARSE, events.get(1).phase);
+        assertEquals(ProgressEvent.Phase.INDEX, events.get(3).phase);
+        assertEquals(2, events.get(3).complete);
+        assertTrue(events.get(3).remaining >= 0);
+
+        // plain listeners only see the index progress and are throttled
+        assertEquals(2, legacy.size());
+    }
+
+    @Test
+    public void unknownContentLength() throws Exception {
+        ProgressReporter reporter = new ProgressReporter(null, null);
+        reporter.addContentLength(100);
+        reporter.addContentLength(-1);
+        reporter.addContentLength(100);
+        assertTrue(reporter.report("catalog", ProgressEvent.Phase.FETCH, 1, 1));
+    }
+
+    @Test
+    public void stayCanceled() throws Exception {
+        final List<Long> updates = new ArrayList<>();
+        ProgressReporter reporter = new ProgressReporter(new OnProgressListener() {
+            @Override
+            public boolean onProgress(String tag, long max, long complete) {
+                updates.add(complete);
+                return false;
+            }
+        }, null);
+        assertFalse(reporter.onProgress("ta", 8, 1));
+        assertTrue(reporter.isCanceled());
+        assertFalse(reporter.onProgress("chunk_markers", 8, 1));
+        assertEquals(1, updates.size());
+    }
+}
@@ -0,0 +1,58 @@
+package org.unfoldingword.door43client;
+
+import org.junit.Test;
+import org.unfoldingword.door43client.models.TargetLanguage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TargetLanguageSearchIndexTest {
+
+    private static TargetLanguageSearchIndex buildIndex() {
+        List<TargetLanguage> languages = new ArrayList<>();
+        languages.add(new TargetLanguage("fr", "Français", "French", "ltr", "Europe", true));
+        languages.add(new TargetLanguage("de", "Deutsch", "German", "ltr", "Europe", true));
+        languages.add(new TargetLanguage("en", "English", "English", "ltr", "Europe", true));
+        languages.add(new TargetLanguage("aen", "Armenian Sign Language", "Armenian Sign Language", "ltr", "Asia", false));
+        languages.add(new TargetLanguage("enq", "Enga", "Enga", "ltr", "Pacific", false));
+        languages.add(new TargetLanguage("ang", "Old English", null, "ltr", "Europe", false));
+        languages.add(new TargetLanguage("efi", "Efik", "Efik", "ltr", "Africa", false));
+        languages.add(new TargetLanguage("eng-x-pidgin", "Pidgin", "Pidgin", "ltr", "Pacific", false));
+        languages.add(new TargetLanguage("tbg", "Enimo", "Enimo", "ltr", "Pacific", false));
+        return new TargetLanguageSearchIndex(languages);
+    }
+
+    @Test
+    public void rankResults() throws Exception {
+        List<TargetLanguage> results = buildIndex().find("En");
+        // slug and name prefix, slug prefix, name prefix, then substring
+        assertEquals(7, results.size());
+        assertEquals("en", results.get(0).slug);
+        assertEquals("enq", results.get(1).slug);
+        assertEquals("eng-x-pidgin", results.get(2).slug);
+        assertEquals("tbg", results.get(3).slug);
+        assertEquals("aen", results.get(4).slug);
+        assertEquals("ang", results.get(5).slug);
+        assertEquals("fr", results.get(6).slug);
+    }
+
+    @Test
+    public void findByTrigrams() throws Exception {
+        TargetLanguageSearchIndex index = buildIndex();
+        assertEquals(2, index.find("english").size());
+        assertEquals("ang", index.find("old eng").get(0).slug);
+        assertEquals("fr", index.find("french").get(0).slug);
+        assertEquals(0, index.find("frenchy").size());
+        assertEquals(1, index.find("sign lang").size());
+    }
+
+    @Test
+    public void emptyQueryListsEverything() throws Exception {
+        List<TargetLanguage> results = buildIndex().find("");
+        assertEquals(9, results.size());
+        assertEquals("aen", results.get(0).slug);
+        assertEquals("tbg", results.get(8).slug);
+    }
+}
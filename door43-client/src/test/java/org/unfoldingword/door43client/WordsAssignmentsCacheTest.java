@@ -0,0 +1,35 @@
+package org.unfoldingword.door43client;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class WordsAssignmentsCacheTest {
+
+    @Test
+    public void readAssignments() throws Exception {
+        String data = Util.loadResource(this.getClass().getClassLoader(), "genesis/en/ulb/assignments.json");
+        JSONObject assignments = WordsAssignmentsCache.readAssignments(new StringReader(data), "gen");
+
+        assertEquals(50, assignments.length());
+        JSONArray words = assignments.getJSONObject("01").getJSONArray("01");
+        assertEquals(4, words.length());
+        assertEquals("//bible/tw/creation", words.getString(0));
+        assertEquals("//bible/tw/peoplegroup", assignments.getJSONObject("50").getJSONArray("24").getString(6));
+    }
+
+    @Test
+    public void readObsAssignments() throws Exception {
+        String data = "{\"chapters\":[{\"frames\":[{\"items\":[{\"id\":\"god\",\"term\":\"God\"}],\"id\":\"1\"}],\"id\":\"001\"}]}";
+        JSONObject assignments = WordsAssignmentsCache.readAssignments(new StringReader(data), "obs");
+
+        assertEquals("//bible-obs/tw/god", assignments.getJSONObject("01").getJSONArray("01").getString(0));
+    }
+}